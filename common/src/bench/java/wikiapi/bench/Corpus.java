@@ -0,0 +1,57 @@
+package wikiapi.bench;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import info.bliki.wiki.dump.Siteinfo;
+import info.bliki.wiki.dump.WikiArticle;
+import info.bliki.wiki.dump.WikiXMLParser;
+
+/**
+ * Pages handed out round robin, one per benchmark operation. The sample
+ * corpus is the pages of test.xml, the synthetic corpus adds generated
+ * pages of up to 256k characters with the siteinfo of test.xml.
+ *
+ */
+@State(Scope.Thread)
+public class Corpus {
+
+  @Param({ "sample", "synthetic" })
+  public String corpus;
+
+  public Siteinfo siteinfo;
+  public List<WikiArticle> pages;
+  private int next = 0;
+
+  @Setup(Level.Trial)
+  public void load() throws Exception {
+    pages = new ArrayList<>();
+    try (InputStream in = Corpus.class
+        .getResourceAsStream("/wikiapi/test.xml")) {
+      new WikiXMLParser(in, (page, siteinfo) -> {
+        this.siteinfo = siteinfo;
+        pages.add(page);
+      }).parse();
+    }
+    if ("synthetic".equals(corpus)) {
+      pages.addAll(new SyntheticPages(42).pages(siteinfo, 64, 1 << 18));
+    }
+  }
+
+  /**
+   * @return the next page of the corpus
+   */
+  public WikiArticle next() {
+    WikiArticle page = pages.get(next);
+    next = next + 1 == pages.size() ? 0 : next + 1;
+    return page;
+  }
+
+}
@@ -0,0 +1,141 @@
+package wikiapi.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import info.bliki.wiki.dump.Siteinfo;
+import info.bliki.wiki.dump.WikiArticle;
+
+/**
+ * Generates pages with the constructs found in article wikitext: links with
+ * and without labels, categories, nested templates, references, tables,
+ * lists, entities and non-ASCII text. Generation is seeded, so every run
+ * sees the same pages.
+ *
+ */
+public class SyntheticPages {
+
+  private static final String[] WORDS = ("alpha beta gamma delta Zürich "
+      + "naïve 東京 café and the of in on résumé 😀 quotes\"d comma,ed "
+      + "l'été river county album football season village").split(" ");
+  private static final String[] TARGETS = { "Atmosphere",
+      "atmosphere of Earth", "Zürich", "New York City", "C++", "Main Page",
+      "Foo_bar", "List of rivers#Europe", "Q&A", "File:X.png",
+      "wikt:word", "Category:Stuff" };
+  private static final String[] TEMPLATES = { "Disambig", "stub",
+      "Geo-stub", "Citation needed", "Infobox settlement" };
+
+  private final Random random;
+  private final StringBuilder text = new StringBuilder();
+
+  public SyntheticPages(long seed) {
+    this.random = new Random(seed);
+  }
+
+  /**
+   * @param siteinfo
+   * @param count
+   * @param maxChars wikitext length of the largest pages
+   * @return main namespace pages, about one in ten a redirect, with sizes
+   *         spread exponentially up to maxChars
+   */
+  public List<WikiArticle> pages(Siteinfo siteinfo, int count, int maxChars) {
+    List<WikiArticle> pages = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      WikiArticle page = new WikiArticle();
+      page.setId(String.valueOf(1000 + i));
+      page.setRevisionId(String.valueOf(10000 + i));
+      page.setTitle("Synthetic page " + i + " " + word(), siteinfo);
+      if (random.nextInt(10) == 0) {
+        page.setText("#REDIRECT [[" + pick(TARGETS) + "]]");
+      } else {
+        int chars = (int) (maxChars * Math.pow(2, -random.nextInt(8)));
+        page.setText(wikitext(chars));
+      }
+      pages.add(page);
+    }
+    return pages;
+  }
+
+  /**
+   * @param chars
+   * @return wikitext of at least the given length
+   */
+  public String wikitext(int chars) {
+    text.setLength(0);
+    text.append("{{Infobox settlement|name=").append(word())
+        .append("|country=").append(link()).append("}}\n");
+    text.append("'''").append(word()).append("''' is a ").append(link())
+        .append(".\n");
+    while (text.length() < chars) {
+      fragment();
+    }
+    text.append("\n== References ==\n{{Reflist}}\n");
+    text.append("[[Category:").append(word()).append(' ').append(word())
+        .append("]]\n[[Category:").append(word()).append("|sort]]\n");
+    if (random.nextInt(20) == 0) {
+      text.append("{{").append(pick(TEMPLATES)).append("}}\n");
+    }
+    return text.toString();
+  }
+
+  private void fragment() {
+    int r = random.nextInt(100);
+    if (r < 40) {
+      for (int i = random.nextInt(12); i >= 0; i--) {
+        text.append(word()).append(' ');
+      }
+    } else if (r < 65) {
+      text.append(link()).append(' ');
+    } else if (r < 70) {
+      text.append("{{cite web|url=http://example.org/").append(r)
+          .append("|title=").append(word()).append("}}");
+    } else if (r < 74) {
+      text.append("<ref>").append(word()).append(' ').append(link())
+          .append("</ref>");
+    } else if (r < 77) {
+      text.append("{{").append(pick(TEMPLATES)).append("|date={{")
+          .append(word()).append("}}}} ");
+    } else if (r < 80) {
+      text.append("&amp; &lt;b&gt; &nbsp; &#65; &#x42; &copy; &mdash; ");
+    } else if (r < 84) {
+      text.append("\n== ").append(word()).append(" ==\n");
+    } else if (r < 88) {
+      text.append("\n* ").append(link()).append("\n* ").append(word())
+          .append('\n');
+    } else if (r < 90) {
+      text.append("\n{| class=\"wikitable\"\n|-\n| ").append(word())
+          .append(" || ").append(link()).append("\n|}\n");
+    } else if (r < 94) {
+      text.append("''").append(word()).append("'' ");
+    } else if (r < 96) {
+      text.append("[http://example.org ").append(word()).append("] ");
+    } else {
+      text.append("\n\n");
+    }
+  }
+
+  private String link() {
+    String target = pick(TARGETS);
+    switch (random.nextInt(4)) {
+    case 0:
+      return "[[" + target + "]]";
+    case 1:
+      return "[[" + target + "|" + word() + " " + word() + "]]";
+    case 2:
+      return "[[" + target + "]]s";
+    default:
+      return "[[" + word() + "]]";
+    }
+  }
+
+  private String word() {
+    return pick(WORDS);
+  }
+
+  private String pick(String[] values) {
+    return values[random.nextInt(values.length)];
+  }
+
+}
@@ -0,0 +1,297 @@
+package wikiapi;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import info.bliki.wiki.dump.Siteinfo;
+import info.bliki.wiki.dump.WikiArticle;
+
+/**
+ * Memory maps an uncompressed Wikipedia XML dump and cuts it into the byte
+ * ranges of its &lt;page&gt; elements without decoding them, so that the XML
+ * decoding of each page can be done by the worker threads.
+ *
+ * The element names follow info.bliki.wiki.dump.WikiXMLParser so that the
+ * decoded articles are the same as the ones from the SAX based parsing.
+ *
+ */
+public class PageSplitter implements Closeable {
+
+  private static final byte[] PAGE_OPEN = bytes("<page>");
+  private static final byte[] PAGE_CLOSE = bytes("</page>");
+  private static final int WINDOW = 1 << 30;
+
+  private static final ThreadLocal<XMLReader> readers = ThreadLocal
+      .withInitial(() -> {
+        try {
+          return SAXParserFactory.newInstance().newSAXParser().getXMLReader();
+        } catch (ParserConfigurationException | SAXException e) {
+          throw new IllegalStateException(e);
+        }
+      });
+
+  private final FileChannel channel;
+  private final long size;
+  private MappedByteBuffer window;
+  private long windowStart = 0;
+  private long position = 0;
+  private final Siteinfo siteinfo;
+
+  public PageSplitter(String file) throws IOException, SAXException {
+    channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+    size = channel.size();
+    map(0, WINDOW);
+    long firstPage = indexOf(PAGE_OPEN, 0);
+    siteinfo = parseSiteinfo(firstPage < 0 ? size : firstPage);
+    position = firstPage < 0 ? size : firstPage;
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return the site information in the dump header
+   */
+  public Siteinfo getSiteinfo() {
+    return siteinfo;
+  }
+
+  /**
+   * @return the current byte offset in the dump
+   */
+  public long getPosition() {
+    return position;
+  }
+
+  /**
+   * Continues splitting at an offset returned by {@link #getPosition()}
+   * 
+   * @param position
+   */
+  public void seek(long position) {
+    this.position = position;
+  }
+
+  /**
+   * @return the raw bytes of the next &lt;page&gt; element, null if there are
+   *         no more pages
+   * @throws IOException
+   */
+  public ByteBuffer next() throws IOException {
+    long start = indexOf(PAGE_OPEN, position);
+    if (start < 0) {
+      position = size;
+      return null;
+    }
+    long end = indexOf(PAGE_CLOSE, start + PAGE_OPEN.length);
+    if (end < 0) {
+      throw new IOException("Unterminated <page> at byte " + start);
+    }
+    end += PAGE_CLOSE.length;
+    position = end;
+    if (start < windowStart || end > windowStart + window.limit()) {
+      map(start, Math.max(WINDOW, end - start));
+    }
+    ByteBuffer page = window.duplicate();
+    page.limit((int) (end - windowStart));
+    page.position((int) (start - windowStart));
+    return page.slice();
+  }
+
+  private void map(long start, long length) throws IOException {
+    windowStart = start;
+    window = channel.map(MapMode.READ_ONLY, start,
+        Math.min(length, size - start));
+  }
+
+  /**
+   * Finds the pattern at or after the given offset, moving the mapped window
+   * forward as needed
+   */
+  private long indexOf(byte[] pattern, long from) throws IOException {
+    byte first = pattern[0];
+    while (from + pattern.length <= size) {
+      if (from < windowStart
+          || from + pattern.length > windowStart + window.limit()) {
+        map(from, WINDOW);
+      }
+      int limit = window.limit() - pattern.length;
+      for (int i = (int) (from - windowStart); i <= limit; i++) {
+        if (window.get(i) != first) {
+          continue;
+        }
+        int j = 1;
+        while (j < pattern.length && window.get(i + j) == pattern[j]) {
+          j++;
+        }
+        if (j == pattern.length) {
+          return windowStart + i;
+        }
+      }
+      if (windowStart + window.limit() >= size) {
+        break;
+      }
+      from = windowStart + limit + 1;
+    }
+    return -1;
+  }
+
+  private Siteinfo parseSiteinfo(long headerEnd) throws IOException,
+      SAXException {
+    ByteBuffer header = window.duplicate();
+    header.limit((int) Math.min(headerEnd, window.limit()));
+    byte[] bytes = new byte[header.remaining()];
+    header.get(bytes);
+    SiteinfoHandler handler = new SiteinfoHandler();
+    XMLReader reader = readers.get();
+    reader.setContentHandler(handler);
+    reader.parse(new InputSource(new SequenceInputStream(
+        new ByteArrayInputStream(bytes), new ByteArrayInputStream(
+            bytes("</mediawiki>")))));
+    return handler.siteinfo;
+  }
+
+  /**
+   * Decodes a single &lt;page&gt; element, safe to call from multiple threads
+   *
+   * @param page raw bytes of the page element
+   * @param siteinfo
+   * @return the article, null if the page has no text
+   * @throws IOException
+   * @throws SAXException
+   */
+  public static WikiArticle decode(ByteBuffer page, Siteinfo siteinfo)
+      throws IOException, SAXException {
+    byte[] bytes = new byte[page.remaining()];
+    page.duplicate().get(bytes);
+    return decode(new ByteArrayInputStream(bytes), siteinfo);
+  }
+
+  private static WikiArticle decode(InputStream page, Siteinfo siteinfo)
+      throws IOException, SAXException {
+    PageHandler handler = new PageHandler(siteinfo);
+    XMLReader reader = readers.get();
+    reader.setContentHandler(handler);
+    reader.parse(new InputSource(page));
+    return handler.hasText ? handler.article : null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    window = null;
+    channel.close();
+  }
+
+  private static abstract class TextHandler extends DefaultHandler {
+    private StringBuilder data;
+
+    String getString() {
+      if (data == null) {
+        return null;
+      }
+      String s = data.toString();
+      data = null;
+      return s;
+    }
+
+    void clear() {
+      data = null;
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+      if (data == null) {
+        data = new StringBuilder(length);
+      }
+      data.append(ch, start, length);
+    }
+  }
+
+  private static class SiteinfoHandler extends TextHandler {
+    private final Siteinfo siteinfo = new Siteinfo();
+    private String namespaceKey = null;
+
+    @Override
+    public void startElement(String uri, String localName, String qName,
+        Attributes atts) {
+      clear();
+      namespaceKey = "namespace".equals(qName) ? atts.getValue("key") : null;
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+      if ("namespace".equals(qName) && namespaceKey != null) {
+        siteinfo.addNamespace(namespaceKey, getString());
+      } else if ("sitename".equals(qName)) {
+        siteinfo.setSitename(getString());
+      } else if ("base".equals(qName)) {
+        siteinfo.setBase(getString());
+      } else if ("generator".equals(qName)) {
+        siteinfo.setGenerator(getString());
+      } else if ("case".equals(qName)) {
+        siteinfo.setCharacterCase(getString());
+      }
+      clear();
+    }
+  }
+
+  private static class PageHandler extends TextHandler {
+    private final Siteinfo siteinfo;
+    private final WikiArticle article = new WikiArticle();
+    private boolean revision = false;
+    private boolean hasText = false;
+
+    PageHandler(Siteinfo siteinfo) {
+      this.siteinfo = siteinfo;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName,
+        Attributes atts) {
+      clear();
+      if ("revision".equals(qName)) {
+        revision = true;
+      }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+      if ("text".equals(qName)) {
+        article.setText(getString());
+        hasText = true;
+      } else if ("title".equals(qName)) {
+        article.setTitle(getString(), siteinfo);
+      } else if ("timestamp".equals(qName)) {
+        article.setTimeStamp(getString());
+      } else if ("id".equals(qName)) {
+        if (revision) {
+          article.setRevisionId(getString());
+        } else {
+          article.setId(getString());
+        }
+      }
+      clear();
+    }
+  }
+
+}
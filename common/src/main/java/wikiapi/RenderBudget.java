@@ -0,0 +1,369 @@
+package wikiapi;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Time and output size allowed for rendering a page. A watchdog thread
+ * cancels renders running past the time budget, and the wiki model notices
+ * at its next checkpoint, e.g. the next token parsed, by throwing
+ * {@link Exceeded}. Output past the size budget is caught at the same
+ * checkpoints. A cut render is never used, even if the parser swallowed
+ * the throw. A page over budget is rendered again from its wikitext
+ * without tables and templates, and is dropped if that is over budget too.
+ *
+ * Pages over budget are listed in the side file, if any, one line per page:
+ * id, title, the budget exceeded, milliseconds spent, wikitext chars, output
+ * chars when cut and whether the page was degraded, dropped or is stuck, i.e.
+ * still running long after it was cancelled, without reaching a checkpoint.
+ * The thread of a stuck render is handed to the stuck listeners, so that the
+ * stage running it can replace the worker, see {@link Stage#replace(Thread)}.
+ *
+ */
+public class RenderBudget implements Closeable {
+
+  /**
+   * The budget a render ran out of
+   */
+  public enum Limit {
+    TIME, SIZE;
+
+    @Override
+    public String toString() {
+      return name().toLowerCase();
+    }
+  }
+
+  /**
+   * Thrown at a checkpoint of a render over budget. If the wiki parser
+   * catches it for a nested parse and goes on, it is thrown again at the
+   * next checkpoint, and the render fails once the renderer returns.
+   */
+  public static class Exceeded extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    private final Limit limit;
+
+    Exceeded(Limit limit) {
+      super("Over the " + limit + " budget", null, false, false);
+      this.limit = limit;
+    }
+
+    public Limit getLimit() {
+      return limit;
+    }
+  }
+
+  private final long millis;
+  private final int maxChars;
+  private final Writer log;
+  private final Set<Meter> running = ConcurrentHashMap.newKeySet();
+  private final List<Consumer<Thread>> stuckListeners =
+      new CopyOnWriteArrayList<>();
+  private final Thread watchdog;
+
+  /**
+   * @param millis per page, 0 for no limit
+   * @param maxChars of output per page, 0 for no limit
+   * @param log side file listing the pages over budget, null for none
+   * @throws IOException
+   */
+  public RenderBudget(long millis, int maxChars, File log)
+      throws IOException {
+    this.millis = millis;
+    this.maxChars = maxChars <= 0 ? Integer.MAX_VALUE : maxChars;
+    this.log = log == null ? null : new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(log), StandardCharsets.UTF_8));
+    watchdog = new Thread(this::watch, "render-watchdog");
+    watchdog.setDaemon(true);
+    if (millis > 0) {
+      watchdog.start();
+    }
+  }
+
+  public long getMillis() {
+    return millis;
+  }
+
+  /**
+   * Cancels the renders over the time budget, several times per budget
+   */
+  private void watch() {
+    long period = Math.max(10, millis / 4);
+    long limit = TimeUnit.MILLISECONDS.toNanos(millis);
+    while (true) {
+      try {
+        Thread.sleep(period);
+      } catch (InterruptedException e) {
+        return;
+      }
+      long now = System.nanoTime();
+      for (Meter meter : running) {
+        long started = meter.started;
+        if (started == 0 || now - started <= limit) {
+          continue;
+        }
+        if (meter.cancelled != started) {
+          meter.cancelled = started;
+        } else if (now - started > 2 * limit && meter.stuck != started) {
+          // Not a checkpoint since it was cancelled
+          meter.stuck = started;
+          report(meter.id, meter.title, Limit.TIME, meter.millis(),
+              meter.wikitext, -1, "stuck");
+          for (Consumer<Thread> listener : stuckListeners) {
+            listener.accept(meter.thread);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return renders still running a budget after they were cancelled
+   */
+  public int stuck() {
+    int stuck = 0;
+    for (Meter meter : running) {
+      long started = meter.started;
+      if (started != 0 && meter.stuck == started) {
+        stuck++;
+      }
+    }
+    return stuck;
+  }
+
+  /**
+   * Calls the listener, on the watchdog thread, with the thread of every
+   * render found stuck
+   *
+   * @param listener
+   */
+  public void addStuckListener(Consumer<Thread> listener) {
+    stuckListeners.add(listener);
+  }
+
+  public void removeStuckListener(Consumer<Thread> listener) {
+    stuckListeners.remove(listener);
+  }
+
+  /**
+   * Renders wikitext with a meter as checkpoint
+   *
+   * @param <E> thrown by the renderer
+   */
+  @FunctionalInterface
+  public interface Renderer<E extends Exception> {
+    String render(String wikitext) throws E;
+  }
+
+  /**
+   * @return a meter for the renders of one thread
+   */
+  public Meter meter() {
+    return new Meter();
+  }
+
+  /**
+   * Checks the renders of one thread against the budget, as a checkpoint
+   * for the wiki model to run
+   */
+  public class Meter implements Runnable {
+    // Start of the current render, 0 if none; a render is cancelled, or
+    // known stuck, when these hold its start
+    private volatile long started = 0;
+    private volatile long cancelled = 0;
+    private volatile long stuck = 0;
+    // Running the current render
+    private volatile Thread thread;
+    private CharSequence out = "";
+    // Budget exceeded by the current render, null if none
+    private Limit exceeded = null;
+    private String id;
+    private String title;
+    private int wikitext;
+
+    /**
+     * Checks the size of this output from now on
+     *
+     * @param out
+     */
+    public void watch(CharSequence out) {
+      this.out = out;
+    }
+
+    /**
+     * Throws {@link Exceeded} if the render is over budget. Renders not
+     * started by {@link #render} are not checked.
+     */
+    @Override
+    public void run() {
+      if (started == 0) {
+        return;
+      }
+      if (exceeded == null) {
+        if (cancelled == started) {
+          exceeded = Limit.TIME;
+        } else if (out.length() > maxChars) {
+          exceeded = Limit.SIZE;
+        }
+      }
+      if (exceeded != null) {
+        throw new Exceeded(exceeded);
+      }
+    }
+
+    private <E extends Exception> String apply(Renderer<E> renderer,
+        String wikitext) throws E {
+      String output = renderer.render(wikitext);
+      if (exceeded == null && cancelled == started) {
+        // Cancelled without a checkpoint since
+        exceeded = Limit.TIME;
+      }
+      if (exceeded != null) {
+        throw new Exceeded(exceeded);
+      }
+      return output;
+    }
+
+    private long millis() {
+      return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    }
+
+    private void start(String wikitext) {
+      this.wikitext = wikitext.length();
+      out = "";
+      exceeded = null;
+      thread = Thread.currentThread();
+      started = System.nanoTime();
+      running.add(this);
+    }
+
+    private void stop() {
+      running.remove(this);
+      started = 0;
+    }
+
+    /**
+     * Renders the page within budget, then degraded if it is over budget
+     *
+     * @param id
+     * @param title
+     * @param wikitext
+     * @param renderer rendering wikitext with this meter as checkpoint
+     * @return the output, null if the page is dropped
+     * @throws E as thrown by the renderer
+     */
+    public <E extends Exception> String render(String id, String title,
+        String wikitext, Renderer<E> renderer) throws E {
+      this.id = id;
+      this.title = title;
+      Limit limit;
+      long spent;
+      start(wikitext);
+      try {
+        return apply(renderer, wikitext);
+      } catch (Exceeded e) {
+        limit = e.getLimit();
+      } finally {
+        spent = millis();
+        stop();
+      }
+      int length = out.length();
+      start(wikitext);
+      try {
+        String output = apply(renderer, degrade(wikitext, maxChars));
+        report(id, title, limit, spent + millis(),
+            wikitext.length(), length, "degraded");
+        return output;
+      } catch (Exceeded e) {
+        report(id, title, limit, spent + millis(),
+            wikitext.length(), length, "dropped");
+        return null;
+      } finally {
+        stop();
+      }
+    }
+  }
+
+  /**
+   * The wikitext without tables and templates, the constructs pathological
+   * pages are made of, cut at the first line end past half the output
+   * budget
+   *
+   * @param wikitext
+   * @param maxChars
+   * @return
+   */
+  static String degrade(String wikitext, int maxChars) {
+    int n = wikitext.length();
+    int cut = maxChars / 2;
+    StringBuilder out = new StringBuilder(Math.min(n, cut));
+    int templates = 0;
+    int tables = 0;
+    for (int i = 0; i < n; i++) {
+      char c = wikitext.charAt(i);
+      char next = i + 1 < n ? wikitext.charAt(i + 1) : 0;
+      if (c == '{' && (next == '{' || next == '|')) {
+        if (next == '{') {
+          templates++;
+        } else {
+          tables++;
+        }
+        i++;
+      } else if (c == '}' && next == '}' && templates > 0) {
+        templates--;
+        i++;
+      } else if (c == '|' && next == '}' && tables > 0) {
+        tables--;
+        i++;
+      } else if (templates == 0 && tables == 0) {
+        out.append(c);
+        if (c == '\n' && out.length() > cut) {
+          break;
+        }
+      }
+    }
+    return out.toString();
+  }
+
+  private void report(String id, String title, Limit limit, long millis,
+      int wikitext, int output, String outcome) {
+    if (log == null) {
+      return;
+    }
+    synchronized (log) {
+      try {
+        log.write(id + "\t" + title + "\t" + limit + "\t" + millis + "\t"
+            + wikitext + "\t" + output + "\t" + outcome + "\n");
+        log.flush();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Stops the watchdog and closes the side file
+   */
+  @Override
+  public void close() throws IOException {
+    watchdog.interrupt();
+    if (log != null) {
+      synchronized (log) {
+        log.close();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,282 @@
+package wikiapi;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A stage of the parsing pipeline: a bounded queue of tasks drained by
+ * dedicated worker threads. A producer blocks while the queue is full
+ * instead of running the task itself, so the thread reading the dump never
+ * renders a page. The depth of the queue and the time producers and workers
+ * spent waiting on it are counted.
+ *
+ * Tasks are run until {@link #shutdown()}, after which the queued ones are
+ * finished and the workers exit. A task throwing does not stop its worker.
+ * A worker stuck in a task can be replaced by a new one, see
+ * {@link #replace(Thread)}.
+ *
+ */
+public class Stage implements Executor {
+
+  // Ends a worker, compared by identity
+  private static final Runnable END = () -> {
+  };
+
+  private final String name;
+  private final BlockingQueue<Runnable> queue;
+  // Worker of each slot, a replaced worker exits once its task returns
+  private final AtomicReferenceArray<Thread> workers;
+  private final AtomicInteger threads = new AtomicInteger();
+  // Slots whose worker has not exited, guarded by this
+  private int live;
+  private final AtomicInteger active = new AtomicInteger();
+  private final AtomicInteger maxDepth = new AtomicInteger();
+  private final LongAdder completed = new LongAdder();
+  private final LongAdder blocked = new LongAdder();
+  private final LongAdder producerWait = new LongAdder();
+  private final LongAdder workerWait = new LongAdder();
+  private final LongAdder replaced = new LongAdder();
+  private volatile boolean shutdown = false;
+
+  /**
+   * @param name of the stage and prefix of its threads
+   * @param workers
+   * @param capacity of the queue
+   */
+  public Stage(String name, int workers, int capacity) {
+    this.name = name;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.workers = new AtomicReferenceArray<>(workers);
+    this.live = workers;
+    for (int i = 0; i < workers; i++) {
+      Thread worker = newWorker(i);
+      this.workers.set(i, worker);
+      worker.start();
+    }
+  }
+
+  private Thread newWorker(int slot) {
+    Thread worker = new Thread(() -> work(slot), name + "-"
+        + threads.getAndIncrement());
+    worker.setDaemon(true);
+    return worker;
+  }
+
+  /**
+   * Queues the task, waiting for room if the queue is full
+   *
+   * @throws RejectedExecutionException if the stage is shut down or the
+   *           caller is interrupted while waiting
+   */
+  @Override
+  public void execute(Runnable task) {
+    if (shutdown) {
+      throw new RejectedExecutionException(name + " is shut down");
+    }
+    if (!queue.offer(task)) {
+      blocked.increment();
+      long start = System.nanoTime();
+      try {
+        queue.put(task);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RejectedExecutionException("Interrupted queueing to "
+            + name, e);
+      } finally {
+        producerWait.add(System.nanoTime() - start);
+      }
+    }
+    int depth = queue.size();
+    if (depth > maxDepth.get()) {
+      maxDepth.accumulateAndGet(depth, Math::max);
+    }
+  }
+
+  private void work(int slot) {
+    Thread self = Thread.currentThread();
+    boolean ended = false;
+    try {
+      while (workers.get(slot) == self) {
+        Runnable task = queue.poll();
+        if (task == null) {
+          long start = System.nanoTime();
+          try {
+            task = queue.take();
+          } catch (InterruptedException e) {
+            return;
+          } finally {
+            workerWait.add(System.nanoTime() - start);
+          }
+        }
+        if (task == END) {
+          ended = true;
+          return;
+        }
+        active.incrementAndGet();
+        try {
+          task.run();
+        } catch (Throwable e) {
+          e.printStackTrace();
+        } finally {
+          active.decrementAndGet();
+          completed.increment();
+        }
+      }
+    } finally {
+      exit(slot, self, ended);
+    }
+  }
+
+  private synchronized void exit(int slot, Thread self, boolean ended) {
+    if (workers.get(slot) == self) {
+      live--;
+      notifyAll();
+    } else if (ended) {
+      // Replaced since it took the end of the worker now in its slot
+      queue.offer(END);
+    }
+  }
+
+  /**
+   * Starts a new worker in place of one stuck in a task, so that the stage
+   * keeps its capacity. The stuck worker is left running, and exits once its
+   * task returns. It is not interrupted, which would not stop a task looping
+   * on the CPU and would close any channel it is writing to.
+   *
+   * @param worker
+   * @return whether the thread was a worker of the stage and is replaced
+   */
+  public synchronized boolean replace(Thread worker) {
+    for (int i = 0; i < workers.length(); i++) {
+      if (workers.get(i) == worker && worker.isAlive()) {
+        Thread next = newWorker(i);
+        workers.set(i, next);
+        next.start();
+        replaced.increment();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Stops accepting tasks, the queued ones are still run. Must be called by
+   * the producer once it is done.
+   */
+  public void shutdown() {
+    if (shutdown) {
+      return;
+    }
+    shutdown = true;
+    for (int i = 0; i < workers.length(); i++) {
+      try {
+        queue.put(END);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted shutting down " + name,
+            e);
+      }
+    }
+  }
+
+  /**
+   * Waits for the workers to finish the queued tasks after
+   * {@link #shutdown()}. Replaced workers are not waited for.
+   *
+   * @param timeout
+   * @param unit
+   * @return whether all workers have exited
+   * @throws InterruptedException
+   */
+  public synchronized boolean awaitTermination(long timeout, TimeUnit unit)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (live > 0) {
+      long left = deadline - System.nanoTime();
+      if (left <= 0) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, left);
+    }
+    return true;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getPoolSize() {
+    return workers.length();
+  }
+
+  /**
+   * @return workers running a task, replaced ones included
+   */
+  public int getActiveCount() {
+    return active.get();
+  }
+
+  /**
+   * @return tasks run so far
+   */
+  public long getCompletedCount() {
+    return completed.sum();
+  }
+
+  /**
+   * @return tasks queued and not yet taken by a worker
+   */
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  public int getMaxQueueDepth() {
+    return maxDepth.get();
+  }
+
+  /**
+   * @return times a producer found the queue full
+   */
+  public long getBlockedCount() {
+    return blocked.sum();
+  }
+
+  /**
+   * @return nanoseconds producers spent waiting for room in the queue
+   */
+  public long getProducerWaitNanos() {
+    return producerWait.sum();
+  }
+
+  /**
+   * @return nanoseconds workers spent waiting for a task, summed over the
+   *         workers
+   */
+  public long getWorkerWaitNanos() {
+    return workerWait.sum();
+  }
+
+  /**
+   * @return workers replaced while stuck in a task
+   */
+  public long getReplacedCount() {
+    return replaced.sum();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: %d/%d active, %d done, queue %d (max %d), "
+        + "producers blocked %d times for %.2fs, workers idle %.2fs, "
+        + "%d replaced", name, getActiveCount(), getPoolSize(),
+        getCompletedCount(), getQueueDepth(), getMaxQueueDepth(),
+        getBlockedCount(), getProducerWaitNanos() / 1e9,
+        getWorkerWaitNanos() / 1e9, getReplacedCount());
+  }
+
+}
@@ -0,0 +1,12 @@
+#!/bin/bash
+# Prints the rows of a table (page, link or redirect) from the chunk files
+# listed in the manifest, decompressing them as needed. The rows have all
+# columns of app.ddlog, the title ids are empty unless parsed with --title-ids
+cd "$(dirname "$0")/chunks"
+tail -n +2 manifest.tsv | cut -f1 | grep "^$1[0-9]" | while read f; do
+  case "$f" in
+    *.gz) zcat "$f" ;;
+    *.zst) zstdcat "$f" ;;
+    *) cat "$f" ;;
+  esac
+done
@@ -1,5 +1,4 @@
-if [ ! -f input/chunks/link0.csv ]; then
+if [ ! -f input/chunks/manifest.tsv ]; then
   bash input/parse.sh
 fi
-cat input/chunks/link*.csv
-
+bash input/chunks.sh link
@@ -0,0 +1,4 @@
+if [ ! -f input/chunks/manifest.tsv ]; then
+  bash input/parse.sh
+fi
+bash input/chunks.sh normalized_link
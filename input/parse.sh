@@ -5,9 +5,10 @@ if [[ "$(uname)" == 'Darwin' ]]; then
    XML_DUMP=~/Downloads/enwiki-sample-pages-articles.xml.bz2
 fi
 cd input
-if [ ! -f chunks/0.csv ]; then
+if [ ! -f chunks/manifest.tsv ]; then
   mvn -f wikiapi/pom.xml -q clean compile assembly:single
-  bzcat $XML_DUMP | java -jar wikiapi/target/wikiapi*.jar
+  # Continues from the last checkpoint of an interrupted run
+  java -jar wikiapi/target/wikiapi*.jar --checkpoint 200000 --resume --title-ids --normalize $XML_DUMP
   # Make read-only
-  chmod 400 chunks/*.csv
+  chmod 400 chunks/*
 fi
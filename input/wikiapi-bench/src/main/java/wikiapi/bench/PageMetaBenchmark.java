@@ -0,0 +1,36 @@
+package wikiapi.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import wikiapi.processors.PageMeta;
+
+/**
+ * Pages per second through the PageMeta constructor and the accessors used
+ * by the dumper
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PageMetaBenchmark {
+
+  @Benchmark
+  public void pageMeta(Corpus corpus, Blackhole sink) {
+    PageMeta meta = new PageMeta(corpus.next());
+    sink.consume(meta.getRedirectedTitle());
+    sink.consume(meta.isDisambiguationPage());
+    sink.consume(meta.getCategories());
+  }
+
+}
@@ -0,0 +1,125 @@
+package wikiapi.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import info.bliki.wiki.dump.WikiArticle;
+import info.bliki.wiki.model.WikiModel;
+import wikiapi.LinkBuffer;
+import wikiapi.RenderContext;
+import wikiapi.WikiDumpParser;
+import wikiapi.WikiDumpParser.Href;
+import wikiapi.processors.LinkAnnotationConverter;
+import wikiapi.processors.PageMeta;
+import wikiapi.processors.PlainTextWikiModel;
+
+/**
+ * Pages per second through the wikitext to annotation path
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderBenchmark {
+
+  /**
+   * A parser whose output is consumed by the benchmark
+   */
+  @State(Scope.Thread)
+  public static class Parser {
+    WikiDumpParser parser;
+    Blackhole sink;
+    final LinkBuffer links = new LinkBuffer();
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole sink) {
+      this.sink = sink;
+      parser = new WikiDumpParser(1) {
+        @Override
+        public void processAnnotation(WikiArticle page, PageMeta meta,
+            String text, List<Href> links, int jobId) {
+          processAnnotation(page, meta, text, LinkBuffer.of(links), jobId);
+        }
+
+        @Override
+        public void processAnnotation(WikiArticle page, PageMeta meta,
+            String text, LinkBuffer links, int jobId) {
+          Parser.this.sink.consume(text);
+          Parser.this.sink.consume(links);
+          Parser.this.sink.consume(meta);
+        }
+      }.silence();
+    }
+  }
+
+  /**
+   * PlainTextWikiModel.render with a LinkAnnotationConverter collecting the
+   * links
+   */
+  @Benchmark
+  public LinkBuffer render(Corpus corpus, Parser parser, Blackhole sink)
+      throws Exception {
+    WikiArticle page = corpus.next();
+    WikiModel model = new PlainTextWikiModel(corpus.siteinfo, null);
+    model.setUp();
+    LinkBuffer links = parser.links;
+    links.clear();
+    LinkAnnotationConverter converter = new LinkAnnotationConverter() {
+      @Override
+      public void hasLink(int charStart, int charEnd, String href) {
+        links.add(href, charStart, charEnd);
+      }
+    };
+    sink.consume(model.render(converter, page.getText()));
+    return links;
+  }
+
+  /**
+   * The rendering context a parsing thread keeps from page to page
+   */
+  @State(Scope.Thread)
+  public static class Reused {
+    RenderContext context;
+
+    @Setup(Level.Trial)
+    public void setUp(Corpus corpus) {
+      context = new RenderContext(corpus.siteinfo, null);
+    }
+  }
+
+  /**
+   * The same with the model, converter and buffers of a RenderContext
+   * reused
+   */
+  @Benchmark
+  public LinkBuffer renderReused(Corpus corpus, Reused reused,
+      Blackhole sink) {
+    sink.consume(reused.context.render(corpus.next().getText()));
+    return reused.context.links();
+  }
+
+  /**
+   * The whole job of a page as run by WikiDumpParser, rendering and
+   * PageMeta included
+   */
+  @Benchmark
+  public void task(Corpus corpus, Parser parser) {
+    parser.parser.createTask(corpus.next(), corpus.siteinfo, 0).run();
+  }
+
+}
@@ -0,0 +1,101 @@
+package wikiapi.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import info.bliki.wiki.dump.WikiArticle;
+import wikiapi.RowEncoder;
+import wikiapi.Utils;
+import wikiapi.WikiDumpParser;
+import wikiapi.WikiDumpParser.Href;
+import wikiapi.processors.PageMeta;
+
+/**
+ * Pages per second through the row encoding of CSVDumper: the page row and
+ * the link rows of a rendered page
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RowEncoderBenchmark {
+
+  static class Rendered {
+    String id;
+    String title;
+    String text;
+    boolean disamb;
+    List<String> categories;
+    List<Href> links;
+  }
+
+  @State(Scope.Thread)
+  public static class Rows {
+    @Param({ "CSV", "BINARY" })
+    public RowEncoder.Format format;
+
+    RowEncoder encoder;
+    List<Rendered> pages = new ArrayList<>();
+    int next = 0;
+
+    @Setup(Level.Trial)
+    public void render(Corpus corpus) {
+      encoder = format.newEncoder();
+      WikiDumpParser parser = new WikiDumpParser(1) {
+        @Override
+        public void processAnnotation(WikiArticle page, PageMeta meta,
+            String text, List<Href> links, int jobId) {
+          if (meta.isRedirect()) {
+            return;
+          }
+          Rendered r = new Rendered();
+          r.id = page.getId();
+          r.title = Utils.str2wikilink(page.getTitle());
+          r.text = text;
+          r.disamb = meta.isDisambiguationPage();
+          r.categories = meta.getCategories();
+          r.links = links;
+          pages.add(r);
+        }
+      }.silence();
+      for (WikiArticle page : corpus.pages) {
+        parser.createTask(page, corpus.siteinfo, 0).run();
+      }
+    }
+
+    Rendered next() {
+      Rendered page = pages.get(next);
+      next = next + 1 == pages.size() ? 0 : next + 1;
+      return page;
+    }
+  }
+
+  @Benchmark
+  public byte[] encode(Rows rows) {
+    Rendered page = rows.next();
+    RowEncoder encoder = rows.encoder;
+    encoder.page(page.id, page.title, page.text, page.disamb,
+        page.categories);
+    for (Href h : page.links) {
+      encoder.link(page.id, h.start, h.end, page.text, h.normalizedLink());
+    }
+    return encoder.toBytes();
+  }
+
+}
@@ -0,0 +1,66 @@
+package wikiapi.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import info.bliki.wiki.dump.WikiArticle;
+import wikiapi.Utils;
+
+/**
+ * Titles per second through Utils.str2wikilink, on the page titles and link
+ * targets of the corpus
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TitleBenchmark {
+
+  private static final Pattern LINK = Pattern.compile("\\[\\[([^\\]|\\n]+)");
+
+  @State(Scope.Thread)
+  public static class Titles {
+    List<String> titles = new ArrayList<>();
+    int next = 0;
+
+    @Setup(Level.Trial)
+    public void load(Corpus corpus) {
+      for (WikiArticle page : corpus.pages) {
+        titles.add(page.getTitle());
+        Matcher m = LINK.matcher(page.getText());
+        while (m.find()) {
+          titles.add(m.group(1));
+        }
+      }
+    }
+
+    String next() {
+      String title = titles.get(next);
+      next = next + 1 == titles.size() ? 0 : next + 1;
+      return title;
+    }
+  }
+
+  @Benchmark
+  public String str2wikilink(Titles titles) {
+    return Utils.str2wikilink(titles.next());
+  }
+
+}
@@ -0,0 +1,72 @@
+package wikiapi.processors;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import info.bliki.wiki.dump.WikiArticle;
+import wikiapi.bench.Corpus;
+
+/**
+ * Content tokens per second through LinkAnnotationConverter.cleanContent,
+ * on the paragraphs of the corpus
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CleanContentBenchmark {
+
+  @State(Scope.Thread)
+  public static class Contents {
+    List<String> contents = new ArrayList<>();
+    int next = 0;
+    final LinkAnnotationConverter converter = new LinkAnnotationConverter() {
+      @Override
+      public void hasLink(int charStart, int charEnd, String link) {
+      }
+    };
+    final StringBuilder out = new StringBuilder();
+
+    @Setup(Level.Trial)
+    public void load(Corpus corpus) {
+      for (WikiArticle page : corpus.pages) {
+        for (String paragraph : page.getText().split("\n\n")) {
+          if (!paragraph.isEmpty()) {
+            contents.add(paragraph);
+          }
+        }
+      }
+    }
+
+    String next() {
+      String content = contents.get(next);
+      next = next + 1 == contents.size() ? 0 : next + 1;
+      return content;
+    }
+  }
+
+  @Benchmark
+  public int cleanContent(Contents contents) throws IOException {
+    StringBuilder out = contents.out;
+    out.setLength(0);
+    contents.converter.cleanContent(contents.next(), out);
+    return out.length();
+  }
+
+}
@@ -0,0 +1,176 @@
+package wikiapi;
+
+import java.util.List;
+
+/**
+ * Encodes rows in the PostgreSQL binary COPY format, numbers and booleans are
+ * written natively and categories as a one dimensional text[]
+ *
+ */
+public class BinaryRowEncoder extends RowEncoder {
+
+  static final byte[] HEADER = { 'P', 'G', 'C', 'O', 'P', 'Y', '\n',
+      (byte) 0xff, '\r', '\n', 0,
+      // Flags
+      0, 0, 0, 0,
+      // Header extension length
+      0, 0, 0, 0 };
+  static final byte[] TRAILER = { (byte) 0xff, (byte) 0xff };
+
+  private static final int TEXT_OID = 25;
+
+  @Override
+  public RowEncoder page(String id, String title, String content,
+      boolean disamb, List<String> categories) {
+    putShort(5 + idCount);
+    putInt8(Long.parseLong(id));
+    putText(title);
+    putText(content);
+    putInt(1);
+    put((byte) (disamb ? 1 : 0));
+    putTextArray(categories);
+    putIds();
+    return endRow();
+  }
+
+  @Override
+  public RowEncoder link(String pageId, int start, int end, String text,
+      String title) {
+    putShort(5 + idCount);
+    putInt8(Long.parseLong(pageId));
+    putInt4(start);
+    putInt4(end);
+    putText(text, start, end);
+    putText(title);
+    putIds();
+    return endRow();
+  }
+
+  @Override
+  public RowEncoder link(String pageId, int start, int end, String text,
+      CharSequence title, int titleStart, int titleEnd) {
+    putShort(5 + idCount);
+    putInt8(Long.parseLong(pageId));
+    putInt4(start);
+    putInt4(end);
+    putText(text, start, end);
+    putText(title, titleStart, titleEnd);
+    putIds();
+    return endRow();
+  }
+
+  @Override
+  public RowEncoder redirect(String title, String target) {
+    putShort(2 + idCount);
+    putText(title);
+    putText(target);
+    putIds();
+    return endRow();
+  }
+
+  @Override
+  public RowEncoder deletion(String pageId, String title) {
+    putShort(2);
+    putInt8(Long.parseLong(pageId));
+    putText(title);
+    return endRow();
+  }
+
+  @Override
+  public RowEncoder normalizedLink(long pageId, int start, int end,
+      CharSequence surface, int surfaceStart, int surfaceEnd,
+      CharSequence title, long linkId) {
+    putShort(6);
+    putInt8(pageId);
+    putInt4(start);
+    putInt4(end);
+    putText(surface, surfaceStart, surfaceEnd);
+    putText(title);
+    putInt8(linkId);
+    return endRow();
+  }
+
+  @Override
+  public RowEncoder linkCount(CharSequence surface, CharSequence title,
+      long count) {
+    putShort(3);
+    putText(surface);
+    putText(title);
+    putInt8(count);
+    return endRow();
+  }
+
+  @Override
+  public RowEncoder title(int id, CharSequence title) {
+    putShort(2);
+    putInt4(id);
+    putText(title);
+    return endRow();
+  }
+
+  private void putIds() {
+    for (int i = 0; i < idCount; i++) {
+      if (nullIds) {
+        putInt(-1);
+      } else {
+        putInt4(id(i));
+      }
+    }
+  }
+
+  private void putInt8(long v) {
+    putInt(8);
+    putLong(v);
+  }
+
+  private void putInt4(int v) {
+    putInt(4);
+    putInt(v);
+  }
+
+  /**
+   * Length prefixed UTF-8. Null and empty strings are both NULL, the same as
+   * loading the unquoted empty csv field
+   */
+  private void putText(CharSequence s) {
+    if (s == null || s.length() == 0) {
+      putInt(-1);
+      return;
+    }
+    putText(s, 0, s.length());
+  }
+
+  private void putText(CharSequence s, int start, int end) {
+    if (start == end) {
+      putInt(-1);
+      return;
+    }
+    putString(s, start, end);
+  }
+
+  private void putString(CharSequence s, int start, int end) {
+    int lengthAt = len;
+    putInt(0);
+    putUtf8(s, start, end);
+    putIntAt(lengthAt, len - lengthAt - 4);
+  }
+
+  private void putTextArray(List<String> values) {
+    int lengthAt = len;
+    putInt(0);
+    putInt(values.isEmpty() ? 0 : 1);
+    // No nulls
+    putInt(0);
+    putInt(TEXT_OID);
+    if (!values.isEmpty()) {
+      putInt(values.size());
+      // Lower bound
+      putInt(1);
+      for (String value : values) {
+        putString(value, 0, value.length());
+      }
+    }
+    putIntAt(lengthAt, len - lengthAt - 4);
+  }
+
+}
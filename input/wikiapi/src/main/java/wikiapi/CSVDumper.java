@@ -1,16 +1,9 @@
 package wikiapi;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
-
-import org.apache.commons.lang3.StringEscapeUtils;
 
 import info.bliki.wiki.dump.WikiArticle;
 import wikiapi.WikiDumpParser.Href;
@@ -24,117 +17,411 @@ import wikiapi.processors.PageMeta;
  */
 public class CSVDumper {
   
+  private static final File CHECKPOINT = new File("chunks/checkpoint.tsv");
+  
   /**
-   * Converts objects into a single csv line including line break
-   * @param fields
-   * @return
+   * Writes to chunks/&lt;name&gt;&lt;chunk&gt;[.&lt;part&gt;].&lt;extension&gt;,
+   * or COPYs the columns into the table if a database sink is given
    */
-  private static String csvLine(Object... fields) {
-    return Arrays.stream(fields)
-        .map(String::valueOf)
-        .map(StringEscapeUtils::escapeCsv)
-        .collect(Collectors.joining(",")) + "\n";
-  }
-  
-  private static String csvIntArr(IntStream st) {
-    return st.mapToObj(String::valueOf)
-        .collect(Collectors.joining(",", "\"{", "}\""));
-  }
-  
-  private static String csvStrArr(Stream<String> st) {
-    String escaped = st.map(s->"\""+s.replace("\\","\\\\").replace("\"", "\\\"")+"\"")
-        .collect(Collectors.joining(",", "{", "}"));
-    return escaped;
-  }
-  
-  private static List<FileWriter> chunkedWriters(String filenameFormat, int chunks){
-    return IntStream.range(0, chunks)
-    .boxed()
-    .map(i-> {
-      try {
-        return new FileWriter(String.format(filenameFormat, i));
-      } catch (Exception e) {
-        e.printStackTrace();
-        System.exit(0);
-      }
-      return null;
-      })
-    .collect(Collectors.toList());
-  }
-  
-  private static void write(List<FileWriter> writers,int jobId,String output){
-    FileWriter writer = writers.get(jobId%writers.size());
-    try {
-      synchronized(writer){
-        writer.write(output);
-      }
-    } catch (IOException e) {
-      e.printStackTrace();
+  private static ChunkedWriter output(String name, String table,
+      String columns, CopySink copy, int chunks, RowEncoder.Format format,
+      ChunkedWriter.Codec codec, long rotateAt, Manifest manifest)
+      throws IOException {
+    if (copy != null) {
+      return copy.open(table, columns, chunks, format);
     }
+    return ChunkedWriter.files("chunks/" + name, "." + format.extension,
+        chunks, format.header(), format.trailer())
+        .compress(codec)
+        .rotateAt(rotateAt)
+        .record(manifest);
   }
   
-  private static void closeWriters(List<FileWriter> writers) throws IOException{
-    for(FileWriter w:writers){
-      w.close();
+  /**
+   * @param size bytes with an optional k, m or g suffix
+   * @return
+   */
+  private static long parseSize(String size) {
+    String digits = size.toLowerCase();
+    long unit;
+    switch (digits.charAt(digits.length() - 1)) {
+    case 'g':
+      unit = 1L << 30;
+      break;
+    case 'm':
+      unit = 1L << 20;
+      break;
+    case 'k':
+      unit = 1L << 10;
+      break;
+    default:
+      return Long.parseLong(digits);
     }
+    return Long.parseLong(digits.substring(0, digits.length() - 1)) * unit;
   }
   
-  private static String linkCsv(String id, String text, Href h){
-    return csvLine(id, h.start, h.end, h.getSurface(text), h.normalizedLink());
+  /**
+   * Removes the output files that are not part of the checkpoint
+   */
+  private static void removeUnlisted(File dir, Manifest manifest) {
+    for (File file : dir.listFiles()) {
+      if (file.isFile() && !file.equals(CHECKPOINT)
+          && !manifest.contains(file.getPath())) {
+        file.delete();
+      }
+    }
   }
   
+  /**
+   * Usage: CSVDumper [--copy [jdbc url]] [--binary] [--chunks n]
+   *     [--compress gzip|zstd] [--rotate size] [--checkpoint pages]
+   *     [--resume] [--previous dir [--partial]] [--title-ids]
+   *     [--normalize [--count-memory size]] [--page-budget ms]
+   *     [--page-output size] [--slow-pages file] [dump file]
+   * 
+   * Reads the dump from stdin if no file is given. With --copy the rows are
+   * streamed into the pages, links and redirects tables instead of chunks/,
+   * and committed only once the whole dump is loaded.
+   * With --binary rows are written in the PostgreSQL binary COPY format to
+   * chunks/*.bin, loadable with COPY ... FROM ... WITH BINARY.
+   * 
+   * Each table is written to --chunks files or COPY streams (10 by default).
+   * Files are compressed with --compress and a chunk moves on to a new file
+   * once the current one holds --rotate uncompressed bytes, e.g. 512m. The
+   * files, their row counts and sizes are listed in chunks/manifest.tsv.
+   * 
+   * With --checkpoint the parse pauses every given number of pages until the
+   * pages before are written, closes the current files and records them in
+   * chunks/checkpoint.tsv. --resume continues from that checkpoint with the
+   * same dump and options, starting over if there is none. Checkpoints are
+   * not supported with --copy.
+   * 
+   * Every file output run records the hashes of its pages in chunks/hashes*.
+   * Given the output directory of a previous run with --previous, only pages
+   * that are new or changed are rendered, and the outdated rows of the
+   * previous run are listed in chunks/delete*, as deletes(page_id, title).
+   * The database is patched by deleting the listed pages, their links and
+   * the redirects with their titles, then loading the rows of this run. With
+   * --partial the dump is an adds/changes dump and pages missing from it are
+   * kept.
+   * 
+   * With --title-ids every title gets an int id, appended to the rows as
+   * pages(..., title_id), links(..., title_id) and redirects(..., title_id,
+   * target_id), and the ids are written sorted by title to
+   * chunks/title*, as titles(title_id, title). Resumed and incremental runs
+   * keep the ids of the run they continue, the titles table is replaced as
+   * a whole. Without it the id columns of the files are NULL, and --copy
+   * leaves them to the table defaults.
+   * 
+   * With --normalize the links are also written to chunks/normalized_link*
+   * as normalized_links(page_id, char_start, char_end, surface, title,
+   * link_id), with the title resolved through all redirects and the id of
+   * its page, -1 if none, once the whole dump is parsed. The links are
+   * counted by surface and resolved title into chunks/link_count*, as
+   * link_counts(surface, title, count), spilling sorted runs to disk once the
+   * counts and their surfaces take --count-memory bytes, a quarter of the
+   * heap by default.
+   * It needs file output and is not supported with --previous.
+   * 
+   * --page-budget and --page-output limit the time and plain text size of
+   * rendering a page. A page over either is rendered again without its
+   * tables and templates, and is written without text and links if that is
+   * over too. Such pages are listed in --slow-pages, slow_pages.tsv by
+   * default, see {@link RenderBudget}.
+   * 
+   * @param args
+   */
   public static void main(String[] args) {
-    // Path to the output folder
-    new File("chunks/").mkdirs();
     int chunks = 10;
+    String dump = null;
+    String copyUrl = null;
+    RowEncoder.Format format = RowEncoder.Format.CSV;
+    ChunkedWriter.Codec codec = ChunkedWriter.Codec.NONE;
+    long rotateAt = Long.MAX_VALUE;
+    int checkpointEvery = 0;
+    boolean resume = false;
+    String previousRun = null;
+    boolean partial = false;
+    boolean titleIds = false;
+    boolean normalize = false;
+    long countMemory = Runtime.getRuntime().maxMemory() / 4;
+    long pageBudget = 0;
+    long pageOutput = 0;
+    String slowPages = "slow_pages.tsv";
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+      case "--copy":
+        copyUrl = i + 1 < args.length && args[i + 1].startsWith("jdbc:") ? 
+            args[++i] : CopySink.defaultUrl();
+        break;
+      case "--binary":
+        format = RowEncoder.Format.BINARY;
+        break;
+      case "--chunks":
+        chunks = Integer.parseInt(args[++i]);
+        break;
+      case "--compress":
+        codec = ChunkedWriter.Codec.valueOf(args[++i].toUpperCase());
+        break;
+      case "--rotate":
+        rotateAt = parseSize(args[++i]);
+        break;
+      case "--checkpoint":
+        checkpointEvery = Integer.parseInt(args[++i]);
+        break;
+      case "--resume":
+        resume = true;
+        break;
+      case "--previous":
+        previousRun = args[++i];
+        break;
+      case "--partial":
+        partial = true;
+        break;
+      case "--title-ids":
+        titleIds = true;
+        break;
+      case "--normalize":
+        normalize = true;
+        break;
+      case "--count-memory":
+        countMemory = parseSize(args[++i]);
+        break;
+      case "--page-budget":
+        pageBudget = Long.parseLong(args[++i]);
+        break;
+      case "--page-output":
+        pageOutput = parseSize(args[++i]);
+        break;
+      case "--slow-pages":
+        slowPages = args[++i];
+        break;
+      default:
+        dump = args[i];
+      }
+    }
+    if (copyUrl != null && (checkpointEvery > 0 || resume)) {
+      System.err.println("Checkpoints are not supported with --copy");
+      System.exit(-1);
+    }
+    if (previousRun != null && (copyUrl != null
+        || new File(previousRun).getAbsoluteFile().equals(
+            new File("chunks").getAbsoluteFile()))) {
+      System.err.println("--previous needs file output, and the previous "
+          + "output moved out of chunks/");
+      System.exit(-1);
+    }
+    if (normalize && (copyUrl != null || previousRun != null)) {
+      System.err.println("--normalize needs file output of the whole dump");
+      System.exit(-1);
+    }
     
-    List<FileWriter> pageWriters = chunkedWriters("chunks/page%d.csv",chunks);
-    List<FileWriter> linkWriters = chunkedWriters("chunks/link%d.csv",chunks);
-    List<FileWriter> redirectWriters = chunkedWriters("chunks/redirect%d.csv",chunks);
-    
+    CopySink copy = copyUrl == null ? null : new CopySink(copyUrl);
     try {
+      // Path to the output folder, without the manifest of an earlier run
+      Manifest manifest = null;
+      Checkpoint checkpoint = null;
+      if (copyUrl == null) {
+        new File("chunks/").mkdirs();
+        new File("chunks/manifest.tsv").delete();
+        manifest = new Manifest("chunks/manifest.tsv");
+        if (resume && CHECKPOINT.exists()) {
+          checkpoint = Checkpoint.read(CHECKPOINT, manifest);
+          removeUnlisted(new File("chunks/"), manifest);
+          System.err.println("Resuming from " + checkpoint);
+        }
+      }
+      // COPY only names the id columns it writes, files always have them
+      String idColumn = titleIds ? ", title_id" : "";
+      ChunkedWriter pageWriters = output("page", "pages",
+          "page_id, title, content, disamb, categories" + idColumn, copy,
+          chunks, format, codec, rotateAt, manifest);
+      ChunkedWriter linkWriters = output("link", "links",
+          "page_id, char_start, char_end, surface, title" + idColumn, copy,
+          chunks, format, codec, rotateAt, manifest);
+      ChunkedWriter redirectWriters = output("redirect", "redirects",
+          "title, target" + (titleIds ? ", title_id, target_id" : ""), copy,
+          chunks, format, codec, rotateAt, manifest);
+      // Page hashes for the next incremental run, deletions for this one
+      ChangeTracker changes = null;
+      if (manifest != null) {
+        ChunkedWriter state = ChunkedWriter.files("chunks/"
+            + ChangeTracker.STATE, ".bin", 1, new byte[0], new byte[0])
+            .record(manifest);
+        changes = previousRun == null ? new ChangeTracker(state, manifest)
+            : new ChangeTracker(state, manifest, new File(previousRun),
+                output("delete", "deletes", "page_id, title", null, 1, format,
+                    codec, rotateAt, manifest), format, partial);
+      }
+      // Ids of the titles, kept from the run that is continued
+      TitleDictionary dictionary = null;
+      if (titleIds || normalize) {
+        ChunkedWriter state = manifest == null ? null : ChunkedWriter.files(
+            "chunks/" + TitleDictionary.STATE, ".bin", 1, new byte[0],
+            new byte[0]).record(manifest);
+        dictionary = new TitleDictionary(state, !titleIds ? null : output(
+            "title", "titles", "title_id, title", copy, 1, format, codec,
+            rotateAt, manifest), format);
+        if (checkpoint != null) {
+          dictionary.load(manifest.files(TitleDictionary.STATE), false);
+        } else if (previousRun != null) {
+          dictionary.load(Manifest.read(new File(previousRun, "manifest.tsv"))
+              .files(TitleDictionary.STATE), true);
+        }
+      }
+      TitleDictionary titles = dictionary;
+      LinkNormalizer normalizer = !normalize ? null : new LinkNormalizer(
+          titles, manifest, output("normalized_link", "normalized_links",
+              "page_id, char_start, char_end, surface, title, link_id", copy,
+              chunks, format, codec, rotateAt, manifest), format)
+          .countLinks(output("link_count", "link_counts",
+              "surface, title, count", copy, chunks,
+              format, codec, rotateAt, manifest), countMemory);
+      boolean idColumns = titleIds;
+      boolean nullIds = !titleIds && copy == null;
+      // Reusable row buffers of the render threads
+      ThreadLocal<RowEncoder> encoders = ThreadLocal.withInitial(format::newEncoder);
+      
       WikiDumpParser parser = new WikiDumpParser() {
         @Override
         public void processAnnotation(WikiArticle page, PageMeta meta,
-            String plain, List<Href> links,int jobId) {
+            String plain, List<Href> links, int jobId) {
+          processAnnotation(page, meta, plain, LinkBuffer.of(links), jobId);
+        }
+
+        @Override
+        public void processAnnotation(WikiArticle page, PageMeta meta,
+            String plain, LinkBuffer links,int jobId) {
           
+          RowEncoder rows = encoders.get();
           String title = Utils.str2wikilink(page.getTitle());
           // Write redirects
           String redirectTarget = meta.getRedirectedTitle();
           if (redirectTarget != null) {
-            String redirectStr = csvLine(title, meta.getRedirectedTitle());
-            write(redirectWriters,jobId,redirectStr);
+            if (titles != null) {
+              int titleId = titles.id(title, 0, title.length());
+              int targetId = titles.id(redirectTarget, 0,
+                  redirectTarget.length());
+              if (idColumns) {
+                rows.ids(titleId, targetId);
+              }
+              if (normalizer != null) {
+                normalizer.redirect(jobId, titleId, targetId);
+              }
+            }
+            if (nullIds) {
+              rows.nullIds(2);
+            }
+            rows.redirect(title, redirectTarget);
+            redirectWriters.write(jobId, rows);
             return;
           }
 
-          // Fields to to join in CSV
-          String id = page.getId();
-          Boolean disamb = meta.isDisambiguationPage();
-          // Array strings
-          String categoryStr = csvStrArr(meta.getCategories().stream());
-          
           // Write page dumps
-          String pageStr = csvLine(id, title, plain, disamb, categoryStr);
-          write(pageWriters, jobId, pageStr);
+          String id = page.getId();
+          if (titles != null) {
+            int titleId = titles.id(title, 0, title.length());
+            if (idColumns) {
+              rows.ids(titleId);
+            }
+            if (normalizer != null) {
+              normalizer.page(jobId, id, titleId, plain, links);
+            }
+          }
+          if (nullIds) {
+            rows.nullIds(1);
+          }
+          rows.page(id, title, plain, meta.isDisambiguationPage(),
+              meta.getCategories());
+          pageWriters.write(jobId, rows);
           
           if (!links.isEmpty()){
-            String linkStr = links.stream()
-                .map(h -> linkCsv(id, plain, h))
-                .collect(Collectors.joining());
-            
-            write(linkWriters, jobId, linkStr);
+            CharSequence targets = links.targets();
+            for (int i = 0; i < links.size(); i++) {
+              if (idColumns) {
+                rows.ids(titles.id(targets, links.targetStart(i),
+                    links.targetEnd(i)));
+              } else if (nullIds) {
+                rows.nullIds(1);
+              }
+              rows.link(id, links.start(i), links.end(i), plain, targets,
+                  links.targetStart(i), links.targetEnd(i));
+            }
+            linkWriters.write(jobId, rows);
           }
           
         }
       };
-      // Start the parsing process
-      InputStream in = System.in;//CSVDumper.class.getResourceAsStream("test.xml");
-      parser.parseDump(in);
-      closeWriters(pageWriters);
-      closeWriters(linkWriters);
-      closeWriters(redirectWriters);
+      // Flushed and closed once all pages are written
+      parser.closeOnFinish(pageWriters)
+          .closeOnFinish(linkWriters)
+          .closeOnFinish(redirectWriters);
+      ChangeTracker tracker = changes;
+      if (tracker != null) {
+        parser.skipPages(tracker::unchanged).closeOnFinish(tracker);
+      }
+      if (normalizer != null) {
+        parser.closeOnFinish(normalizer);
+      }
+      if (titles != null) {
+        parser.closeOnFinish(titles);
+      }
+      if (checkpoint != null) {
+        parser.resumeFrom(checkpoint);
+      }
+      if (pageBudget > 0 || pageOutput > 0) {
+        RenderBudget budget = new RenderBudget(pageBudget,
+            (int) Math.min(pageOutput, Integer.MAX_VALUE),
+            new File(slowPages));
+        parser.setRenderBudget(budget).closeOnFinish(budget);
+      }
+      if (checkpointEvery > 0) {
+        Manifest written = manifest;
+        parser.checkpointEvery(checkpointEvery, c -> {
+          pageWriters.rotate();
+          linkWriters.rotate();
+          redirectWriters.rotate();
+          if (tracker != null) {
+            tracker.rotate();
+          }
+          if (normalizer != null) {
+            normalizer.rotate();
+          }
+          if (titles != null) {
+            titles.rotate();
+          }
+          c.write(CHECKPOINT, written);
+          System.err.println("Saved " + c);
+        });
+      }
+      // Start the parsing process, reading the dump file if given
+      if (dump != null) {
+        parser.parseDump(dump);
+      } else {
+        InputStream in = System.in;//CSVDumper.class.getResourceAsStream("test.xml");
+        parser.parseDump(in);
+      }
+      if (copy != null) {
+        copy.commit();
+      }
+      // Only a complete output gets a manifest
+      if (manifest != null) {
+        manifest.close();
+        CHECKPOINT.delete();
+      }
+      if (normalizer != null) {
+        normalizer.deleteSpills();
+      }
     } catch (Exception e) {
       e.printStackTrace();
+    } finally {
+      if (copy != null) {
+        try {
+          copy.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
     }
 
   }
@@ -0,0 +1,132 @@
+package wikiapi;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import info.bliki.wiki.dump.WikiArticle;
+
+/**
+ * Records the content hash of every page of the dump as the state of the
+ * run, and with the state of a previous run tells which pages are unchanged
+ * and need not be rendered again.
+ *
+ * On close the pages whose rows of the previous run are outdated, because
+ * they changed or are gone from the dump, are written as deletion rows with
+ * their previous title. Patching the database with the deletions and then
+ * the rows of the run is the same as loading the full dump. For partial
+ * (adds/changes) dumps, pages missing from the dump are kept instead and
+ * their state is carried over.
+ *
+ */
+public class ChangeTracker implements Closeable {
+
+  /**
+   * Name of the state files in the manifest
+   */
+  public static final String STATE = "hashes";
+
+  private final ChunkedWriter state;
+  private final Manifest manifest;
+  private final List<File> previousFiles;
+  private final PageHashes previous;
+  private final ChunkedWriter deletions;
+  private final RowEncoder rows;
+  private final boolean partial;
+
+  /**
+   * Only records the state of the run
+   *
+   * @param state writer of the state files
+   * @param manifest lists the state files
+   */
+  public ChangeTracker(ChunkedWriter state, Manifest manifest) {
+    this.state = state;
+    this.manifest = manifest;
+    this.previousFiles = Collections.emptyList();
+    this.previous = null;
+    this.deletions = null;
+    this.rows = null;
+    this.partial = false;
+  }
+
+  /**
+   * @param state writer of the state files
+   * @param manifest lists the state files
+   * @param previousRun output directory of the previous run
+   * @param deletions writer of the deletion rows
+   * @param format row format of the deletions
+   * @param partial whether the dump only holds added and changed pages
+   * @throws IOException
+   */
+  public ChangeTracker(ChunkedWriter state, Manifest manifest,
+      File previousRun, ChunkedWriter deletions, RowEncoder.Format format,
+      boolean partial) throws IOException {
+    this.state = state;
+    this.manifest = manifest;
+    this.previousFiles = Manifest.read(new File(previousRun, "manifest.tsv"))
+        .files(STATE);
+    this.previous = PageHashes.read(previousFiles);
+    this.deletions = deletions;
+    this.rows = format.newEncoder();
+    this.partial = partial;
+    System.err.println("Loaded " + previous.size() + " page hashes of "
+        + previousRun);
+  }
+
+  /**
+   * Records the hash of the page, called once for every page of the dump
+   *
+   * @param page
+   * @return whether the page is the same as in the previous run
+   */
+  public boolean unchanged(WikiArticle page) {
+    long id = Long.parseLong(page.getId());
+    long hash = PageHashes.hash(page);
+    byte[] record = PageHashes.record(id, hash,
+        Utils.str2wikilink(page.getTitle()));
+    state.write(0, record, 1);
+    if (previous == null) {
+      return false;
+    }
+    int i = previous.indexOf(id);
+    return i >= 0 && previous.hash(i) == hash;
+  }
+
+  /**
+   * Closes the current state file, see {@link ChunkedWriter#rotate()}
+   *
+   * @throws IOException
+   */
+  public void rotate() throws IOException {
+    state.rotate();
+  }
+
+  /**
+   * Writes the deletions, to be called after all pages are recorded
+   */
+  @Override
+  public void close() throws IOException {
+    if (previous != null) {
+      state.rotate();
+      PageHashes current = PageHashes.read(manifest.files(STATE));
+      PageHashes.forEach(previousFiles, (id, hash, title) -> {
+        int i = current.indexOf(id);
+        if (i < 0 && partial) {
+          state.write(0, PageHashes.record(id, hash, title), 1);
+        } else if (i < 0 || current.hash(i) != hash) {
+          rows.deletion(String.valueOf(id), title);
+          if (rows.rowCount() == 1024) {
+            deletions.write(0, rows);
+          }
+        }
+      });
+      deletions.write(0, rows);
+      deletions.close();
+    }
+    state.close();
+  }
+
+}
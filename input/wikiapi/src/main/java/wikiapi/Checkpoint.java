@@ -0,0 +1,90 @@
+package wikiapi;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A consistent point of a dump parse: every job before {@link #jobs} is
+ * written to the output files listed in the manifest, and no job after it.
+ * Stored as tab separated key and value lines followed by the manifest.
+ *
+ */
+public class Checkpoint {
+
+  /**
+   * Number of jobs submitted and finished
+   */
+  public final int jobs;
+  /**
+   * Id of the page of the last job, null if unknown
+   */
+  public final String lastPageId;
+  /**
+   * Byte offset in the dump after the last job, -1 if the dump can not be
+   * entered at an offset
+   */
+  public final long offset;
+
+  public Checkpoint(int jobs, String lastPageId, long offset) {
+    this.jobs = jobs;
+    this.lastPageId = lastPageId;
+    this.offset = offset;
+  }
+
+  /**
+   * Durably replaces the checkpoint file
+   *
+   * @param file
+   * @param manifest files written up to this point
+   * @throws IOException
+   */
+  public void write(File file, Manifest manifest) throws IOException {
+    Manifest.write(file, out -> {
+      out.print("jobs\t" + jobs + "\n");
+      out.print("last_page_id\t" + lastPageId + "\n");
+      out.print("offset\t" + offset + "\n");
+      manifest.writeTo(out);
+    });
+  }
+
+  /**
+   * Reads a checkpoint, adding the files listed in it to the manifest
+   *
+   * @param file
+   * @param manifest
+   * @return
+   * @throws IOException
+   */
+  public static Checkpoint read(File file, Manifest manifest)
+      throws IOException {
+    try (BufferedReader in = new BufferedReader(new InputStreamReader(
+        new FileInputStream(file), StandardCharsets.UTF_8))) {
+      int jobs = Integer.parseInt(value(in, "jobs"));
+      String lastPageId = value(in, "last_page_id");
+      long offset = Long.parseLong(value(in, "offset"));
+      manifest.readFrom(in);
+      return new Checkpoint(jobs,
+          "null".equals(lastPageId) ? null : lastPageId, offset);
+    }
+  }
+
+  private static String value(BufferedReader in, String key)
+      throws IOException {
+    String line = in.readLine();
+    if (line == null || !line.startsWith(key + "\t")) {
+      throw new IOException("Expected " + key + " in checkpoint: " + line);
+    }
+    return line.substring(key.length() + 1);
+  }
+
+  @Override
+  public String toString() {
+    return "Checkpoint [jobs=" + jobs + ", lastPageId=" + lastPageId
+        + ", offset=" + offset + "]";
+  }
+
+}
@@ -0,0 +1,435 @@
+package wikiapi;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPOutputStream;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Spreads output over a fixed number of chunks. Each chunk is owned by a
+ * dedicated writer thread that drains a bounded queue of encoded blocks into
+ * a large buffer, so producers never wait on a monitor or a system call, only
+ * on a full queue. Compression happens on the writer threads, in parallel
+ * across chunks.
+ *
+ * A chunk is written as one or more parts named &lt;prefix&gt;&lt;chunk&gt;
+ * [.&lt;part&gt;]&lt;suffix&gt;, a new part is started whenever the current
+ * one reaches the rotation size. Every part starts with the header and ends
+ * with the trailer, and is recorded in the manifest once closed. Parts
+ * already in the manifest, e.g. from a checkpoint, are never overwritten.
+ *
+ * Blocks written with the same job id always land in the same chunk.
+ * {@link #flush()} returns once everything queued before it is handed to the
+ * operating system and {@link #close()} returns once all chunks are closed.
+ *
+ */
+public class ChunkedWriter implements Closeable {
+
+  private static final int QUEUE_SIZE = 256;
+  private static final int BUFFER_SIZE = 1 << 20;
+
+  // Control blocks, compared by identity
+  private static final Block FLUSH = new Block(new byte[0], 0);
+  private static final Block CLOSE = new Block(new byte[0], 0);
+  private static final Block ROTATE = new Block(new byte[0], 0);
+
+  private final String prefix;
+  private final String suffix;
+  private final Opener opener;
+  private final byte[] header;
+  private final byte[] trailer;
+  private final Chunk[] chunks;
+  private Codec codec = Codec.NONE;
+  private long rotateAt = Long.MAX_VALUE;
+  private Manifest manifest = null;
+  private volatile boolean closed = false;
+
+  /**
+   * Opens the output stream of a part
+   */
+  @FunctionalInterface
+  public interface Opener {
+    OutputStream open(String name) throws IOException;
+  }
+
+  /**
+   * Compression of the parts
+   */
+  public enum Codec {
+    NONE(""), GZIP(".gz"), ZSTD(".zst");
+
+    public final String extension;
+
+    Codec(String extension) {
+      this.extension = extension;
+    }
+
+    OutputStream wrap(OutputStream out) throws IOException {
+      switch (this) {
+      case GZIP:
+        return new GZIPOutputStream(out, 1 << 16);
+      case ZSTD:
+        return new ZstdOutputStream(out, 1);
+      default:
+        return out;
+      }
+    }
+  }
+
+  /**
+   * An encoded block and the number of rows in it
+   */
+  private static class Block {
+    final byte[] bytes;
+    final int rows;
+
+    Block(byte[] bytes, int rows) {
+      this.bytes = bytes;
+      this.rows = rows;
+    }
+  }
+
+  /**
+   * Chunks written to files, each file is synced to disk when closed
+   *
+   * @param prefix path of the files up to the chunk number
+   * @param suffix extension of the files including the dot
+   * @param chunks
+   * @param header written at the start of every file
+   * @param trailer written at the end of every file
+   */
+  public static ChunkedWriter files(String prefix, String suffix, int chunks,
+      byte[] header, byte[] trailer) {
+    return new ChunkedWriter(prefix, suffix, chunks, ChunkedWriter::syncedFile,
+        header, trailer);
+  }
+
+  private static OutputStream syncedFile(String name) throws IOException {
+    FileOutputStream file = new FileOutputStream(name);
+    return new FilterOutputStream(file) {
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          file.getFD().sync();
+        } finally {
+          file.close();
+        }
+      }
+    };
+  }
+
+  /**
+   * @param prefix name of the parts up to the chunk number, the name is used
+   *          in thread names and error messages as well
+   * @param suffix name of the parts after the chunk and part numbers
+   * @param chunks
+   * @param opener
+   * @param header written at the start of every part
+   * @param trailer written at the end of every part
+   */
+  public ChunkedWriter(String prefix, String suffix, int chunks,
+      Opener opener, byte[] header, byte[] trailer) {
+    this.prefix = prefix;
+    this.suffix = suffix;
+    this.opener = opener;
+    this.header = header;
+    this.trailer = trailer;
+    this.chunks = new Chunk[chunks];
+    for (int i = 0; i < chunks; i++) {
+      this.chunks[i] = new Chunk(i);
+    }
+  }
+
+  /**
+   * Compresses the parts, the extension of the codec is appended to their
+   * names. Must be set before the first write.
+   *
+   * @param codec
+   * @return
+   */
+  public ChunkedWriter compress(Codec codec) {
+    this.codec = codec;
+    return this;
+  }
+
+  /**
+   * Starts a new part once the current one holds at least this many
+   * uncompressed bytes. Must be set before the first write.
+   *
+   * @param bytes
+   * @return
+   */
+  public ChunkedWriter rotateAt(long bytes) {
+    this.rotateAt = bytes;
+    return this;
+  }
+
+  /**
+   * Records every closed part in the manifest. Must be set before the first
+   * write.
+   *
+   * @param manifest
+   * @return
+   */
+  public ChunkedWriter record(Manifest manifest) {
+    this.manifest = manifest;
+    return this;
+  }
+
+  /**
+   * Queues the rows encoded so far for the chunk of the job and resets the
+   * encoder
+   *
+   * @param jobId
+   * @param rows
+   */
+  public void write(int jobId, RowEncoder rows) {
+    int count = rows.rowCount();
+    write(jobId, rows.toBytes(), count);
+  }
+
+  /**
+   * Queues an encoded block for the chunk of the job, blocks while the queue
+   * of that chunk is full
+   *
+   * @param jobId
+   * @param block
+   * @param rows number of rows in the block
+   */
+  public void write(int jobId, byte[] block, int rows) {
+    if (block.length == 0) {
+      return;
+    }
+    if (closed) {
+      throw new IllegalStateException("Writing to closed chunks");
+    }
+    chunks[Math.floorMod(jobId, chunks.length)].put(new Block(block, rows));
+  }
+
+  /**
+   * Waits until all blocks queued so far are written out of the buffers
+   *
+   * @throws IOException if any chunk failed to write
+   */
+  public void flush() throws IOException {
+    for (Chunk chunk : chunks) {
+      chunk.put(FLUSH);
+    }
+    for (Chunk chunk : chunks) {
+      chunk.await();
+    }
+    checkFailures();
+  }
+
+  /**
+   * Waits until all blocks queued so far are written and closes the current
+   * part of every chunk, later blocks go to new parts
+   *
+   * @throws IOException if any chunk failed to write
+   */
+  public void rotate() throws IOException {
+    for (Chunk chunk : chunks) {
+      chunk.put(ROTATE);
+    }
+    for (Chunk chunk : chunks) {
+      chunk.await();
+    }
+    checkFailures();
+  }
+
+  /**
+   * Writes out all queued blocks and closes the chunks
+   *
+   * @throws IOException if any chunk failed to write
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (Chunk chunk : chunks) {
+      chunk.put(CLOSE);
+    }
+    for (Chunk chunk : chunks) {
+      chunk.await();
+    }
+    checkFailures();
+  }
+
+  private void checkFailures() throws IOException {
+    List<IOException> failures = new ArrayList<>();
+    for (Chunk chunk : chunks) {
+      if (chunk.failure != null) {
+        failures.add(chunk.failure);
+      }
+    }
+    if (!failures.isEmpty()) {
+      IOException e = new IOException(failures.size() + " chunk(s) failed",
+          failures.get(0));
+      failures.stream().skip(1).forEach(e::addSuppressed);
+      throw e;
+    }
+  }
+
+  private class Chunk implements Runnable {
+    private final int chunk;
+    private final BlockingQueue<Block> queue = new ArrayBlockingQueue<>(
+        QUEUE_SIZE);
+    private final Semaphore done = new Semaphore(0);
+    private volatile IOException failure = null;
+
+    // Current part, owned by the writer thread
+    private int part = 0;
+    private String name = null;
+    private OutputStream out = null;
+    private CountingOutputStream written = null;
+    private long rows = 0;
+    private long bytes = 0;
+
+    Chunk(int chunk) {
+      this.chunk = chunk;
+      Thread writer = new Thread(this, "writer-" + prefix + chunk);
+      writer.setDaemon(true);
+      writer.start();
+    }
+
+    void put(Block block) {
+      try {
+        queue.put(block);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted writing " + prefix
+            + chunk, e);
+      }
+    }
+
+    void await() throws InterruptedIOException {
+      try {
+        done.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted flushing " + prefix
+            + chunk);
+      }
+    }
+
+    private String partName(int part) {
+      return prefix + chunk + (part > 0 ? "." + part : "") + suffix
+          + codec.extension;
+    }
+
+    private boolean recorded(String name) {
+      return manifest != null && manifest.contains(name);
+    }
+
+    private void open() throws IOException {
+      name = partName(part);
+      while (recorded(name)) {
+        name = partName(++part);
+      }
+      written = new CountingOutputStream(opener.open(name));
+      out = new BufferedOutputStream(codec.wrap(written), BUFFER_SIZE);
+      out.write(header);
+      rows = 0;
+      bytes = header.length;
+    }
+
+    private void closePart() throws IOException {
+      OutputStream current = out;
+      out = null;
+      part++;
+      if (failure == null) {
+        current.write(trailer);
+        bytes += trailer.length;
+      }
+      current.close();
+      if (manifest != null && failure == null) {
+        manifest.add(name, rows, written.getCount(), bytes);
+      }
+    }
+
+    @Override
+    public void run() {
+      List<Block> blocks = new ArrayList<>(QUEUE_SIZE);
+      while (true) {
+        try {
+          blocks.add(queue.take());
+        } catch (InterruptedException e) {
+          failure = new InterruptedIOException("Writer of " + prefix + chunk
+              + " interrupted");
+          return;
+        }
+        queue.drainTo(blocks);
+        for (Block block : blocks) {
+          if (block == FLUSH || block == CLOSE || block == ROTATE) {
+            try {
+              if (block == CLOSE) {
+                // Every chunk has at least one part, even if empty
+                if (out == null && part == 0 && failure == null
+                    && !recorded(partName(0))) {
+                  open();
+                }
+                if (out != null) {
+                  closePart();
+                }
+              } else if (block == ROTATE) {
+                if (out != null) {
+                  closePart();
+                }
+              } else if (out != null) {
+                out.flush();
+              }
+            } catch (IOException e) {
+              fail(e);
+            }
+            done.release();
+            if (block == CLOSE) {
+              return;
+            }
+          } else if (failure == null) {
+            try {
+              if (out == null) {
+                open();
+              }
+              out.write(block.bytes);
+              rows += block.rows;
+              bytes += block.bytes.length;
+              if (bytes >= rotateAt) {
+                closePart();
+              }
+            } catch (IOException e) {
+              fail(e);
+            }
+          }
+        }
+        blocks.clear();
+      }
+    }
+
+    private void fail(IOException e) {
+      if (failure == null) {
+        failure = new IOException("Failed writing "
+            + (name != null ? name : prefix + chunk), e);
+      }
+    }
+  }
+
+}
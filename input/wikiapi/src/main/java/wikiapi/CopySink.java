@@ -0,0 +1,151 @@
+package wikiapi;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+
+/**
+ * Streams rows straight into Greenplum/Postgres tables with
+ * COPY ... FROM STDIN over several connections, one per chunk, so that the
+ * dump is loaded in the same pass that parses it.
+ *
+ * The connections are left in open transactions, committed together by
+ * {@link #commit()} once the whole dump is loaded. A load failing part way
+ * is rolled back on {@link #close()}, so a table never holds the rows of
+ * some chunks only.
+ *
+ */
+public class CopySink implements Closeable {
+
+  private static final int COPY_BUFFER = 1 << 16;
+
+  private final String url;
+  private final List<Connection> connections = new ArrayList<>();
+  private boolean committed = false;
+
+  /**
+   * @param url jdbc url
+   */
+  public CopySink(String url) {
+    this.url = url;
+  }
+
+  /**
+   * @return jdbc url of the entity linking database on $PGPORT
+   */
+  public static String defaultUrl() {
+    String port = System.getenv("PGPORT");
+    if (port == null) {
+      port = "8432";
+    }
+    return String.format("jdbc:postgresql://localhost:%s/entitylinking", port);
+  }
+
+  /**
+   * Opens one COPY stream per chunk into the table, rows are committed by
+   * {@link #commit()}
+   *
+   * @param table
+   * @param columns of the rows in table order, other columns of the table
+   *          are left to their defaults
+   * @param connections number of concurrent COPY streams
+   * @param format row format of the stream
+   * @return
+   * @throws IOException
+   */
+  public ChunkedWriter open(String table, String columns, int connections,
+      RowEncoder.Format format) throws IOException {
+    String sql = "COPY " + table + " (" + columns + ") FROM STDIN WITH "
+        + format.copyOptions;
+    return new ChunkedWriter(table + "-copy", "", connections, name -> {
+      try {
+        return new CopyStream(connect(), sql);
+      } catch (SQLException e) {
+        throw new IOException("Failed to start " + sql, e);
+      }
+    }, format.header(), format.trailer());
+  }
+
+  private synchronized Connection connect() throws SQLException {
+    if (committed) {
+      throw new SQLException("COPY streams are already committed");
+    }
+    Connection connection = DriverManager.getConnection(url);
+    connections.add(connection);
+    connection.setAutoCommit(false);
+    return connection;
+  }
+
+  /**
+   * Commits the rows of every stream, once all writers are closed
+   *
+   * @throws IOException
+   */
+  public synchronized void commit() throws IOException {
+    for (int i = 0; i < connections.size(); i++) {
+      try {
+        connections.get(i).commit();
+      } catch (SQLException e) {
+        // Only the commits before can no longer be undone
+        throw new IOException("Failed to commit COPY stream " + (i + 1)
+            + " of " + connections.size() + ", " + i + " committed", e);
+      }
+    }
+    committed = true;
+  }
+
+  /**
+   * Rolls back the rows of every stream unless committed and closes the
+   * connections
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    IOException failure = null;
+    for (Connection connection : connections) {
+      try {
+        try {
+          if (!committed) {
+            connection.rollback();
+          }
+        } finally {
+          connection.close();
+        }
+      } catch (SQLException e) {
+        if (failure == null) {
+          failure = new IOException("Failed to roll back COPY streams", e);
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+    connections.clear();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * A COPY stream in the open transaction of its connection
+   */
+  private static class CopyStream extends FilterOutputStream {
+
+    CopyStream(Connection connection, String sql) throws SQLException {
+      super(new PGCopyOutputStream(connection.unwrap(PGConnection.class), sql,
+          COPY_BUFFER));
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+  }
+
+}
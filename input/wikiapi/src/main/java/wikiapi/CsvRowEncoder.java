@@ -0,0 +1,244 @@
+package wikiapi;
+
+import java.util.List;
+
+/**
+ * Encodes rows as csv lines, with categories as a quoted postgres array
+ * literal. Fields are escaped straight into the row buffer, the output is the
+ * same as joining {@link org.apache.commons.lang3.StringEscapeUtils#escapeCsv}
+ * of the fields with commas.
+ *
+ */
+public class CsvRowEncoder extends RowEncoder {
+
+  private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+  private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+  private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+
+  // Characters of a field that force quoting
+  private static boolean needsQuotes(char c) {
+    return c == ',' || c == '"' || c == '\r' || c == '\n';
+  }
+
+  @Override
+  public RowEncoder page(String id, String title, String content,
+      boolean disamb, List<String> categories) {
+    putField(id);
+    put((byte) ',');
+    putField(title);
+    put((byte) ',');
+    putField(content);
+    put((byte) ',');
+    put(disamb ? TRUE : FALSE);
+    put((byte) ',');
+    putArray(categories);
+    putIds();
+    put((byte) '\n');
+    return endRow();
+  }
+
+  @Override
+  public RowEncoder link(String pageId, int start, int end, String text,
+      String title) {
+    putField(pageId);
+    put((byte) ',');
+    putDecimal(start);
+    put((byte) ',');
+    putDecimal(end);
+    put((byte) ',');
+    putField(text, start, end);
+    put((byte) ',');
+    putField(title);
+    putIds();
+    put((byte) '\n');
+    return endRow();
+  }
+
+  @Override
+  public RowEncoder link(String pageId, int start, int end, String text,
+      CharSequence title, int titleStart, int titleEnd) {
+    putField(pageId);
+    put((byte) ',');
+    putDecimal(start);
+    put((byte) ',');
+    putDecimal(end);
+    put((byte) ',');
+    putField(text, start, end);
+    put((byte) ',');
+    putField(title, titleStart, titleEnd);
+    putIds();
+    put((byte) '\n');
+    return endRow();
+  }
+
+  @Override
+  public RowEncoder redirect(String title, String target) {
+    putField(title);
+    put((byte) ',');
+    putField(target);
+    putIds();
+    put((byte) '\n');
+    return endRow();
+  }
+
+  @Override
+  public RowEncoder deletion(String pageId, String title) {
+    putField(pageId);
+    put((byte) ',');
+    putField(title);
+    put((byte) '\n');
+    return endRow();
+  }
+
+  @Override
+  public RowEncoder normalizedLink(long pageId, int start, int end,
+      CharSequence surface, int surfaceStart, int surfaceEnd,
+      CharSequence title, long linkId) {
+    putDecimal(pageId);
+    put((byte) ',');
+    putDecimal(start);
+    put((byte) ',');
+    putDecimal(end);
+    put((byte) ',');
+    putField(surface, surfaceStart, surfaceEnd);
+    put((byte) ',');
+    putField(title);
+    put((byte) ',');
+    putDecimal(linkId);
+    put((byte) '\n');
+    return endRow();
+  }
+
+  @Override
+  public RowEncoder linkCount(CharSequence surface, CharSequence title,
+      long count) {
+    putField(surface);
+    put((byte) ',');
+    putField(title);
+    put((byte) ',');
+    putDecimal(count);
+    put((byte) '\n');
+    return endRow();
+  }
+
+  @Override
+  public RowEncoder title(int id, CharSequence title) {
+    putDecimal(id);
+    put((byte) ',');
+    putField(title);
+    put((byte) '\n');
+    return endRow();
+  }
+
+  private void putIds() {
+    for (int i = 0; i < idCount; i++) {
+      put((byte) ',');
+      if (!nullIds) {
+        putDecimal(id(i));
+      }
+    }
+  }
+
+  private void put(byte[] bytes) {
+    ensure(bytes.length);
+    System.arraycopy(bytes, 0, buf, len, bytes.length);
+    len += bytes.length;
+  }
+
+  /**
+   * Decimal digits of the number
+   */
+  private void putDecimal(long v) {
+    if (v == Long.MIN_VALUE) {
+      putUtf8(String.valueOf(v));
+      return;
+    }
+    ensure(20);
+    if (v < 0) {
+      buf[len++] = '-';
+      v = -v;
+    }
+    int digits = 1;
+    for (long p = v; p >= 10; p /= 10) {
+      digits++;
+    }
+    len += digits;
+    for (int i = len - 1; i >= len - digits; i--) {
+      buf[i] = (byte) ('0' + v % 10);
+      v /= 10;
+    }
+  }
+
+  private void putField(CharSequence s) {
+    if (s == null) {
+      put(NULL);
+      return;
+    }
+    putField(s, 0, s.length());
+  }
+
+  private void putField(CharSequence s, int start, int end) {
+    int i = start;
+    while (i < end && !needsQuotes(s.charAt(i))) {
+      i++;
+    }
+    if (i == end) {
+      putUtf8(s, start, end);
+      return;
+    }
+    put((byte) '"');
+    int run = start;
+    for (; i < end; i++) {
+      if (s.charAt(i) == '"') {
+        putUtf8(s, run, i + 1);
+        put((byte) '"');
+        run = i + 1;
+      }
+    }
+    putUtf8(s, run, end);
+    put((byte) '"');
+  }
+
+  /**
+   * The array literal {"a","b\"c"} as a csv field, every quote of the literal
+   * is doubled by the csv quoting
+   */
+  private void putArray(List<String> values) {
+    if (values.isEmpty()) {
+      put((byte) '{');
+      put((byte) '}');
+      return;
+    }
+    put((byte) '"');
+    put((byte) '{');
+    for (int v = 0; v < values.size(); v++) {
+      if (v > 0) {
+        put((byte) ',');
+      }
+      String value = values.get(v);
+      put((byte) '"');
+      put((byte) '"');
+      int run = 0;
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if (c == '\\' || c == '"') {
+          putUtf8(value, run, i);
+          put((byte) '\\');
+          if (c == '"') {
+            put((byte) '"');
+            put((byte) '"');
+          } else {
+            put((byte) '\\');
+          }
+          run = i + 1;
+        }
+      }
+      putUtf8(value, run, value.length());
+      put((byte) '"');
+      put((byte) '"');
+    }
+    put((byte) '}');
+    put((byte) '"');
+  }
+
+}
@@ -0,0 +1,198 @@
+package wikiapi;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import wikiapi.WikiDumpParser.Href;
+
+/**
+ * Links of a rendered page: character offsets into the plain text in
+ * parallel int arrays, and the targets normalized as by
+ * {@link Utils#str2wikilink(String)} one after another in a shared char
+ * array. A render thread reuses the same buffer for all its pages, so
+ * nothing of it may be kept after the page is processed.
+ *
+ */
+public class LinkBuffer {
+
+  /**
+   * The links of pages that are not rendered, shared and never added to
+   */
+  public static final LinkBuffer EMPTY = new LinkBuffer(0) {
+    @Override
+    public void add(String href, int start, int end) {
+      throw new UnsupportedOperationException("The empty buffer is shared");
+    }
+  };
+
+  private int[] starts;
+  private int[] ends;
+  // Target i is chars[targetEnds[i - 1], targetEnds[i])
+  private int[] targetEnds;
+  private char[] chars;
+  // Link i as written, for toHrefs
+  private String[] hrefs;
+  private int size = 0;
+  private int length = 0;
+
+  public LinkBuffer() {
+    this(64);
+  }
+
+  private LinkBuffer(int capacity) {
+    starts = new int[capacity];
+    ends = new int[capacity];
+    targetEnds = new int[capacity];
+    hrefs = new String[capacity];
+    chars = new char[capacity * 16];
+  }
+
+  /**
+   * @param hrefs
+   * @return a new buffer of the links
+   */
+  public static LinkBuffer of(List<Href> hrefs) {
+    LinkBuffer links = new LinkBuffer(Math.max(hrefs.size(), 1));
+    for (Href href : hrefs) {
+      links.add(href.link, href.start, href.end);
+    }
+    return links;
+  }
+
+  /**
+   * Empties the buffer for the next page
+   */
+  public void clear() {
+    Arrays.fill(hrefs, 0, size, null);
+    size = 0;
+    length = 0;
+  }
+
+  /**
+   * Empties the buffer, and frees its arrays if a large page grew them past
+   * the given number of chars
+   *
+   * @param maxChars
+   */
+  public void clear(int maxChars) {
+    clear();
+    if (chars.length > maxChars || starts.length > maxChars / 16) {
+      starts = new int[64];
+      ends = new int[64];
+      targetEnds = new int[64];
+      hrefs = new String[64];
+      chars = new char[1 << 10];
+    }
+  }
+
+  /**
+   * @param href link target as written
+   * @param start
+   * @param end
+   */
+  public void add(String href, int start, int end) {
+    if (size == starts.length) {
+      starts = Arrays.copyOf(starts, size * 2);
+      ends = Arrays.copyOf(ends, size * 2);
+      targetEnds = Arrays.copyOf(targetEnds, size * 2);
+      hrefs = Arrays.copyOf(hrefs, size * 2);
+    }
+    // Upper casing may turn the first char into up to three
+    int n = href.length();
+    if (length + n + 2 > chars.length) {
+      chars = Arrays.copyOf(chars, Math.max(chars.length * 2, length + n + 2));
+    }
+    int i = 0;
+    if (n > 0 && Character.isLowerCase(href.codePointAt(0))) {
+      char first = href.charAt(0);
+      if (first < 0x80) {
+        chars[length++] = (char) (first - 'a' + 'A');
+        i = 1;
+      } else if (!Character.isSurrogate(first)) {
+        String upper = String.valueOf(first).toUpperCase();
+        upper.getChars(0, upper.length(), chars, length);
+        length += upper.length();
+        i = 1;
+      }
+    }
+    for (; i < n; i++) {
+      char c = href.charAt(i);
+      chars[length++] = c == '_' ? ' ' : c;
+    }
+    starts[size] = start;
+    ends[size] = end;
+    hrefs[size] = href;
+    targetEnds[size] = length;
+    size++;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @param i
+   * @return start offset of the surface of link i in the text
+   */
+  public int start(int i) {
+    return starts[i];
+  }
+
+  /**
+   * @param i
+   * @return end offset of the surface of link i in the text
+   */
+  public int end(int i) {
+    return ends[i];
+  }
+
+  /**
+   * @return the targets of all links, see {@link #targetStart(int)}
+   */
+  public CharSequence targets() {
+    return CharBuffer.wrap(chars, 0, length);
+  }
+
+  /**
+   * @param i
+   * @return start of the normalized target of link i in {@link #targets()}
+   */
+  public int targetStart(int i) {
+    return i == 0 ? 0 : targetEnds[i - 1];
+  }
+
+  /**
+   * @param i
+   * @return end of the normalized target of link i in {@link #targets()}
+   */
+  public int targetEnd(int i) {
+    return targetEnds[i];
+  }
+
+  /**
+   * @param i
+   * @return the normalized target of link i
+   */
+  public String target(int i) {
+    int start = targetStart(i);
+    return new String(chars, start, targetEnds[i] - start);
+  }
+
+  /**
+   * @return the links as objects, with their targets as written
+   */
+  public List<Href> toHrefs() {
+    List<Href> links = new ArrayList<Href>(size);
+    for (int i = 0; i < size; i++) {
+      links.add(new Href(hrefs[i], starts[i], ends[i]));
+    }
+    return links;
+  }
+
+}
@@ -0,0 +1,355 @@
+package wikiapi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Counts the links by surface and title, written as link_counts(surface,
+ * title, count). A pair is keyed by the int ids of its surface and title in
+ * a long, the counts are held in an open addressing table of longs and ints.
+ * The surfaces are interned in a dictionary of their own, and the table and
+ * the dictionary share the memory budget. When either reaches its half, the
+ * pairs are written to a run file sorted by surface text and title id, and
+ * both are emptied. The runs are merged once all links are added.
+ *
+ */
+public class LinkCounts {
+
+  // Bytes of a slot, key and count
+  private static final int SLOT_BYTES = 12;
+  // Bytes of a surface in the dictionary besides its chars, and of each
+  // char, with room for the arrays growing by doubling
+  private static final int SURFACE_BYTES = 64;
+  private static final int CHAR_BYTES = 4;
+  private static final long FREE = -1;
+
+  private final TitleDictionary titles;
+  private final File dir;
+  private final int capacity;
+  private final long surfaceMemory;
+  private final List<File> runs = new ArrayList<>();
+  // Surfaces of the pairs in the table, only interned, they are not titles
+  private TitleDictionary surfaces = newSurfaces();
+  private long surfaceBytes = 0;
+  // Surfaces of the table by rank once sorted, see sortByText
+  private String[] ranked;
+  private long[] keys;
+  private int[] counts;
+  private int size = 0;
+
+  /**
+   * @param titles dictionary of the title ids
+   * @param memory bytes of the count table and of the surfaces
+   * @param dir directory of the run files
+   */
+  public LinkCounts(TitleDictionary titles, long memory, File dir) {
+    this.titles = titles;
+    this.dir = dir;
+    this.surfaceMemory = Math.max(1 << 16, memory / 2);
+    // Power of two slots, at most half of them full
+    int slots = Integer.highestOneBit((int) Math.min(1 << 30,
+        Math.max(1 << 10, memory / 2 / SLOT_BYTES)));
+    this.capacity = slots / 2;
+    this.keys = new long[slots];
+    this.counts = new int[slots];
+    Arrays.fill(keys, FREE);
+  }
+
+  /**
+   * Counts a link, links without a surface are not counted
+   *
+   * @param surface
+   * @param start
+   * @param end
+   * @param titleId
+   * @throws IOException if a run fails to write
+   */
+  public void add(CharSequence surface, int start, int end, int titleId)
+      throws IOException {
+    if (start == end) {
+      return;
+    }
+    int interned = surfaces.size();
+    long key = (long) surfaces.id(surface, start, end) << 32
+        | (titleId & 0xffffffffL);
+    if (surfaces.size() > interned) {
+      surfaceBytes += SURFACE_BYTES + (long) CHAR_BYTES * (end - start);
+    }
+    int mask = keys.length - 1;
+    int slot = slot(key, mask);
+    while (keys[slot] != FREE) {
+      if (keys[slot] == key) {
+        counts[slot]++;
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = key;
+    counts[slot] = 1;
+    // A new surface is always a new pair
+    if (++size == capacity || surfaceBytes > surfaceMemory) {
+      spill();
+    }
+  }
+
+  /**
+   * Writes the counts of all runs and of the table, merged by surface and
+   * title, and deletes the runs
+   *
+   * @param output
+   * @param rows
+   * @return number of rows written
+   * @throws IOException
+   */
+  public long write(ChunkedWriter output, RowEncoder rows)
+      throws IOException {
+    if (!runs.isEmpty() && size > 0) {
+      spill();
+    }
+    long written = 0;
+    int block = 0;
+    PriorityQueue<Run> merge = new PriorityQueue<>(Math.max(1, runs.size()),
+        Run::compareTo);
+    if (runs.isEmpty()) {
+      Run run = new Run(sortByText());
+      if (run.next()) {
+        merge.add(run);
+      }
+    } else {
+      for (File file : runs) {
+        Run run = new Run(file);
+        if (run.next()) {
+          merge.add(run);
+        }
+      }
+    }
+    try {
+      while (!merge.isEmpty()) {
+        Run run = merge.poll();
+        String surface = run.surface;
+        int title = run.title;
+        long count = run.count;
+        if (run.next()) {
+          merge.add(run);
+        }
+        while (!merge.isEmpty() && merge.peek().title == title
+            && merge.peek().surface.equals(surface)) {
+          Run same = merge.poll();
+          count += same.count;
+          if (same.next()) {
+            merge.add(same);
+          }
+        }
+        rows.linkCount(surface, titles.title(title), count);
+        written++;
+        if (rows.rowCount() == 1024) {
+          output.write(block++, rows);
+        }
+      }
+      output.write(block, rows);
+    } finally {
+      for (Run run : merge) {
+        run.close();
+      }
+      for (File file : runs) {
+        file.delete();
+      }
+    }
+    return written;
+  }
+
+  /**
+   * @return number of runs spilled to disk, the last one by
+   *         {@link #write} if any were spilled before
+   */
+  public int runs() {
+    return runs.size();
+  }
+
+  /**
+   * Writes the table sorted by surface text and title id to a new run, as
+   * surface length, surface chars, title id and count, and empties the
+   * table and the surfaces
+   */
+  private void spill() throws IOException {
+    File file = new File(dir, "linkcounts.run" + runs.size() + ".tmp");
+    runs.add(file);
+    long[] sorted = sortByText();
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file), 1 << 16))) {
+      for (long key : sorted) {
+        String surface = ranked[(int) (key >>> 32)];
+        out.writeInt(surface.length());
+        out.writeChars(surface);
+        out.writeInt((int) key);
+        out.writeInt(counts[find(key)]);
+      }
+    }
+    Arrays.fill(keys, FREE);
+    size = 0;
+    ranked = null;
+    surfaces = newSurfaces();
+    surfaceBytes = 0;
+  }
+
+  private static TitleDictionary newSurfaces() {
+    return new TitleDictionary(null, null, RowEncoder.Format.CSV);
+  }
+
+  /**
+   * Rekeys the table by the rank of the surface text in place of its id,
+   * see {@link #ranked}
+   *
+   * @return the keys sorted
+   */
+  private long[] sortByText() {
+    int n = surfaces.size();
+    String[] texts = new String[n];
+    Integer[] order = new Integer[n];
+    for (int id = 0; id < n; id++) {
+      texts[id] = surfaces.title(id);
+      order[id] = id;
+    }
+    Arrays.sort(order, (a, b) -> texts[a].compareTo(texts[b]));
+    long[] rank = new long[n];
+    ranked = new String[n];
+    for (int r = 0; r < n; r++) {
+      rank[order[r]] = r;
+      ranked[r] = texts[order[r]];
+    }
+    long[] rekeyed = new long[size];
+    int[] rekeyedCounts = new int[size];
+    int m = 0;
+    for (int slot = 0; slot < keys.length; slot++) {
+      long key = keys[slot];
+      if (key != FREE) {
+        rekeyed[m] = rank[(int) (key >>> 32)] << 32 | (key & 0xffffffffL);
+        rekeyedCounts[m++] = counts[slot];
+      }
+    }
+    Arrays.fill(keys, FREE);
+    int mask = keys.length - 1;
+    for (int i = 0; i < m; i++) {
+      int slot = slot(rekeyed[i], mask);
+      while (keys[slot] != FREE) {
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = rekeyed[i];
+      counts[slot] = rekeyedCounts[i];
+    }
+    return sorted();
+  }
+
+  private long[] sorted() {
+    long[] sorted = new long[size];
+    int n = 0;
+    for (long key : keys) {
+      if (key != FREE) {
+        sorted[n++] = key;
+      }
+    }
+    Arrays.parallelSort(sorted);
+    return sorted;
+  }
+
+  private int find(long key) {
+    int mask = keys.length - 1;
+    int slot = slot(key, mask);
+    while (keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private static int slot(long key, int mask) {
+    long h = key * 0x9e3779b97f4a7c15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  /**
+   * Sorted pairs of a run file or of the table, positioned on the current one
+   */
+  private class Run implements Comparable<Run> {
+    private final DataInputStream in;
+    private final long[] sorted;
+    private int next = 0;
+    String surface;
+    int title;
+    long count;
+
+    Run(File file) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(file), 1 << 16));
+      this.sorted = null;
+    }
+
+    Run(long[] sorted) {
+      this.in = null;
+      this.sorted = sorted;
+    }
+
+    boolean next() {
+      if (sorted != null) {
+        if (next == sorted.length) {
+          return false;
+        }
+        long key = sorted[next++];
+        surface = ranked[(int) (key >>> 32)];
+        title = (int) key;
+        count = counts[find(key)];
+        return true;
+      }
+      try {
+        int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException e) {
+          close();
+          return false;
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+          chars[i] = in.readChar();
+        }
+        surface = new String(chars);
+        title = in.readInt();
+        count = in.readInt();
+        return true;
+      } catch (EOFException e) {
+        close();
+        return false;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    public int compareTo(Run other) {
+      int c = surface.compareTo(other.surface);
+      return c != 0 ? c : Integer.compare(title, other.title);
+    }
+
+    void close() {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+}
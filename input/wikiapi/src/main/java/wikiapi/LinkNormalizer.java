@@ -0,0 +1,314 @@
+package wikiapi;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes normalized_links(page_id, char_start, char_end, surface, title,
+ * link_id) without a database join. The title of a link is resolved through
+ * the redirects to the end of the chain, and link_id is the id of the page
+ * with the resolved title, -1 if there is none. Titles in a redirect loop,
+ * or leading into one, are kept as they are.
+ *
+ * During the run the pages, redirects and links are spilled by title id to
+ * state files listed in the manifest, so that a resumed run has all of them.
+ * On close the titles are resolved over int arrays indexed by title id and
+ * the links are streamed from the state files into the rows, counted by
+ * surface and resolved title if {@link #countLinks} is set.
+ *
+ */
+public class LinkNormalizer implements Closeable {
+
+  /**
+   * Names of the state files in the manifest
+   */
+  public static final String PAGES = "pageids";
+  public static final String LINKS = "rawlinks";
+
+  // Resolution states of a title, other values are the resolved title id
+  private static final int UNVISITED = -1;
+  private static final int VISITING = -2;
+  private static final int LOOP = -3;
+
+  private final TitleDictionary titles;
+  private final ChunkedWriter pages;
+  private final ChunkedWriter links;
+  private final Manifest manifest;
+  private final ChunkedWriter output;
+  private final RowEncoder rows;
+  private final List<File> spills = new ArrayList<>();
+  private ChunkedWriter countOutput = null;
+  private long countMemory = 0;
+
+  /**
+   * @param titles dictionary of all titles of the run
+   * @param manifest lists the state files
+   * @param output writer of the normalized_links rows
+   * @param format row format of the rows
+   */
+  public LinkNormalizer(TitleDictionary titles, Manifest manifest,
+      ChunkedWriter output, RowEncoder.Format format) {
+    this.titles = titles;
+    String dir = manifest.directory() + File.separator;
+    this.pages = ChunkedWriter.files(dir + PAGES, ".bin", 1, new byte[0],
+        new byte[0]).record(manifest);
+    this.links = ChunkedWriter.files(dir + LINKS, ".bin", 1, new byte[0],
+        new byte[0]).record(manifest);
+    this.manifest = manifest;
+    this.output = output;
+    this.rows = format.newEncoder();
+  }
+
+  /**
+   * Also writes link_counts(surface, title, count) of the normalized links
+   *
+   * @param output writer of the link_counts rows
+   * @param memory bytes of the count table and its surfaces before they
+   *          spill to disk
+   * @return
+   */
+  public LinkNormalizer countLinks(ChunkedWriter output, long memory) {
+    this.countOutput = output;
+    this.countMemory = memory;
+    return this;
+  }
+
+  /**
+   * Records a redirect
+   *
+   * @param jobId
+   * @param titleId
+   * @param targetId
+   */
+  public void redirect(int jobId, int titleId, int targetId) {
+    pages.write(jobId, record(titleId, -1, targetId), 1);
+  }
+
+  /**
+   * Records a page with its links
+   *
+   * @param jobId
+   * @param pageId
+   * @param titleId
+   * @param text plain text the links point into
+   * @param pageLinks
+   */
+  public void page(int jobId, String pageId, int titleId, String text,
+      LinkBuffer pageLinks) {
+    long id = Long.parseLong(pageId);
+    if (id < 0 || id > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Page id out of range: " + id);
+    }
+    pages.write(jobId, record(titleId, (int) id, -1), 1);
+    if (pageLinks.isEmpty()) {
+      return;
+    }
+    CharSequence targets = pageLinks.targets();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+        pageLinks.size() * 32);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      for (int i = 0; i < pageLinks.size(); i++) {
+        int start = pageLinks.start(i);
+        int end = pageLinks.end(i);
+        out.writeInt((int) id);
+        out.writeInt(titles.id(targets, pageLinks.targetStart(i),
+            pageLinks.targetEnd(i)));
+        out.writeInt(start);
+        out.writeInt(end);
+        for (int c = start; c < end; c++) {
+          out.writeChar(text.charAt(c));
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    links.write(jobId, bytes.toByteArray(), pageLinks.size());
+  }
+
+  /**
+   * Closes the current state files, see {@link ChunkedWriter#rotate()}
+   *
+   * @throws IOException
+   */
+  public void rotate() throws IOException {
+    pages.rotate();
+    links.rotate();
+  }
+
+  /**
+   * Writes the rows, to be called after all pages are recorded. The state
+   * files are dropped from the manifest, see {@link #deleteSpills()}
+   */
+  @Override
+  public void close() throws IOException {
+    pages.close();
+    links.close();
+    int n = titles.size();
+    int[] pageOf = new int[n];
+    int[] redirectOf = new int[n];
+    Arrays.fill(pageOf, -1);
+    Arrays.fill(redirectOf, -1);
+    List<File> pageFiles = manifest.files(PAGES);
+    for (File file : pageFiles) {
+      try (DataInputStream in = open(file)) {
+        while (true) {
+          int titleId;
+          try {
+            titleId = in.readInt();
+          } catch (EOFException e) {
+            break;
+          }
+          int pageId = in.readInt();
+          int targetId = in.readInt();
+          // Duplicate titles keep the smallest id, whatever the file order
+          if (pageId >= 0 && (pageOf[titleId] < 0
+              || pageId < pageOf[titleId])) {
+            pageOf[titleId] = pageId;
+          }
+          if (targetId >= 0 && (redirectOf[titleId] < 0
+              || targetId < redirectOf[titleId])) {
+            redirectOf[titleId] = targetId;
+          }
+        }
+      }
+    }
+    int[] resolved = resolve(redirectOf);
+    redirectOf = null;
+
+    LinkCounts counts = countOutput == null ? null : new LinkCounts(titles,
+        countMemory, manifest.directory());
+    List<File> linkFiles = manifest.files(LINKS);
+    char[] surface = new char[256];
+    CharBuffer surfaces = CharBuffer.wrap(surface);
+    long count = 0;
+    int block = 0;
+    for (File file : linkFiles) {
+      try (DataInputStream in = open(file)) {
+        while (true) {
+          int pageId;
+          try {
+            pageId = in.readInt();
+          } catch (EOFException e) {
+            break;
+          }
+          int titleId = in.readInt();
+          int start = in.readInt();
+          int end = in.readInt();
+          if (end - start > surface.length) {
+            surface = new char[Math.max(surface.length * 2, end - start)];
+            surfaces = CharBuffer.wrap(surface);
+          }
+          for (int i = 0; i < end - start; i++) {
+            surface[i] = in.readChar();
+          }
+          int target = resolved[titleId] == LOOP ? titleId
+              : resolved[titleId];
+          rows.normalizedLink(pageId, start, end, surfaces, 0, end - start,
+              titles.title(target), pageOf[target]);
+          if (counts != null) {
+            counts.add(surfaces, 0, end - start, target);
+          }
+          count++;
+          if (rows.rowCount() == 1024) {
+            output.write(block++, rows);
+          }
+        }
+      }
+    }
+    output.write(block, rows);
+    output.close();
+    for (File file : pageFiles) {
+      manifest.remove(file.getPath());
+      spills.add(file);
+    }
+    for (File file : linkFiles) {
+      manifest.remove(file.getPath());
+      spills.add(file);
+    }
+    System.err.println("Wrote " + count + " normalized links");
+    if (counts != null) {
+      long pairs = counts.write(countOutput, rows);
+      countOutput.close();
+      int runs = counts.runs();
+      System.err.println("Wrote " + pairs + " link counts"
+          + (runs > 0 ? ", merged from " + runs + " runs on disk" : ""));
+    }
+  }
+
+  /**
+   * Deletes the state files, once the manifest without them is written
+   */
+  public void deleteSpills() {
+    for (File file : spills) {
+      file.delete();
+    }
+  }
+
+  /**
+   * Follows the redirects of every title to the end of its chain, each
+   * title is visited once
+   *
+   * @param redirectOf target title id of each title, -1 if not a redirect
+   * @return the resolved title id of each title, or {@link #LOOP}
+   */
+  static int[] resolve(int[] redirectOf) {
+    int[] resolved = new int[redirectOf.length];
+    Arrays.fill(resolved, UNVISITED);
+    int[] path = new int[16];
+    for (int id = 0; id < redirectOf.length; id++) {
+      int length = 0;
+      int title = id;
+      while (resolved[title] == UNVISITED && redirectOf[title] >= 0) {
+        resolved[title] = VISITING;
+        if (length == path.length) {
+          path = Arrays.copyOf(path, length * 2);
+        }
+        path[length++] = title;
+        title = redirectOf[title];
+      }
+      int end;
+      if (resolved[title] == VISITING || resolved[title] == LOOP) {
+        end = LOOP;
+      } else if (resolved[title] == UNVISITED) {
+        end = title;
+        resolved[title] = title;
+      } else {
+        end = resolved[title];
+      }
+      for (int i = 0; i < length; i++) {
+        resolved[path[i]] = end;
+      }
+    }
+    return resolved;
+  }
+
+  private static DataInputStream open(File file) throws IOException {
+    return new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file), 1 << 16));
+  }
+
+  private static byte[] record(int titleId, int pageId, int targetId) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(12);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(titleId);
+      out.writeInt(pageId);
+      out.writeInt(targetId);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+}
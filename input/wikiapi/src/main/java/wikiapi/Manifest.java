@@ -0,0 +1,173 @@
+package wikiapi;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Lists the output files with their row counts and sizes, one tab separated
+ * line per file: name relative to the manifest, rows, bytes on disk and
+ * uncompressed bytes. Loaders use it to pick up the files of a table and to
+ * spread them over parallel workers.
+ *
+ */
+public class Manifest implements Closeable {
+
+  public static final String HEADER = "file\trows\tbytes\traw_bytes";
+
+  private final File file;
+  // Entry lines by file name
+  private final Map<String, String> entries = new TreeMap<>();
+
+  /**
+   * @param file the manifest, written on close
+   */
+  public Manifest(String file) {
+    this.file = new File(file);
+  }
+
+  /**
+   * Records a closed output file
+   *
+   * @param path
+   * @param rows
+   * @param bytes size on disk
+   * @param rawBytes size before compression
+   */
+  public synchronized void add(String path, long rows, long bytes,
+      long rawBytes) {
+    String name = new File(path).getName();
+    entries.put(name, name + "\t" + rows + "\t" + bytes + "\t" + rawBytes);
+  }
+
+  /**
+   * @param path
+   * @return whether the file has been recorded
+   */
+  public synchronized boolean contains(String path) {
+    return entries.containsKey(new File(path).getName());
+  }
+
+  /**
+   * Drops a file from the manifest, e.g. an intermediate one
+   *
+   * @param path
+   */
+  public synchronized void remove(String path) {
+    entries.remove(new File(path).getName());
+  }
+
+  /**
+   * @param prefix name of an output, e.g. page
+   * @return the files of the output, next to the manifest
+   */
+  public synchronized List<File> files(String prefix) {
+    List<File> files = new ArrayList<>();
+    for (String name : entries.keySet()) {
+      if (name.startsWith(prefix) && name.length() > prefix.length()
+          && Character.isDigit(name.charAt(prefix.length()))) {
+        files.add(new File(file.getParentFile(), name));
+      }
+    }
+    return files;
+  }
+
+  /**
+   * @return the directory of the manifest and its files
+   */
+  public File directory() {
+    return file.getAbsoluteFile().getParentFile();
+  }
+
+  /**
+   * Writes the header and the entries sorted by file name
+   *
+   * @param out
+   */
+  public synchronized void writeTo(PrintWriter out) {
+    out.print(HEADER + "\n");
+    for (String entry : entries.values()) {
+      out.print(entry + "\n");
+    }
+  }
+
+  /**
+   * Adds the entries of a manifest written by {@link #writeTo}, up to the end
+   * of the reader
+   *
+   * @param in
+   * @throws IOException
+   */
+  public synchronized void readFrom(BufferedReader in) throws IOException {
+    String line = in.readLine();
+    if (!HEADER.equals(line)) {
+      throw new IOException("Not a manifest: " + line);
+    }
+    while ((line = in.readLine()) != null) {
+      entries.put(line.substring(0, line.indexOf('\t')), line);
+    }
+  }
+
+  /**
+   * Reads a manifest written by {@link #close()}
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static Manifest read(File file) throws IOException {
+    Manifest manifest = new Manifest(file.getPath());
+    try (BufferedReader in = new BufferedReader(new InputStreamReader(
+        new FileInputStream(file), StandardCharsets.UTF_8))) {
+      manifest.readFrom(in);
+    }
+    return manifest;
+  }
+
+  /**
+   * Writes the manifest
+   */
+  @Override
+  public void close() throws IOException {
+    write(file, this::writeTo);
+  }
+
+  /**
+   * Writes a small text file atomically and durably, through a temporary
+   * file that is synced and renamed over the target
+   *
+   * @param target
+   * @param content
+   * @throws IOException
+   */
+  static void write(File target, Consumer<PrintWriter> content)
+      throws IOException {
+    File tmp = new File(target.getPath() + ".tmp");
+    try (FileOutputStream file = new FileOutputStream(tmp);
+        PrintWriter out = new PrintWriter(
+            new OutputStreamWriter(file, StandardCharsets.UTF_8))) {
+      content.accept(out);
+      out.flush();
+      if (out.checkError()) {
+        throw new IOException("Failed writing " + tmp);
+      }
+      file.getFD().sync();
+    }
+    if (!tmp.renameTo(target)) {
+      throw new IOException("Failed to move " + tmp + " to " + target);
+    }
+  }
+
+}
@@ -0,0 +1,342 @@
+package wikiapi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Decompresses a multistream bzip2 dump with a pool of threads and presents
+ * the concatenated output as one ordered stream, so the XML parser sees the
+ * same bytes as it would from bzcat.
+ *
+ * Stream boundaries are taken from the companion index file
+ * (*-multistream-index.txt.bz2) when available, otherwise the file is
+ * scanned for bzip2 stream headers. A segment is held in memory compressed
+ * and decompressed, so at most a bounded number of compressed bytes is
+ * scanned for the next header. Past that, e.g. in a regular single stream
+ * .bz2 file, the rest of the file is decompressed sequentially as a stream.
+ *
+ */
+public class MultistreamBZip2InputStream extends InputStream {
+
+  // Every stream starts with "BZh[1-9]" followed by the block magic (BCD pi)
+  private static final byte[] BLOCK_MAGIC = { 0x31, 0x41, 0x59, 0x26, 0x53,
+      0x59 };
+  private static final int HEADER_LENGTH = 4 + BLOCK_MAGIC.length;
+  private static final int SCAN_BUFFER = 1 << 22;
+  // Compressed bytes of a segment, streams of multistream dumps take well
+  // under a megabyte
+  private static final int MAX_SEGMENT = 1 << 24;
+
+  private final FileChannel channel;
+  private final ExecutorService decompressors;
+  private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+  private final int window;
+  private final int maxSegment;
+
+  // Stream offsets from the index, null if boundaries are scanned for
+  private final long[] offsets;
+  private int nextOffset = 0;
+
+  // Sequential scanning state, unassigned bytes are buf[start, end)
+  private byte[] buf;
+  private int start = 0;
+  private int end = 0;
+  private int searched = 1;
+  private boolean eof = false;
+
+  private byte[] current = new byte[0];
+  private int pos = 0;
+
+  // Sequential decompression of the rest of the file once a segment is
+  // too large, read after the pending segments
+  private InputStream rest = null;
+
+  /**
+   * Uses the companion index file if one is found next to the dump
+   *
+   * @param file
+   * @param threads
+   * @throws IOException
+   */
+  public MultistreamBZip2InputStream(String file, int threads)
+      throws IOException {
+    this(file, indexFileFor(file), threads);
+  }
+
+  /**
+   * @param file bzip2 compressed dump
+   * @param index multistream index, null to scan for stream headers
+   * @param threads number of decompression threads
+   * @throws IOException
+   */
+  public MultistreamBZip2InputStream(String file, String index, int threads)
+      throws IOException {
+    this(file, index, threads, MAX_SEGMENT);
+  }
+
+  /**
+   * @param maxSegment compressed bytes a segment may take, package visible
+   *          for the tests
+   */
+  MultistreamBZip2InputStream(String file, String index, int threads,
+      int maxSegment) throws IOException {
+    this.maxSegment = maxSegment;
+    threads = Math.max(1, threads);
+    channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+    offsets = index == null ? null : readOffsets(index);
+    if (offsets == null) {
+      buf = new byte[Math.min(SCAN_BUFFER, maxSegment)];
+    }
+    window = threads * 2;
+    decompressors = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("bunzip2-%d").build());
+  }
+
+  /**
+   * @param dump
+   * @return the multistream index file of the dump if it exists
+   */
+  public static String indexFileFor(String dump) {
+    String suffix = "multistream.xml.bz2";
+    if (!dump.endsWith(suffix)) {
+      return null;
+    }
+    String index = dump.substring(0, dump.length() - suffix.length())
+        + "multistream-index.txt.bz2";
+    return new File(index).isFile() ? index : null;
+  }
+
+  /**
+   * Reads the distinct stream offsets from index lines of the form
+   * offset:page_id:title
+   */
+  private static long[] readOffsets(String index) throws IOException {
+    long[] result = new long[1 << 16];
+    // The site info header lives in its own stream before the first page
+    int size = 1;
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new BZip2CompressorInputStream(new FileInputStream(index), true),
+        StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int colon = line.indexOf(':');
+        if (colon <= 0) {
+          continue;
+        }
+        long offset = Long.parseLong(line.substring(0, colon));
+        if (offset != result[size - 1]) {
+          if (size == result.length) {
+            result = Arrays.copyOf(result, size * 2);
+          }
+          result[size++] = offset;
+        }
+      }
+    }
+    return Arrays.copyOf(result, size);
+  }
+
+  /**
+   * @return the compressed bytes of the next independent stream(s), null at
+   *         the end of file
+   */
+  private byte[] nextSegment() throws IOException {
+    if (rest != null) {
+      return null;
+    }
+    return offsets == null ? scanSegment() : indexedSegment();
+  }
+
+  /**
+   * Gives up on segments, the given bytes and the file from the current
+   * position of the channel on are decompressed as one stream
+   */
+  private void streamRest(InputStream prefix) throws IOException {
+    rest = new BZip2CompressorInputStream(new BufferedInputStream(
+        new SequenceInputStream(prefix, Channels.newInputStream(channel)),
+        1 << 16), true);
+  }
+
+  private byte[] indexedSegment() throws IOException {
+    if (nextOffset >= offsets.length) {
+      return null;
+    }
+    long from = offsets[nextOffset++];
+    long to = nextOffset < offsets.length ? offsets[nextOffset] : channel
+        .size();
+    if (to - from > maxSegment) {
+      channel.position(from);
+      streamRest(new ByteArrayInputStream(new byte[0]));
+      return null;
+    }
+    ByteBuffer segment = ByteBuffer.allocate((int) (to - from));
+    while (segment.hasRemaining()) {
+      if (channel.read(segment, from + segment.position()) < 0) {
+        break;
+      }
+    }
+    return Arrays.copyOf(segment.array(), segment.position());
+  }
+
+  private byte[] scanSegment() throws IOException {
+    while (true) {
+      for (int i = start + searched; i + HEADER_LENGTH <= end; i++) {
+        if (isStreamHeader(buf, i)) {
+          byte[] segment = Arrays.copyOfRange(buf, start, i);
+          start = i;
+          searched = 1;
+          return segment;
+        }
+      }
+      if (eof) {
+        if (start == end) {
+          return null;
+        }
+        byte[] segment = Arrays.copyOfRange(buf, start, end);
+        start = end;
+        return segment;
+      }
+      if (end - start >= maxSegment) {
+        streamRest(new ByteArrayInputStream(buf, start, end - start));
+        return null;
+      }
+      searched = Math.max(1, end - start - HEADER_LENGTH + 1);
+      fillScanBuffer();
+    }
+  }
+
+  private void fillScanBuffer() throws IOException {
+    if (start > 0) {
+      System.arraycopy(buf, start, buf, 0, end - start);
+      end -= start;
+      start = 0;
+    }
+    if (end == buf.length) {
+      buf = Arrays.copyOf(buf, Math.min(buf.length * 2, maxSegment));
+    }
+    int read = channel.read(ByteBuffer.wrap(buf, end, buf.length - end));
+    if (read < 0) {
+      eof = true;
+    } else {
+      end += read;
+    }
+  }
+
+  private static boolean isStreamHeader(byte[] b, int i) {
+    if (b[i] != 'B' || b[i + 1] != 'Z' || b[i + 2] != 'h' || b[i + 3] < '1'
+        || b[i + 3] > '9') {
+      return false;
+    }
+    for (int j = 0; j < BLOCK_MAGIC.length; j++) {
+      if (b[i + 4 + j] != BLOCK_MAGIC[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static byte[] decompress(byte[] compressed) throws IOException {
+    try (InputStream in = new BZip2CompressorInputStream(
+        new ByteArrayInputStream(compressed), true)) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+
+  /**
+   * Keeps the decompression pool busy with the streams following the one
+   * being read
+   */
+  private void fill() throws IOException {
+    byte[] segment;
+    while (pending.size() < window && (segment = nextSegment()) != null) {
+      final byte[] compressed = segment;
+      pending.add(decompressors.submit(() -> decompress(compressed)));
+    }
+  }
+
+  private boolean advance() throws IOException {
+    fill();
+    Future<byte[]> next = pending.poll();
+    if (next == null) {
+      return false;
+    }
+    try {
+      current = next.get();
+      pos = 0;
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    while (pos == current.length) {
+      if (!advance()) {
+        return rest == null ? -1 : rest.read();
+      }
+    }
+    return current[pos++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (pos == current.length) {
+      if (!advance()) {
+        return rest == null ? -1 : rest.read(b, off, len);
+      }
+    }
+    int n = Math.min(len, current.length - pos);
+    System.arraycopy(current, pos, b, off, n);
+    pos += n;
+    return n;
+  }
+
+  @Override
+  public int available() {
+    return current.length - pos;
+  }
+
+  @Override
+  public void close() throws IOException {
+    decompressors.shutdownNow();
+    pending.clear();
+    if (rest != null) {
+      rest.close();
+    }
+    channel.close();
+  }
+
+}
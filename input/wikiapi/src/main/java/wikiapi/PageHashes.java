@@ -0,0 +1,175 @@
+package wikiapi;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import info.bliki.wiki.dump.WikiArticle;
+
+/**
+ * Page id to content hash map of a dump, used to find the pages that changed
+ * since the previous run. The ids are held in a sorted int array with the
+ * hashes alongside, titles are only kept on disk.
+ *
+ * On disk the state is a sequence of records (page id, hash, title) in any
+ * order, spread over the hashes files of the manifest.
+ *
+ */
+public class PageHashes {
+
+  private static final HashFunction MURMUR = Hashing.murmur3_128();
+
+  private final int[] ids;
+  private final long[] hashes;
+
+  /**
+   * Receives the records of state files
+   */
+  @FunctionalInterface
+  public interface RecordHandler {
+    void record(long id, long hash, String title) throws IOException;
+  }
+
+  private PageHashes(int[] ids, long[] hashes) {
+    this.ids = ids;
+    this.hashes = hashes;
+  }
+
+  /**
+   * @param page
+   * @return 64 bit hash of the title and the wikitext
+   */
+  public static long hash(WikiArticle page) {
+    String text = page.getText();
+    return MURMUR.newHasher()
+        .putUnencodedChars(page.getTitle())
+        .putChar('\n')
+        .putUnencodedChars(text == null ? "" : text)
+        .hash().asLong();
+  }
+
+  /**
+   * @param id
+   * @param hash
+   * @param title
+   * @return the state record of a page
+   */
+  public static byte[] record(long id, long hash, String title) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+        18 + title.length());
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeLong(id);
+      out.writeLong(hash);
+      out.writeUTF(title);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Streams the records of the state files
+   *
+   * @param files
+   * @param handler
+   * @throws IOException
+   */
+  public static void forEach(List<File> files, RecordHandler handler)
+      throws IOException {
+    for (File file : files) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(file), 1 << 16))) {
+        while (true) {
+          long id;
+          try {
+            id = in.readLong();
+          } catch (EOFException e) {
+            break;
+          }
+          handler.record(id, in.readLong(), in.readUTF());
+        }
+      }
+    }
+  }
+
+  /**
+   * Loads the ids and hashes of the state files
+   *
+   * @param files
+   * @return
+   * @throws IOException
+   */
+  public static PageHashes read(List<File> files) throws IOException {
+    Loader loader = new Loader();
+    forEach(files, loader);
+    int n = loader.size;
+    long[] keys = loader.keys;
+    Arrays.parallelSort(keys, 0, n);
+    int[] ids = new int[n];
+    long[] hashes = new long[n];
+    for (int i = 0; i < n; i++) {
+      ids[i] = (int) (keys[i] >>> 32);
+      hashes[i] = loader.hashes[(int) keys[i]];
+    }
+    return new PageHashes(ids, hashes);
+  }
+
+  /**
+   * Collects the records in read order, with the id in the high bits of a
+   * key and the position of the hash in the low bits for sorting
+   */
+  private static class Loader implements RecordHandler {
+    long[] keys = new long[1 << 10];
+    long[] hashes = new long[1 << 10];
+    int size = 0;
+
+    @Override
+    public void record(long id, long hash, String title) throws IOException {
+      if (id < 0 || id > Integer.MAX_VALUE) {
+        throw new IOException("Page id out of range: " + id);
+      }
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, size * 2);
+        hashes = Arrays.copyOf(hashes, size * 2);
+      }
+      keys[size] = id << 32 | size;
+      hashes[size] = hash;
+      size++;
+    }
+  }
+
+  /**
+   * @param id
+   * @return position of the page, negative if absent
+   */
+  public int indexOf(long id) {
+    if (id < 0 || id > Integer.MAX_VALUE) {
+      return -1;
+    }
+    return Arrays.binarySearch(ids, (int) id);
+  }
+
+  /**
+   * @param index position returned by {@link #indexOf(long)}
+   * @return
+   */
+  public long hash(int index) {
+    return hashes[index];
+  }
+
+  public int size() {
+    return ids.length;
+  }
+
+}
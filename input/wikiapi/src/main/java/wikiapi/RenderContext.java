@@ -0,0 +1,138 @@
+package wikiapi;
+
+import java.io.IOException;
+import java.util.function.Predicate;
+
+import info.bliki.wiki.dump.Siteinfo;
+import info.bliki.wiki.dump.WikiArticle;
+import wikiapi.processors.LinkAnnotationConverter;
+import wikiapi.processors.PlainTextWikiModel;
+
+/**
+ * Rendering state a parsing thread keeps from page to page: the wiki model,
+ * the converter, the text buffer and the links. The model and the converter
+ * are reset between pages instead of created for each, and buffers a large
+ * page grew past {@link #MAX_RETAINED} chars are dropped before the next
+ * page. A context lives as long as its thread, which is the whole run for
+ * the render stage, so each keeps at most that much in each buffer.
+ *
+ */
+public class RenderContext {
+
+  private static final int INITIAL = 1 << 14;
+  private static final int MAX_RETAINED = 1 << 20;
+
+  private final Siteinfo siteinfo;
+  private final Predicate<String> filter;
+  private final RenderBudget budget;
+  // Checkpoint of the model, null without a budget
+  private final RenderBudget.Meter meter;
+  private final PlainTextWikiModel model;
+  private final LinkBuffer links = new LinkBuffer();
+  private final LinkAnnotationConverter converter = new LinkAnnotationConverter() {
+    @Override
+    public void hasLink(int charStart, int charEnd, String href) {
+      links.add(href, charStart, charEnd);
+    }
+  };
+  private StringBuilder text = new StringBuilder(INITIAL);
+
+  /**
+   * @param siteinfo
+   * @param filter of link titles, null for the default of
+   *          {@link PlainTextWikiModel}
+   */
+  public RenderContext(Siteinfo siteinfo, Predicate<String> filter) {
+    this(siteinfo, filter, null);
+  }
+
+  /**
+   * @param siteinfo
+   * @param filter
+   * @param budget of {@link #render(WikiArticle)}, null for none
+   */
+  public RenderContext(Siteinfo siteinfo, Predicate<String> filter,
+      RenderBudget budget) {
+    this.siteinfo = siteinfo;
+    this.filter = filter;
+    this.budget = budget;
+    this.model = new PlainTextWikiModel(siteinfo, filter);
+    this.meter = budget == null ? null : budget.meter();
+    model.setCheckpoint(meter);
+  }
+
+  /**
+   * @param siteinfo
+   * @param filter
+   * @param budget
+   * @return whether pages of the dump may be rendered with this context
+   */
+  public boolean isFor(Siteinfo siteinfo, Predicate<String> filter,
+      RenderBudget budget) {
+    return this.siteinfo == siteinfo && this.filter == filter
+        && this.budget == budget;
+  }
+
+  /**
+   * Renders the page within the budget, if any. A page over budget is
+   * rendered again without its tables and templates, and gets no text and
+   * no links if that is over budget too.
+   *
+   * @param page
+   * @return the plain text, null if rendering failed or the page is dropped
+   */
+  public String render(WikiArticle page) {
+    if (meter == null) {
+      return render(page.getText());
+    }
+    String text = meter.render(page.getId(), page.getTitle(),
+        page.getText(), this::render);
+    if (text == null) {
+      clear();
+    }
+    return text;
+  }
+
+  /**
+   * Renders a page as PlainTextWikiModel.render would, its links are kept in
+   * {@link #links()} until the next page
+   *
+   * @param wikitext
+   * @return the plain text, null if rendering failed
+   */
+  public String render(String wikitext) {
+    clear();
+    if (meter != null) {
+      meter.watch(text);
+    }
+    try {
+      model.render(converter, wikitext, text, false, true);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+    return text.toString();
+  }
+
+  /**
+   * Empties the buffers and the links, shrinking those a page grew past
+   * {@link #MAX_RETAINED}
+   */
+  public void clear() {
+    model.setUp();
+    converter.reset();
+    links.clear(MAX_RETAINED);
+    if (text.capacity() > MAX_RETAINED) {
+      text = new StringBuilder(INITIAL);
+    }
+    text.setLength(0);
+  }
+
+  /**
+   * @return links of the last page rendered
+   */
+  public LinkBuffer links() {
+    return links;
+  }
+
+}
@@ -0,0 +1,255 @@
+package wikiapi;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Encodes rows of the pages, links and redirects tables into a reusable byte
+ * buffer. An encoder is not thread safe, each render thread keeps its own and
+ * takes the rows of a page out as one block with {@link #toBytes()}.
+ *
+ */
+public abstract class RowEncoder {
+
+  /**
+   * Output formats understood by COPY
+   */
+  public enum Format {
+    CSV("csv", "CSV", CsvRowEncoder::new, new byte[0], new byte[0]),
+    BINARY("bin", "BINARY", BinaryRowEncoder::new,
+        BinaryRowEncoder.HEADER, BinaryRowEncoder.TRAILER);
+
+    public final String extension;
+    public final String copyOptions;
+    private final Supplier<RowEncoder> encoders;
+    private final byte[] header;
+    private final byte[] trailer;
+
+    Format(String extension, String copyOptions,
+        Supplier<RowEncoder> encoders, byte[] header, byte[] trailer) {
+      this.extension = extension;
+      this.copyOptions = copyOptions;
+      this.encoders = encoders;
+      this.header = header;
+      this.trailer = trailer;
+    }
+
+    public RowEncoder newEncoder() {
+      return encoders.get();
+    }
+
+    /**
+     * @return bytes preceding the rows of a file or COPY stream
+     */
+    public byte[] header() {
+      return header.clone();
+    }
+
+    /**
+     * @return bytes following the rows of a file or COPY stream
+     */
+    public byte[] trailer() {
+      return trailer.clone();
+    }
+  }
+
+  protected byte[] buf = new byte[1 << 12];
+  protected int len = 0;
+  private int rows = 0;
+  // Int columns appended to the next row, NULL if nullIds
+  private final int[] ids = new int[2];
+  protected int idCount = 0;
+  protected boolean nullIds = false;
+
+  /**
+   * pages(page_id, title, content, disamb, categories)
+   */
+  public abstract RowEncoder page(String id, String title, String content,
+      boolean disamb, List<String> categories);
+
+  /**
+   * links(page_id, char_start, char_end, surface, title) where the surface is
+   * text[start, end)
+   */
+  public abstract RowEncoder link(String pageId, int start, int end,
+      String text, String title);
+
+  /**
+   * The same with title[titleStart, titleEnd) as the title
+   */
+  public abstract RowEncoder link(String pageId, int start, int end,
+      String text, CharSequence title, int titleStart, int titleEnd);
+
+  /**
+   * redirects(title, target)
+   */
+  public abstract RowEncoder redirect(String title, String target);
+
+  /**
+   * deletes(page_id, title) of incremental runs
+   */
+  public abstract RowEncoder deletion(String pageId, String title);
+
+  /**
+   * normalized_links(page_id, char_start, char_end, surface, title, link_id)
+   * where the surface is surface[surfaceStart, surfaceEnd)
+   */
+  public abstract RowEncoder normalizedLink(long pageId, int start, int end,
+      CharSequence surface, int surfaceStart, int surfaceEnd,
+      CharSequence title, long linkId);
+
+  /**
+   * link_counts(surface, title, count)
+   */
+  public abstract RowEncoder linkCount(CharSequence surface,
+      CharSequence title, long count);
+
+  /**
+   * titles(title_id, title) of the title dictionary
+   */
+  public abstract RowEncoder title(int id, CharSequence title);
+
+  /**
+   * Appends an int column to the next page, link or redirect row
+   */
+  public RowEncoder ids(int id) {
+    ids[0] = id;
+    idCount = 1;
+    nullIds = false;
+    return this;
+  }
+
+  /**
+   * Appends two int columns to the next page, link or redirect row
+   */
+  public RowEncoder ids(int id, int other) {
+    ids[0] = id;
+    ids[1] = other;
+    idCount = 2;
+    nullIds = false;
+    return this;
+  }
+
+  /**
+   * Appends NULL int columns to the next page, link or redirect row, in
+   * place of ids that are not assigned
+   */
+  public RowEncoder nullIds(int count) {
+    idCount = count;
+    nullIds = true;
+    return this;
+  }
+
+  /**
+   * @param i
+   * @return the i-th int column given to {@link #ids}
+   */
+  protected int id(int i) {
+    return ids[i];
+  }
+
+  /**
+   * @return number of rows encoded since the last {@link #toBytes()}
+   */
+  public int rowCount() {
+    return rows;
+  }
+
+  /**
+   * @return the rows encoded since the last call
+   */
+  public byte[] toBytes() {
+    byte[] bytes = Arrays.copyOf(buf, len);
+    len = 0;
+    rows = 0;
+    return bytes;
+  }
+
+  /**
+   * Called by the encoders after each complete row
+   */
+  protected RowEncoder endRow() {
+    rows++;
+    idCount = 0;
+    nullIds = false;
+    return this;
+  }
+
+  protected void ensure(int extra) {
+    if (len + extra > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+    }
+  }
+
+  protected void put(byte b) {
+    ensure(1);
+    buf[len++] = b;
+  }
+
+  protected void putShort(int v) {
+    ensure(2);
+    buf[len++] = (byte) (v >>> 8);
+    buf[len++] = (byte) v;
+  }
+
+  protected void putInt(int v) {
+    ensure(4);
+    putIntAt(len, v);
+    len += 4;
+  }
+
+  protected void putIntAt(int pos, int v) {
+    buf[pos] = (byte) (v >>> 24);
+    buf[pos + 1] = (byte) (v >>> 16);
+    buf[pos + 2] = (byte) (v >>> 8);
+    buf[pos + 3] = (byte) v;
+  }
+
+  protected void putLong(long v) {
+    putInt((int) (v >>> 32));
+    putInt((int) v);
+  }
+
+  /**
+   * Appends the UTF-8 encoding of the characters, unpaired surrogates become
+   * '?' as in {@link String#getBytes(java.nio.charset.Charset)}
+   */
+  protected void putUtf8(CharSequence s, int start, int end) {
+    ensure((end - start) * 3);
+    byte[] b = buf;
+    int n = len;
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        b[n++] = (byte) c;
+      } else if (c < 0x800) {
+        b[n++] = (byte) (0xc0 | (c >> 6));
+        b[n++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        char low;
+        if (Character.isHighSurrogate(c) && i + 1 < end
+            && Character.isLowSurrogate(low = s.charAt(i + 1))) {
+          int cp = Character.toCodePoint(c, low);
+          b[n++] = (byte) (0xf0 | (cp >> 18));
+          b[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+          b[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+          b[n++] = (byte) (0x80 | (cp & 0x3f));
+          i++;
+        } else {
+          b[n++] = '?';
+        }
+      } else {
+        b[n++] = (byte) (0xe0 | (c >> 12));
+        b[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        b[n++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    len = n;
+  }
+
+  protected void putUtf8(CharSequence s) {
+    putUtf8(s, 0, s.length());
+  }
+
+}
@@ -0,0 +1,306 @@
+package wikiapi;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Assigns dense int ids to titles, shared by the render threads. Titles are
+ * canonical as given by {@link Utils#str2wikilink(String)}. The dictionary is
+ * split by hash into stripes, each an open addressing table over the packed
+ * characters of its titles, guarded by its own lock.
+ *
+ * New titles are recorded as (id, title) in the state files, so that a
+ * resumed or incremental run keeps the ids of the earlier one. On close the
+ * dictionary is written sorted by title as titles(title_id, title).
+ *
+ */
+public class TitleDictionary implements Closeable {
+
+  /**
+   * Name of the state files in the manifest
+   */
+  public static final String STATE = "titleids";
+
+  // Stripes are picked by the top bits of the hash
+  private static final int STRIPE_BITS = 6;
+
+  private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+  private final AtomicInteger size = new AtomicInteger();
+  private final ChunkedWriter state;
+  private final ChunkedWriter titles;
+  private final RowEncoder rows;
+  // Stripe and entry of each id, built by title(int)
+  private volatile int[] locations = null;
+
+  /**
+   * @param state writer of the state files, null to keep no state
+   * @param titles writer of the titles rows, null to only assign ids
+   * @param format row format of the titles
+   */
+  public TitleDictionary(ChunkedWriter state, ChunkedWriter titles,
+      RowEncoder.Format format) {
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+    }
+    this.state = state;
+    this.titles = titles;
+    this.rows = format.newEncoder();
+  }
+
+  /**
+   * @param title
+   * @return id of the canonical form of the title
+   */
+  public int id(String title) {
+    String canonical = Utils.str2wikilink(title);
+    return id(canonical, 0, canonical.length());
+  }
+
+  /**
+   * @param title
+   * @param start
+   * @param end
+   * @return id of title[start, end), which is already canonical
+   */
+  public int id(CharSequence title, int start, int end) {
+    int hash = hash(title, start, end);
+    Stripe stripe = stripes[hash >>> (32 - STRIPE_BITS)];
+    int id;
+    synchronized (stripe) {
+      id = stripe.find(title, start, end, hash);
+      if (id >= 0) {
+        return id;
+      }
+      id = size.getAndIncrement();
+      stripe.add(title, start, end, hash, id);
+    }
+    if (state != null) {
+      state.write(0, record(id, title.subSequence(start, end).toString()), 1);
+    }
+    return id;
+  }
+
+  public int size() {
+    return size.get();
+  }
+
+  /**
+   * @param id
+   * @return the title of the id, to be called once all ids are assigned
+   */
+  public String title(int id) {
+    int[] index = locations;
+    if (index == null) {
+      index = new int[size.get()];
+      Arrays.fill(index, -1);
+      for (int s = 0; s < stripes.length; s++) {
+        Stripe stripe = stripes[s];
+        for (int i = 0; i < stripe.count; i++) {
+          index[stripe.ids[i]] = i << STRIPE_BITS | s;
+        }
+      }
+      locations = index;
+    }
+    int location = index[id];
+    if (location < 0) {
+      return null;
+    }
+    return stripes[location & (stripes.length - 1)]
+        .title(location >>> STRIPE_BITS);
+  }
+
+  /**
+   * Adds the titles of state files with their ids
+   *
+   * @param files
+   * @param record whether to record them in the state of this run
+   * @throws IOException
+   */
+  public void load(List<File> files, boolean record) throws IOException {
+    for (File file : files) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(file), 1 << 16))) {
+        while (true) {
+          int id;
+          try {
+            id = in.readInt();
+          } catch (EOFException e) {
+            break;
+          }
+          String title = in.readUTF();
+          int hash = hash(title, 0, title.length());
+          Stripe stripe = stripes[hash >>> (32 - STRIPE_BITS)];
+          synchronized (stripe) {
+            if (stripe.find(title, 0, title.length(), hash) >= 0) {
+              continue;
+            }
+            stripe.add(title, 0, title.length(), hash, id);
+          }
+          size.accumulateAndGet(id + 1, Math::max);
+          if (record && state != null) {
+            state.write(0, record(id, title), 1);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Closes the current state file, see {@link ChunkedWriter#rotate()}
+   *
+   * @throws IOException
+   */
+  public void rotate() throws IOException {
+    if (state != null) {
+      state.rotate();
+    }
+  }
+
+  /**
+   * Writes the titles sorted, to be called after all ids are assigned
+   */
+  @Override
+  public void close() throws IOException {
+    if (state != null) {
+      state.close();
+    }
+    if (titles == null) {
+      return;
+    }
+    String[] sorted = new String[size.get()];
+    int n = 0;
+    for (Stripe stripe : stripes) {
+      for (int i = 0; i < stripe.count; i++) {
+        sorted[n++] = stripe.title(i);
+      }
+    }
+    sorted = Arrays.copyOf(sorted, n);
+    Arrays.parallelSort(sorted);
+    for (String title : sorted) {
+      rows.title(id(title, 0, title.length()), title);
+      if (rows.rowCount() == 1024) {
+        titles.write(0, rows);
+      }
+    }
+    titles.write(0, rows);
+    titles.close();
+    System.err.println("Wrote " + n + " titles");
+  }
+
+  private static byte[] record(int id, String title) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+        6 + title.length());
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(id);
+      out.writeUTF(title);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static int hash(CharSequence s, int start, int end) {
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      h = 31 * h + s.charAt(i);
+    }
+    // Spread the bits, the stripe is taken from the top ones
+    h *= 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Open addressing table of entry indexes, the entries in parallel arrays
+   */
+  private static class Stripe {
+    // Entry index + 1 of each slot, 0 if free
+    int[] slots = new int[64];
+    int[] hashes = new int[32];
+    int[] ids = new int[32];
+    // Title i is chars[ends[i - 1], ends[i])
+    int[] ends = new int[32];
+    char[] chars = new char[512];
+    int count = 0;
+
+    int find(CharSequence s, int start, int end, int hash) {
+      int mask = slots.length - 1;
+      for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+        int entry = slots[slot] - 1;
+        if (entry < 0) {
+          return -1;
+        }
+        if (hashes[entry] == hash && matches(entry, s, start, end)) {
+          return ids[entry];
+        }
+      }
+    }
+
+    private boolean matches(int entry, CharSequence s, int start, int end) {
+      int from = entry == 0 ? 0 : ends[entry - 1];
+      if (ends[entry] - from != end - start) {
+        return false;
+      }
+      for (int i = start; i < end; i++) {
+        if (chars[from++] != s.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    void add(CharSequence s, int start, int end, int hash, int id) {
+      if (count == ids.length) {
+        hashes = Arrays.copyOf(hashes, count * 2);
+        ids = Arrays.copyOf(ids, count * 2);
+        ends = Arrays.copyOf(ends, count * 2);
+      }
+      int from = count == 0 ? 0 : ends[count - 1];
+      int to = from + end - start;
+      if (to > chars.length) {
+        chars = Arrays.copyOf(chars, Math.max(chars.length * 2, to));
+      }
+      for (int i = start; i < end; i++) {
+        chars[from++] = s.charAt(i);
+      }
+      hashes[count] = hash;
+      ids[count] = id;
+      ends[count] = to;
+      count++;
+      // At most half full
+      if (count * 2 > slots.length) {
+        slots = new int[slots.length * 2];
+        for (int i = 0; i < count; i++) {
+          insert(i);
+        }
+      } else {
+        insert(count - 1);
+      }
+    }
+
+    private void insert(int entry) {
+      int mask = slots.length - 1;
+      int slot = hashes[entry] & mask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = entry + 1;
+    }
+
+    String title(int entry) {
+      int from = entry == 0 ? 0 : ends[entry - 1];
+      return new String(chars, from, ends[entry] - from);
+    }
+  }
+
+}
@@ -6,9 +6,6 @@ import info.bliki.wiki.dump.WikiArticle;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.StringUtils;
 
@@ -38,42 +35,27 @@ public class Utils {
   }
 
   /**
-   * Bounds the number concurrent executing thread to 1/2 of the cores available
-   * to the JVM. If more jobs are submitted than the allowed upperbound, the
-   * caller thread will be executing the job.
+   * A render stage with a worker per core available to the JVM. The thread
+   * reading the dump waits while the queue is full instead of rendering.
    * 
-   * @return a fixed thread pool with bounded job numbers
+   * @return a stage with room for two pages per worker
    */
-  public static ThreadPoolExecutor getBoundedThreadPool() {
+  public static Stage getRenderStage() {
     int coreCount = Runtime.getRuntime().availableProcessors();
-    ThreadPoolExecutor executor = new ThreadPoolExecutor(coreCount, // Core
-        coreCount, // Pool Max
-        60, TimeUnit.SECONDS, // Thread keep alive time
-        new ArrayBlockingQueue<Runnable>(coreCount),// Queue
-        new ThreadPoolExecutor.CallerRunsPolicy()// Blocking mechanism
-    );
-    executor.allowCoreThreadTimeOut(true);
-    return executor;
+    return new Stage("render", coreCount, 2 * coreCount);
   }
 
   /**
-   * Bounds the number concurrent executing thread to 1/2 of the cores available
-   * to the JVM. If more jobs are submitted than the allowed upperbound, the
-   * caller thread will be executing the job.
+   * A render stage with one worker less than the given thread count, the
+   * remaining thread being the one reading the dump, and at most a worker
+   * per core available to the JVM
    * 
-   * @return a fixed thread pool with bounded job numbers
+   * @return a stage with room for two pages per worker
    */
-  public static ThreadPoolExecutor getBoundedThreadPool(int poolSize) {
-    poolSize = Math.max(1, poolSize - 1);
+  public static Stage getRenderStage(int threadCount) {
+    int poolSize = Math.max(1, threadCount - 1);
     poolSize = Math.min(poolSize, Runtime.getRuntime().availableProcessors());
-    ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, // Core count
-        poolSize, // Pool Max
-        60, TimeUnit.SECONDS, // Thread keep alive time
-        new ArrayBlockingQueue<Runnable>(poolSize),// Queue
-        new ThreadPoolExecutor.CallerRunsPolicy()// Blocking mechanism
-    );
-    executor.allowCoreThreadTimeOut(true);
-    return executor;
+    return new Stage("render", poolSize, 2 * poolSize);
   }
 
   // Set of special page prefixes
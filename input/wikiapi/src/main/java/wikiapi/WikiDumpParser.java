@@ -1,14 +1,19 @@
 package wikiapi;
 
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 
 import org.apache.commons.lang3.StringUtils;
@@ -18,10 +23,7 @@ import info.bliki.wiki.dump.IArticleFilter;
 import info.bliki.wiki.dump.Siteinfo;
 import info.bliki.wiki.dump.WikiArticle;
 import info.bliki.wiki.dump.WikiXMLParser;
-import info.bliki.wiki.model.WikiModel;
-import wikiapi.processors.LinkAnnotationConverter;
 import wikiapi.processors.PageMeta;
-import wikiapi.processors.PlainTextWikiModel;
 
 /**
  * Parses Wikipedia dump to Wikifier data formats
@@ -66,10 +68,39 @@ public abstract class WikiDumpParser implements IArticleFilter {
   private int totalParsed = 0;
   private int prevCount = 0;
   private long prevTime;
-  private final ThreadPoolExecutor parsing;
+  // Render workers, fed by the thread reading the dump
+  private final Stage parsing;
   private Predicate<String> filter = null;
   private boolean printProgress = true;
-  private static final List<Href> NO_LINKS = Collections.emptyList();
+  private int decompressionThreads = Math.max(1,
+      Runtime.getRuntime().availableProcessors() / 4);
+  private final List<Closeable> outputs = new ArrayList<>();
+  // Jobs submitted and not yet finished, signalled on idle when zero
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final Object idle = new Object();
+  // State of the job each worker runs, a job given up on as stuck is
+  // abandoned: counted as finished at once and its output dropped
+  private static final int RUNNING = 0;
+  private static final int WRITING = 1;
+  private static final int ABANDONED = 2;
+  private static final int DONE = 3;
+  private final ConcurrentHashMap<Thread, AtomicInteger> jobs =
+      new ConcurrentHashMap<>();
+  private final AtomicInteger abandoned = new AtomicInteger();
+  private int checkpointEvery = 0;
+  private Checkpointer checkpointer = null;
+  private int resumeJobs = 0;
+  private long resumeOffset = -1;
+  // Dump offset after the last submitted job, -1 if not seekable
+  private long inputOffset = -1;
+  private volatile String lastPageId = null;
+  private Predicate<WikiArticle> skip = null;
+  private RenderBudget budget = null;
+  // Replaces the render workers the budget finds stuck
+  private final Consumer<Thread> replaceStuck = this::replaceWorker;
+  // Model, buffers and links of the page being rendered, one context per
+  // thread that rendered a page, kept until the threads end with the run
+  private final ThreadLocal<RenderContext> contexts = new ThreadLocal<>();
 
   /**
    * Multi-threaded parsing with single dump I/O
@@ -78,12 +109,21 @@ public abstract class WikiDumpParser implements IArticleFilter {
     this(null);
   }
 
+  /**
+   * Called with all jobs before the checkpoint finished and none after it
+   * started, outputs written so far should be made durable
+   */
+  @FunctionalInterface
+  public interface Checkpointer {
+    void checkpoint(Checkpoint checkpoint) throws IOException;
+  }
+
   public WikiDumpParser(int threadCount) {
-    parsing = Utils.getBoundedThreadPool(threadCount);
+    parsing = Utils.getRenderStage(threadCount);
   }
 
   public WikiDumpParser(Predicate<String> filter) {
-    parsing = Utils.getBoundedThreadPool();
+    parsing = Utils.getRenderStage();
     this.filter = filter;
   }
 
@@ -92,7 +132,7 @@ public abstract class WikiDumpParser implements IArticleFilter {
    * specification
    */
   public WikiDumpParser(Predicate<String> filter, int threadCount) {
-    parsing = Utils.getBoundedThreadPool(threadCount);
+    parsing = Utils.getRenderStage(threadCount);
     this.filter = filter;
   }
 
@@ -116,37 +156,194 @@ public abstract class WikiDumpParser implements IArticleFilter {
     return this;
   }
   
+  /**
+   * Registers an output written by {@link #processAnnotation} to be closed,
+   * in registration order, after the last parsing job has finished
+   * 
+   * @param output
+   * @return
+   */
+  public WikiDumpParser closeOnFinish(Closeable output) {
+    outputs.add(output);
+    return this;
+  }
+
+  /**
+   * Number of threads decompressing .bz2 dumps given by file name
+   * 
+   * @param threads
+   * @return
+   */
+  public WikiDumpParser setDecompressionThreads(int threads) {
+    this.decompressionThreads = threads;
+    return this;
+  }
+  
+  /**
+   * Pauses every given number of jobs until all submitted jobs have finished
+   * and calls the checkpointer
+   * 
+   * @param jobs
+   * @param checkpointer
+   * @return
+   */
+  public WikiDumpParser checkpointEvery(int jobs, Checkpointer checkpointer) {
+    this.checkpointEvery = jobs;
+    this.checkpointer = checkpointer;
+    return this;
+  }
+
+  /**
+   * Skips the jobs before the checkpoint without parsing them. Uncompressed
+   * dumps are entered at the offset of the checkpoint, other dumps are read
+   * from the start.
+   * 
+   * @param checkpoint
+   * @return
+   */
+  public WikiDumpParser resumeFrom(Checkpoint checkpoint) {
+    this.resumeJobs = checkpoint.jobs;
+    this.resumeOffset = checkpoint.offset;
+    return this;
+  }
+  
+  /**
+   * Pages matching the predicate are neither parsed nor passed to
+   * {@link #processAnnotation}. The predicate is tested once for every page,
+   * on the parsing threads.
+   * 
+   * @param skip
+   * @return
+   */
+  public WikiDumpParser skipPages(Predicate<WikiArticle> skip) {
+    this.skip = skip;
+    return this;
+  }
+  
+  /**
+   * Limits the time and output of rendering each page, see
+   * {@link RenderBudget}. A page still running long after its budget ran out
+   * is left behind on its thread, and a new render worker takes its place.
+   * The page is abandoned: it counts as finished for checkpoints and
+   * {@link #close}, and {@link #processAnnotation} is never called for it.
+   * The budget is not closed by the parser.
+   * 
+   * @param budget
+   * @return
+   */
+  public WikiDumpParser setRenderBudget(RenderBudget budget) {
+    if (this.budget != null) {
+      this.budget.removeStuckListener(replaceStuck);
+    }
+    this.budget = budget;
+    if (budget != null) {
+      budget.addStuckListener(replaceStuck);
+    }
+    return this;
+  }
+
   public Runnable createTask(WikiArticle page, Siteinfo siteinfo,int jobId) {
     return () -> {
+      if (checkpointEvery > 0 && (jobId + 1) % checkpointEvery == 0) {
+        lastPageId = page.getId();
+      }
+      if (skip != null && skip.test(page)) {
+        return;
+      }
       if (page.isMain() && !StringUtils.isEmpty(page.getText())
           && !Utils.isSpecialTitle(page.getTitle(), siteinfo)) {
 
-        WikiModel wikiModel = new PlainTextWikiModel(siteinfo, filter);
-        wikiModel.setUp();
-        final List<Href> links = new ArrayList<Href>();
-        LinkAnnotationConverter renderer = new LinkAnnotationConverter() {
-          public void hasLink(int charStart, int charEnd, String href) {
-            links.add(new Href(href, charStart, charEnd));
-          }
-        };
-        String text = wikiModel.render(renderer, page.getText());
+        RenderContext context = context(siteinfo);
+        String text = context.render(page);
         PageMeta meta = new PageMeta(page);
         if (!StringUtils.isEmpty(text)) {
-          processAnnotation(page, meta, text, links, jobId);
+          if (!claim()) {
+            return;
+          }
+          processAnnotation(page, meta, text, context.links(), jobId);
           return;
         }
       }
-      processAnnotation(page, new PageMeta(page), "", NO_LINKS, jobId);
+      // Only rendering threads hold a context
+      if (!claim()) {
+        return;
+      }
+      processAnnotation(page, new PageMeta(page), "", LinkBuffer.EMPTY, jobId);
     };
   }
 
+  /**
+   * @return the rendering context of the current thread for the dump
+   */
+  private RenderContext context(Siteinfo siteinfo) {
+    RenderContext context = contexts.get();
+    if (context == null || !context.isFor(siteinfo, filter, budget)) {
+      context = new RenderContext(siteinfo, filter, budget);
+      contexts.set(context);
+    }
+    return context;
+  }
+
   public void process(final WikiArticle page, Siteinfo siteinfo)
       throws SAXException {
-    if (printProgress && totalParsed == 0) {
+    if (totalParsed < resumeJobs) {
+      ++totalParsed;
+      return;
+    }
+    try {
+      submit(createTask(page, siteinfo, totalParsed));
+    } catch (IOException e) {
+      throw new SAXException(e);
+    }
+  }
+
+  /**
+   * Decodes the raw page element on the worker thread before parsing it
+   */
+  private void process(final ByteBuffer rawPage, Siteinfo siteinfo)
+      throws IOException {
+    if (totalParsed < resumeJobs) {
+      ++totalParsed;
+      return;
+    }
+    final int jobId = totalParsed;
+    submit(() -> {
+      try {
+        WikiArticle page = PageSplitter.decode(rawPage, siteinfo);
+        if (page != null) {
+          createTask(page, siteinfo, jobId).run();
+        }
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    });
+  }
+
+  private void submit(Runnable task) throws IOException {
+    if (printProgress && prevTime == 0) {
       prevTime = System.currentTimeMillis();
+      prevCount = totalParsed;
     }
     // Concurrent callback
-    parsing.execute(createTask(page, siteinfo, totalParsed));
+    inFlight.incrementAndGet();
+    try {
+      parsing.execute(() -> {
+        Thread worker = Thread.currentThread();
+        AtomicInteger job = new AtomicInteger(RUNNING);
+        jobs.put(worker, job);
+        try {
+          task.run();
+        } finally {
+          jobs.remove(worker);
+          if (job.getAndSet(DONE) != ABANDONED) {
+            finished();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      finished();
+      throw new IOException(e);
+    }
     ++totalParsed;
     if (printProgress && totalParsed % 1000 == 0) {
       double timeLapsed = (System.currentTimeMillis() - prevTime) / 1000.;
@@ -155,22 +352,117 @@ public abstract class WikiDumpParser implements IArticleFilter {
       prevCount = totalParsed;
       System.err
           .printf("%d pages at %.2f/sec\n", totalParsed, pagesPerSecond);
-      System.err.printf("Active threads %d/%d\n", parsing.getActiveCount(),
-          parsing.getPoolSize());
+      System.err.println(parsing);
+    }
+    if (checkpointer != null && totalParsed % checkpointEvery == 0) {
+      awaitIdle();
+      checkpointer.checkpoint(new Checkpoint(totalParsed, lastPageId,
+          inputOffset));
+      lastPageId = null;
+    }
+  }
+
+  /**
+   * Claims the output of the job on the current thread, before its first
+   * write
+   * 
+   * @return false if the job was abandoned and its output is to be dropped
+   */
+  private boolean claim() {
+    AtomicInteger job = jobs.get(Thread.currentThread());
+    // Tasks run outside of submit, e.g. by benchmarks, are never abandoned
+    return job == null || job.compareAndSet(RUNNING, WRITING);
+  }
+
+  private void finished() {
+    if (inFlight.decrementAndGet() == 0) {
+      synchronized (idle) {
+        idle.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Waits until every submitted job has finished
+   * 
+   * @throws InterruptedIOException
+   */
+  private void awaitIdle() throws InterruptedIOException {
+    synchronized (idle) {
+      while (inFlight.get() > 0) {
+        try {
+          idle.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted at a checkpoint");
+        }
+      }
     }
   }
 
   /**
    * Waits for all parsing jobs to finish If not called, there might be pages
-   * still being parsed
+   * still being parsed. Outputs registered by {@link #closeOnFinish} are
+   * closed afterwards.
+   * 
+   * @throws IOException if any of the outputs fails to close
    */
-  protected void close() {
+  protected void close() throws IOException {
     parsing.shutdown();
     try {
-      parsing.awaitTermination(1, TimeUnit.DAYS);
+      awaitRendering();
     } catch (InterruptedException e) {
       e.printStackTrace();
     }
+    if (printProgress) {
+      System.err.println(parsing);
+    }
+    IOException failure = null;
+    for (Closeable output : outputs) {
+      try {
+        output.close();
+      } catch (IOException e) {
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+    outputs.clear();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Abandons the job of a stuck worker and replaces the worker, unless the
+   * job already started writing
+   */
+  private void replaceWorker(Thread worker) {
+    AtomicInteger job = jobs.get(worker);
+    if (job != null && job.compareAndSet(RUNNING, ABANDONED)) {
+      abandoned.incrementAndGet();
+      finished();
+      parsing.replace(worker);
+    }
+  }
+
+  /**
+   * Waits for the render workers to finish. Those stuck in a page long past
+   * its time budget are replaced by then and left behind as daemon threads,
+   * their pages abandoned.
+   */
+  private void awaitRendering() throws InterruptedException {
+    parsing.awaitTermination(1, TimeUnit.DAYS);
+    if (budget != null) {
+      budget.removeStuckListener(replaceStuck);
+      int stuck = budget.stuck();
+      if (stuck > 0 || abandoned.get() > 0) {
+        System.err.printf("Left %d page(s) rendering past their budget,"
+            + " abandoned %d\n", stuck, abandoned.get());
+      }
+    }
   }
 
   /**
@@ -188,6 +480,34 @@ public abstract class WikiDumpParser implements IArticleFilter {
   public abstract void processAnnotation(WikiArticle page, PageMeta meta,
       String text, List<Href> links, int jobId);
 
+  /**
+   * The same without an object per link, called for every page. By default
+   * the links are copied with {@link LinkBuffer#toHrefs()} and passed on to
+   * {@link #processAnnotation(WikiArticle, PageMeta, String, List, int)}.
+   * Subclasses opt in to the buffer by overriding this, and may implement
+   * the other overload with {@link LinkBuffer#of(List)}.
+   * 
+   * The buffer is reused for the next page of the thread once this returns.
+   * Its targets are normalized as by {@link Utils#str2wikilink(String)}.
+   * 
+   * @param page
+   * @param meta
+   * @param text
+   * @param links
+   * @param jobId
+   */
+  public void processAnnotation(WikiArticle page, PageMeta meta,
+      String text, LinkBuffer links, int jobId) {
+    processAnnotation(page, meta, text, links.toHrefs(), jobId);
+  }
+
+  /**
+   * @return the render stage, with its queue depth and wait times
+   */
+  public Stage getRenderStage() {
+    return parsing;
+  }
+
   /**
    * @return the number of parsing jobs submitted to the parser
    */
@@ -197,7 +517,9 @@ public abstract class WikiDumpParser implements IArticleFilter {
 
   /**
    * Parses the given Wikipedia XML dump file. User needs to instantiate the
-   * parser for call backs
+   * parser for call backs. Multistream .bz2 dumps are decompressed in
+   * parallel, using the companion index file if present. Uncompressed dumps
+   * are split into pages by {@link #parseSplitDump(String)}.
    * 
    * @param file
    * @param parser
@@ -209,10 +531,46 @@ public abstract class WikiDumpParser implements IArticleFilter {
   public void parseDump(String file)
       throws UnsupportedEncodingException, FileNotFoundException, IOException,
       SAXException {
+    if (file.endsWith(".bz2")) {
+      try (InputStream in = new MultistreamBZip2InputStream(file,
+          decompressionThreads)) {
+        parseDump(in);
+      }
+      return;
+    }
+    if (!file.endsWith(".gz")) {
+      parseSplitDump(file);
+      return;
+    }
     new WikiXMLParser(file, this).parse();
     close();
   }
 
+  /**
+   * Parses the given uncompressed Wikipedia XML dump file by memory mapping
+   * it and cutting it into pages on the calling thread, the XML decoding of
+   * each page is done by the parsing threads.
+   * 
+   * @param file
+   * @throws IOException
+   * @throws SAXException
+   */
+  public void parseSplitDump(String file) throws IOException, SAXException {
+    try (PageSplitter splitter = new PageSplitter(file)) {
+      Siteinfo siteinfo = splitter.getSiteinfo();
+      if (resumeJobs > 0 && resumeOffset >= 0) {
+        splitter.seek(resumeOffset);
+        totalParsed = resumeJobs;
+      }
+      ByteBuffer page;
+      while ((page = splitter.next()) != null) {
+        inputOffset = splitter.getPosition();
+        process(page, siteinfo);
+      }
+    }
+    close();
+  }
+
   /**
    * Parses the given Wikipedia XML dump stream. User needs to instantiate the
    * parser for call backs
@@ -12,20 +12,18 @@ import info.bliki.wiki.model.ImageFormat;
 import info.bliki.wiki.tags.HTMLTag;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.text.translate.EntityArrays;
 
 public abstract class LinkAnnotationConverter implements ITextConverter{
     
     private boolean fNoLinks;
     private boolean keepSectionTitle;
     
-    private static final String TEMPLATE_OPEN = "{{";
-    private static final String TEMPLATE_END = "}}";
-    
     private static String renderSpecialTags(HTMLTag tag,String href){
         
         // Literal template
@@ -35,30 +33,164 @@ public abstract class LinkAnnotationConverter implements ITextConverter{
         return "";
     }
     
-    private static String cleanContent(String content) throws IOException{
-        int depth = 0;
-        content = Utils.escapeXml(content, true, true, true);
-        content = StringEscapeUtils.unescapeHtml4(content);
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < content.length();) {
-            if (content.startsWith(TEMPLATE_OPEN, i)) {
-                depth++;
-                i += TEMPLATE_OPEN.length();
-                continue;
+    // Characters of the HTML 4 entities by name, as known to
+    // info.bliki.htmlcleaner.SpecialEntities
+    private static final Map<String, Character> ENTITIES = new HashMap<String, Character>();
+    static {
+        for (String[][] table : new String[][][] { EntityArrays.BASIC_UNESCAPE(),
+                EntityArrays.ISO8859_1_UNESCAPE(),
+                EntityArrays.HTML40_EXTENDED_UNESCAPE() }) {
+            for (String[] entity : table) {
+                ENTITIES.put(entity[0].substring(1, entity[0].length() - 1),
+                        entity[1].charAt(0));
+            }
+        }
+        // Missing from the commons-lang tables
+        ENTITIES.put("nsub", '\u2284');
+    }
+    
+    // Template depth, carried across the content tokens of a page
+    private int templateDepth = 0;
+    // A '{' or '}' waiting for the next character, 0 if none, carried into
+    // the next content token
+    private char brace = 0;
+    // Calls of nodesToText in progress
+    private int nesting = 0;
+    
+    /**
+     * Appends the text of a content token in a single pass, dropping
+     * templates. Entities are decoded as Utils.escapeXml(content, true, true,
+     * true) followed by StringEscapeUtils.unescapeHtml4 would. A brace
+     * ending the content is kept pending, so that "{{" and "}}" split
+     * across tokens are still found, see {@link #flushBrace(Appendable)}.
+     * Package visible for the benchmarks
+     */
+    void cleanContent(String content, Appendable out) throws IOException {
+        final int length = content.length();
+        for (int i = 0; i < length;) {
+            char c = content.charAt(i);
+            if (c == '&') {
+                i = decodeEntity(content, i, out);
+            } else {
+                emit(c, out);
+                i++;
+            }
+        }
+    }
+    
+    /**
+     * Writes the pending brace, before anything but content is written
+     */
+    void flushBrace(Appendable out) throws IOException {
+        if (brace != 0) {
+            if (templateDepth == 0) {
+                out.append(brace);
             }
-            if(content.startsWith(TEMPLATE_END,i)) {
-                depth--;
-                i += TEMPLATE_END.length();
-                continue;
+            brace = 0;
+        }
+    }
+    
+    private void emit(char c, Appendable out) throws IOException {
+        if (brace != 0) {
+            char previous = brace;
+            brace = 0;
+            if (c == previous) {
+                if (c == '{') {
+                    templateDepth++;
+                } else if (templateDepth > 0) {
+                    templateDepth--;
+                }
+                return;
             }
-            if (depth == 0){
-                sb.append(content.charAt(i));
+            if (templateDepth == 0) {
+                out.append(previous);
             }
-            i++;
         }
-        return sb.toString();
+        if (c == '{' || c == '}') {
+            brace = c;
+        } else if (templateDepth == 0) {
+            out.append(c);
+        }
+    }
+    
+    private void emit(CharSequence chars, Appendable out) throws IOException {
+        for (int i = 0; i < chars.length(); i++) {
+            emit(chars.charAt(i), out);
+        }
     }
     
+    /**
+     * Decodes the entity starting with the '&' at i
+     * @return index after the entity
+     */
+    private int decodeEntity(String content, int i, Appendable out) throws IOException {
+        final int length = content.length();
+        if (i + 1 < length && content.charAt(i + 1) == '#') {
+            int end = i + 2;
+            while (end < length && (Utils.isHexadecimalDigit(content.charAt(end))
+                    || content.charAt(end) == 'x' || content.charAt(end) == 'X')) {
+                end++;
+            }
+            if (end == i + 2 && end < length) {
+                emit('&', out);
+                return i + 1;
+            }
+            String number = content.substring(i + 2, end);
+            int value;
+            try {
+                value = number.startsWith("x") || number.startsWith("X")
+                        ? Integer.parseInt(number.substring(1), 16)
+                        : Integer.parseInt(number);
+            } catch (NumberFormatException e) {
+                // Kept, the character after the number is dropped
+                emit("&#" + number + ";", out);
+                return end + 1;
+            }
+            char c = (char) value;
+            if ("&<>'\"".indexOf(c) < 0) {
+                emit(c, out);
+                return end < length && content.charAt(end) == ';' ? end + 1 : end;
+            }
+            // The character after the number is dropped
+            if (!StringUtils.isAsciiPrintable(number)) {
+                emit("&#" + number + ";", out);
+            } else if (Character.isSupplementaryCodePoint(value)) {
+                emit(Character.highSurrogate(value), out);
+                emit(Character.lowSurrogate(value), out);
+            } else {
+                emit(c, out);
+            }
+            return end + 1;
+        }
+        int limit = Math.min(i + 10, length);
+        for (int semi = i + 1; semi < limit; semi++) {
+            if (content.charAt(semi) == ';') {
+                Character c = ENTITIES.get(content.substring(i + 1, semi));
+                if (c != null) {
+                    emit(c, out);
+                    return semi + 1;
+                }
+                break;
+            }
+        }
+        if (content.startsWith("&apos;", i)) {
+            emit('\'', out);
+            return i + 6;
+        }
+        emit('&', out);
+        return i + 1;
+    }
+    
+    /**
+     * Forgets the template depth left by the previous page, for a converter
+     * reused from page to page
+     */
+    public void reset() {
+        templateDepth = 0;
+        brace = 0;
+        nesting = 0;
+    }
+
     public LinkAnnotationConverter(boolean noLinks,boolean keepSectionTitle){
         this.fNoLinks = noLinks;
         this.keepSectionTitle = keepSectionTitle;
@@ -76,9 +208,11 @@ public abstract class LinkAnnotationConverter implements ITextConverter{
     public void nodesToText(List<? extends Object> nodes, Appendable resultBuffer, IWikiModel model) throws IOException {
         if (nodes != null && !nodes.isEmpty()) {
             try {
+                nesting++;
                 int level = model.incrementRecursionLevel();
 
                 if (level > Configuration.RENDERER_RECURSION_LIMIT) {
+                    flushBrace(resultBuffer);
                     resultBuffer
                             .append("<span class=\"error\">Error - recursion limit exceeded rendering tags in HTMLConverter#nodesToText().</span>");
                     return;
@@ -90,21 +224,28 @@ public abstract class LinkAnnotationConverter implements ITextConverter{
                         } else if (item instanceof ContentToken) {
                             ContentToken contentToken = (ContentToken) item;
                             String content = contentToken.getContent();
-                            resultBuffer.append(cleanContent(content));
+                            cleanContent(content, resultBuffer);
                         } else if (item instanceof HTMLTag) {
                             HTMLTag tag = (HTMLTag) item;
                             String tagName = tag.getName();
+                            // Templates left unclosed end with the paragraph
+                            if("p".equals(tagName)){
+                                flushBrace(resultBuffer);
+                                templateDepth = 0;
+                            }
                             // Drop references
                             if("ref".equals(tagName)){
                                 continue;
                             }
                             if(tag instanceof WPList){
+                              flushBrace(resultBuffer);
                               ((WPList)tag).renderPlainText(this, resultBuffer, model);
                               continue;
                             }
                             if("a".equals(tagName)){
                                 String link = tag.getAttributes().get("href");
                                 if (link != null){
+                                    flushBrace(resultBuffer);
                                     CharSequence buffer = ((CharSequence)resultBuffer);
                                     // Make sure tokenized correctly
                                     resultBuffer.append(' ');
@@ -132,6 +273,7 @@ public abstract class LinkAnnotationConverter implements ITextConverter{
                         } else if (item instanceof TagNode) {
                             TagNode node = (TagNode) item;
                             String tagName = node.getName();
+                            flushBrace(resultBuffer);
                             if(!keepSectionTitle && "span".equals(tagName))
                                 continue;
                             if("a".equals(tagName) || "span".equals(tagName))
@@ -147,6 +289,7 @@ public abstract class LinkAnnotationConverter implements ITextConverter{
                         } else if (item instanceof EndTagToken) {
                             EndTagToken node = (EndTagToken) item;
                             String tagName = node.getName();
+                            flushBrace(resultBuffer);
                             if("br".equals(tagName)||"hr".equals(tagName))
                                 resultBuffer.append("\n\n");
                             else
@@ -159,6 +302,9 @@ public abstract class LinkAnnotationConverter implements ITextConverter{
                 }
             } finally {
                 model.decrementRecursionLevel();
+                if (--nesting == 0) {
+                    flushBrace(resultBuffer);
+                }
             }
         }
     }
@@ -3,6 +3,7 @@ package wikiapi.processors;
 import info.bliki.wiki.dump.WikiArticle;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -24,36 +25,48 @@ import wikiapi.Utils;
 public class PageMeta {
     
     private String wikiText = "";
-    private List<String> pageCats = Collections.emptyList();
-    private List<String> pageLinks = Collections.emptyList();
+    private List<String> pageCats = null;
+    private List<String> pageLinks = null;
     private String redirectString = null;
     private Boolean redirect = null;
     private boolean stub = false;
     private boolean disambiguation = false;
+    // Start and end offsets of the categories and links in the wiki text
+    private int[] catOffsets = NO_OFFSETS;
+    private int catCount = 0;
+    private int[] linkOffsets = NO_OFFSETS;
+    private int linkCount = 0;
 
-    final static Pattern STUB_PATTERN = Pattern.compile("-stub}}",Pattern.LITERAL);
+    private static final int[] NO_OFFSETS = new int[0];
+    private static final String STUB = "-stub}}";
+    private static final String CATEGORY = "Category:";
     public static String[] disambiguationTemplates = {"Disambig","Disambiguation","Dab","DAB","Disamb"};
-    private static String disPattern = "";
+    // Template names, as written and uncapitalized
+    private static final String[] disambiguationNames;
     static{
-        String[] lowercased = new String[disambiguationTemplates.length*2];
+        disambiguationNames = new String[disambiguationTemplates.length*2];
         int i = 0;
         for(String name:disambiguationTemplates){
-            lowercased[i] = name;
-            lowercased[i+1] = WordUtils.uncapitalize(name);
+            disambiguationNames[i] = name;
+            disambiguationNames[i+1] = WordUtils.uncapitalize(name);
             i += 2;
         }
-        for(String name:lowercased){
-            disPattern+= ("|(\\{\\{"+name+"(\\||\\}))");
-        }
-        disPattern = disPattern.substring(1);
     }
     
-    final static Pattern DISAMB_TEMPLATE_PATTERN = Pattern.compile(disPattern);
-    final static Pattern CATEGORY_PATTERN = Pattern.compile("\\[\\[Category:(.*?)\\]\\]", Pattern.MULTILINE);
-    final static Pattern LINKS_PATTERN = Pattern.compile("\\[\\[(.*?)\\]\\]", Pattern.MULTILINE);
     final static String redirectPrefix = "#REDIRECT";
 
 
+    /**
+     * Reads the meta information in a single pass over the wiki text. The
+     * results are those of the patterns \[\[(.*?)\]\] for links and
+     * \[\[Category:(.*?)\]\] for categories, each matched from where its
+     * previous match ended, keeping the first non-empty part of a match
+     * before any '|'. The redirect target is the text between the first [[
+     * and the next ]], disambiguation pages use one of the
+     * {@link #disambiguationTemplates} followed by | or }.
+     * 
+     * @param article
+     */
     public PageMeta(WikiArticle article) {
         if (article == null)
             return;
@@ -63,15 +76,150 @@ public class PageMeta {
             redirect = false;
             return;
         }
-        if(isRedirect()){
-            redirectString = StringUtils.substringBetween(wikiText, "[[", "]]");
-            if(StringUtils.isEmpty(redirectString))
-                redirect = false;
+        disambiguation = article.getTitle().endsWith("(disambiguation)");
+        isRedirect();
+        scan();
+        if(redirect && StringUtils.isEmpty(redirectString))
+            redirect = false;
+    }
+
+    private void scan() {
+        final String text = wikiText;
+        final int length = text.length();
+        // Where the next link and category matches may start
+        int linkFrom = 0;
+        int catFrom = 0;
+        // Next ]] and newline, only ever searched forward so that the
+        // scan stays linear; close is -1 once there is no ]] left
+        int close = -2;
+        int newline = -1;
+        boolean firstLink = true;
+        for (int i = 0; i + 1 < length; i++) {
+            char c = text.charAt(i);
+            if (c == '[') {
+                if (text.charAt(i + 1) != '[') {
+                    continue;
+                }
+                int from = i + 2;
+                if (close != -1 && close < from) {
+                    close = indexOfClose(text, from);
+                }
+                if (firstLink) {
+                    firstLink = false;
+                    if (redirect && close >= 0) {
+                        redirectString = text.substring(from, close);
+                    }
+                }
+                if (close < 0) {
+                    continue;
+                }
+                if (newline < from) {
+                    newline = text.indexOf('\n', from);
+                    if (newline < 0) {
+                        newline = length;
+                    }
+                }
+                if (newline < close) {
+                    continue;
+                }
+                if (i >= linkFrom) {
+                    linkFrom = close + 2;
+                    int start = firstPart(text, from, close);
+                    if (start < close) {
+                        int end = indexOf(text, '|', start, close);
+                        if (indexOf(text, ':', start, end) == end) {
+                            linkOffsets = add(linkOffsets, linkCount++, start, end);
+                        }
+                    }
+                }
+                if (i >= catFrom && text.startsWith(CATEGORY, from)) {
+                    catFrom = close + 2;
+                    int start = firstPart(text, from + CATEGORY.length(), close);
+                    if (start < close) {
+                        catOffsets = add(catOffsets, catCount++, start,
+                                indexOf(text, '|', start, close));
+                    }
+                }
+            } else if (c == '{') {
+                if (!disambiguation && text.charAt(i + 1) == '{') {
+                    disambiguation = isDisambiguationTemplate(text, i + 2);
+                }
+            } else if (c == '-') {
+                if (!stub) {
+                    stub = text.startsWith(STUB, i);
+                }
+            }
+        }
+    }
+
+    private static int indexOfClose(String text, int from) {
+        for (int i = from; i + 1 < text.length(); i++) {
+            if (text.charAt(i) == ']' && text.charAt(i + 1) == ']') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return start of the first non-empty '|' separated part, end if none
+     */
+    private static int firstPart(String text, int start, int end) {
+        while (start < end && text.charAt(start) == '|') {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * @return first position of c in [start, end), end if none
+     */
+    private static int indexOf(String text, char c, int start, int end) {
+        while (start < end && text.charAt(start) != c) {
+            start++;
         }
-        stub = STUB_PATTERN.matcher(wikiText).find();
-        
-        disambiguation = article.getTitle().endsWith("(disambiguation)") 
-                || DISAMB_TEMPLATE_PATTERN.matcher(wikiText).find();
+        return start;
+    }
+
+    private static int[] add(int[] offsets, int count, int start, int end) {
+        if (offsets.length < count * 2 + 2) {
+            offsets = Arrays.copyOf(offsets, Math.max(8, offsets.length * 2));
+        }
+        offsets[count * 2] = start;
+        offsets[count * 2 + 1] = end;
+        return offsets;
+    }
+
+    private static boolean isDisambiguationTemplate(String text, int from) {
+        if (from >= text.length()) {
+            return false;
+        }
+        char first = text.charAt(from);
+        if (first != 'D' && first != 'd') {
+            return false;
+        }
+        for (String name : disambiguationNames) {
+            int end = from + name.length();
+            if (end < text.length() && text.startsWith(name, from)) {
+                char next = text.charAt(end);
+                if (next == '|' || next == '}') {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static List<String> substrings(String text, int[] offsets,
+            int count) {
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        List<String> strings = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(text.substring(offsets[i * 2], offsets[i * 2 + 1]));
+        }
+        return strings;
     }
 
     public boolean isRedirect() {
@@ -79,8 +227,12 @@ public class PageMeta {
             if(wikiText.length()<redirectPrefix.length()){
                 redirect = false;
             }else{
-                String prefix = wikiText.substring(0, redirectPrefix.length());
-                redirect = redirectPrefix.equals(prefix.toUpperCase());
+                boolean prefix = true;
+                for (int i = 0; prefix && i < redirectPrefix.length(); i++) {
+                    prefix = Character.toUpperCase(wikiText.charAt(i))
+                            == redirectPrefix.charAt(i);
+                }
+                redirect = prefix;
             }
         }
         return redirect;
@@ -106,42 +258,19 @@ public class PageMeta {
 
     public List<String> getCategories() {
         if (pageCats == null)
-            parseCategories();
+            pageCats = substrings(wikiText, catOffsets, catCount);
         return pageCats;
     }
 
+    /**
+     * @return targets of the links without a namespace
+     */
     public List<String> getLinks() {
         if (pageLinks == null)
-            parseLinks();
+            pageLinks = substrings(wikiText, linkOffsets, linkCount);
         return pageLinks;
     }
 
-    private void parseCategories() {
-        pageCats = new ArrayList<String>();
-		if (StringUtils.isEmpty(wikiText))
-			return;
-        Matcher matcher = CATEGORY_PATTERN.matcher(wikiText);
-        while (matcher.find()) {
-            String[] temp = StringUtils.split(matcher.group(1),'|');
-            if (temp.length > 0)
-                pageCats.add(temp[0]);
-        }
-    }
-
-    private void parseLinks() {
-        pageLinks = new ArrayList<String>();
-        Matcher matcher = LINKS_PATTERN.matcher(wikiText);
-        while (matcher.find()) {
-            String[] temp = StringUtils.split(matcher.group(1),'|');
-            if (temp == null || temp.length == 0)
-                continue;
-            String link = temp[0];
-            if (link.contains(":") == false) {
-                pageLinks.add(link);
-            }
-        }
-    }
-
     /**
      * Strip wiki formatting characters from the given wiki text.
      * Discouraged as there is no cached regex
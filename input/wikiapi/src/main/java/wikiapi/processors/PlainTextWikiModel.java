@@ -1,6 +1,8 @@
 package wikiapi.processors;
 
+import info.bliki.htmlcleaner.BaseToken;
 import info.bliki.htmlcleaner.TagNode;
+import info.bliki.htmlcleaner.TagToken;
 import info.bliki.wiki.dump.Siteinfo;
 import info.bliki.wiki.filter.WikipediaParser;
 import info.bliki.wiki.model.Configuration;
@@ -18,6 +20,8 @@ import java.util.function.Predicate;
 
 import org.apache.commons.lang3.StringUtils;
 
+import wikiapi.RenderBudget;
+
 /**
  * Drops all images and templates, preserves links
  * 
@@ -39,6 +43,10 @@ public class PlainTextWikiModel extends WikiModel {
     }
   };
 
+  // Run as the page is parsed and converted, may abandon the render by
+  // throwing
+  private Runnable checkpoint = null;
+
   static {
     TagNode.addAllowedAttribute("style");
   }
@@ -100,6 +108,48 @@ public class PlainTextWikiModel extends WikiModel {
     fSiteinfo = siteinfo;
   }
 
+  /**
+   * Runs the checkpoint for every token parsed and every level of nesting
+   * rendered, which may abandon the render by throwing
+   * 
+   * @param checkpoint null for none
+   */
+  public void setCheckpoint(Runnable checkpoint) {
+    this.checkpoint = checkpoint;
+  }
+
+  @Override
+  public void append(BaseToken contentNode) {
+    if (checkpoint != null) {
+      checkpoint.run();
+    }
+    super.append(contentNode);
+  }
+
+  @Override
+  public boolean pushNode(TagToken node) {
+    if (checkpoint != null) {
+      checkpoint.run();
+    }
+    return super.pushNode(node);
+  }
+
+  @Override
+  public int incrementRecursionLevel() {
+    // After the increment, which callers undo in a finally block
+    int level = super.incrementRecursionLevel();
+    if (checkpoint != null) {
+      try {
+        checkpoint.run();
+      } catch (RenderBudget.Exceeded e) {
+        // Past every recursion limit, so that the parser skips the nested
+        // parse instead of catching the throw and going on
+        return Integer.MAX_VALUE;
+      }
+    }
+    return level;
+  }
+
   /**
    * Get the raw wiki text for the given namespace and article name. This model
    * implementation uses a Derby database to cache downloaded wiki template
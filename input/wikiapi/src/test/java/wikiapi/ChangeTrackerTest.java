@@ -0,0 +1,117 @@
+package wikiapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import info.bliki.wiki.dump.WikiArticle;
+
+public class ChangeTrackerTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static WikiArticle page(String id, String title, String text) {
+    WikiArticle page = new WikiArticle();
+    page.setId(id);
+    page.setTitle(title, null);
+    page.setText(text);
+    return page;
+  }
+
+  /**
+   * Tracks the pages in a new output directory and returns which of them are
+   * unchanged
+   */
+  private List<Boolean> run(File dir, File previous, boolean partial,
+      WikiArticle... pages) throws IOException {
+    Manifest manifest = new Manifest(new File(dir, "manifest.tsv").getPath());
+    ChunkedWriter state = ChunkedWriter.files(dir + "/" + ChangeTracker.STATE,
+        ".bin", 1, new byte[0], new byte[0]).record(manifest);
+    ChangeTracker tracker = previous == null ? new ChangeTracker(state,
+        manifest) : new ChangeTracker(state, manifest, previous, ChunkedWriter
+            .files(dir + "/delete", ".csv", 1, new byte[0], new byte[0])
+            .record(manifest), RowEncoder.Format.CSV, partial);
+    List<Boolean> unchanged = new ArrayList<>();
+    for (WikiArticle page : pages) {
+      unchanged.add(tracker.unchanged(page));
+    }
+    tracker.close();
+    manifest.close();
+    return unchanged;
+  }
+
+  private static List<String> deletions(File dir) throws IOException {
+    List<String> rows = new ArrayList<>(Files.readAllLines(new File(dir,
+        "delete0.csv").toPath(), StandardCharsets.UTF_8));
+    Collections.sort(rows);
+    return rows;
+  }
+
+  @Test
+  public void firstRunRendersEveryPage() throws IOException {
+    File dir = folder.newFolder();
+    assertEquals(Arrays.asList(false, false), run(dir, null, false,
+        page("1", "A", "a"), page("2", "B", "b")));
+    assertEquals(2, PageHashes.read(Arrays.asList(new File(dir,
+        "hashes0.bin"))).size());
+  }
+
+  @Test
+  public void skipsUnchangedPages() throws IOException {
+    File first = folder.newFolder();
+    run(first, null, false, page("1", "A", "a"), page("2", "B", "b"),
+        page("3", "C", "c"));
+    File second = folder.newFolder();
+    assertEquals(Arrays.asList(true, false, false), run(second, first, false,
+        page("1", "A", "a"), page("2", "B", "b changed"),
+        page("4", "D", "d")));
+    // B changed and C is gone, the rows of A are still current
+    assertEquals(Arrays.asList("2,B", "3,C"), deletions(second));
+
+    File third = folder.newFolder();
+    assertEquals(Arrays.asList(true, true, true), run(third, second, false,
+        page("1", "A", "a"), page("2", "B", "b changed"),
+        page("4", "D", "d")));
+    assertTrue(deletions(third).isEmpty());
+  }
+
+  @Test
+  public void renamedPageIsChanged() throws IOException {
+    File first = folder.newFolder();
+    run(first, null, false, page("1", "A", "a"));
+    File second = folder.newFolder();
+    assertEquals(Arrays.asList(false), run(second, first, false,
+        page("1", "A2", "a")));
+    assertEquals(Arrays.asList("1,A"), deletions(second));
+  }
+
+  @Test
+  public void partialDumpKeepsMissingPages() throws IOException {
+    File first = folder.newFolder();
+    run(first, null, false, page("1", "A", "a"), page("2", "B", "b"));
+    File second = folder.newFolder();
+    assertEquals(Arrays.asList(false), run(second, first, true,
+        page("2", "B", "b changed")));
+    assertEquals(Arrays.asList("2,B"), deletions(second));
+
+    // A is carried over, so the next run still knows it
+    File third = folder.newFolder();
+    assertEquals(Arrays.asList(true, true), run(third, second, false,
+        page("1", "A", "a"), page("2", "B", "b changed")));
+    assertTrue(deletions(third).isEmpty());
+  }
+
+}
@@ -0,0 +1,44 @@
+package wikiapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import wikiapi.WikiDumpParser.Href;
+
+public class LinkBufferTest {
+
+  @Test
+  public void normalizesTargetsAndKeepsLinksAsWritten() {
+    LinkBuffer links = new LinkBuffer();
+    for (int i = 0; i < 100; i++) {
+      links.add("foo_" + i, i, i + 1);
+    }
+    links.add("été", 5, 8);
+    assertEquals(101, links.size());
+    assertEquals("Foo 7", links.target(7));
+    assertEquals("Été", links.target(100));
+    List<Href> hrefs = links.toHrefs();
+    assertEquals("foo_7", hrefs.get(7).link);
+    assertEquals(7, hrefs.get(7).start);
+    assertEquals(8, hrefs.get(7).end);
+
+    LinkBuffer copy = LinkBuffer.of(hrefs);
+    assertEquals(links.targets().toString(), copy.targets().toString());
+    assertEquals("foo_7", copy.toHrefs().get(7).link);
+
+    links.clear();
+    assertTrue(links.isEmpty());
+    assertTrue(LinkBuffer.of(Arrays.<Href> asList()).isEmpty());
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void emptyBufferIsNotAddedTo() {
+    LinkBuffer.EMPTY.add("Foo", 0, 1);
+  }
+
+}
@@ -0,0 +1,120 @@
+package wikiapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LinkCountsTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Writes the counts as csv and reads them back as "surface title" to count
+   */
+  private Map<String, Long> write(LinkCounts counts) throws IOException {
+    File dir = folder.newFolder();
+    ChunkedWriter output = ChunkedWriter.files(dir + "/link_count", ".csv", 1,
+        new byte[0], new byte[0]);
+    long rows = counts.write(output, RowEncoder.Format.CSV.newEncoder());
+    output.close();
+    Map<String, Long> read = new HashMap<>();
+    for (String line : Files.readAllLines(new File(dir, "link_count0.csv")
+        .toPath(), StandardCharsets.UTF_8)) {
+      String[] fields = line.split(",");
+      Long previous = read.put(fields[0] + " " + fields[1],
+          Long.parseLong(fields[2]));
+      assertEquals("Pairs are written once", null, previous);
+    }
+    assertEquals(rows, read.size());
+    return read;
+  }
+
+  @Test
+  public void countsInMemory() throws IOException {
+    TitleDictionary titles = new TitleDictionary(null, null,
+        RowEncoder.Format.CSV);
+    File dir = folder.newFolder();
+    LinkCounts counts = new LinkCounts(titles, 1 << 20, dir);
+    int foo = titles.id("Foo");
+    int bar = titles.id("Bar");
+    counts.add("foo", 0, 3, foo);
+    counts.add("the foo", 4, 7, foo);
+    counts.add("bar", 0, 3, foo);
+    counts.add("bar", 0, 3, bar);
+    counts.add("bar", 0, 0, bar);
+    Map<String, Long> expected = new HashMap<>();
+    expected.put("foo Foo", 2L);
+    expected.put("bar Foo", 1L);
+    expected.put("bar Bar", 1L);
+    assertEquals(expected, write(counts));
+    assertEquals(0, counts.runs());
+    assertEquals(0, dir.list().length);
+  }
+
+  @Test
+  public void mergesSpilledRuns() throws IOException {
+    TitleDictionary titles = new TitleDictionary(null, null,
+        RowEncoder.Format.CSV);
+    File dir = folder.newFolder();
+    // The smallest table, spilling every 512 distinct pairs
+    LinkCounts counts = new LinkCounts(titles, 0, dir);
+    List<Integer> ids = new ArrayList<>();
+    for (int i = 0; i < 300; i++) {
+      ids.add(titles.id("Title " + i));
+    }
+    Map<String, Long> expected = new HashMap<>();
+    Random random = new Random(1);
+    for (int i = 0; i < 20000; i++) {
+      String surface = "s" + random.nextInt(40);
+      int title = random.nextInt(ids.size());
+      counts.add(surface, 0, surface.length(), ids.get(title));
+      expected.merge(surface + " Title " + title, 1L, Long::sum);
+    }
+    assertTrue("Spilled " + counts.runs() + " runs", counts.runs() > 3);
+    assertTrue(expected.size() > 512);
+    assertEquals(expected, write(counts));
+    // The runs are deleted once merged
+    assertEquals(0, dir.list().length);
+  }
+
+  @Test
+  public void spillsSurfacesOverTheBudget() throws IOException {
+    TitleDictionary titles = new TitleDictionary(null, null,
+        RowEncoder.Format.CSV);
+    File dir = folder.newFolder();
+    // Few pairs for the smallest table, their long surfaces over the
+    // smallest budget of the surfaces
+    LinkCounts counts = new LinkCounts(titles, 0, dir);
+    int foo = titles.id("Foo");
+    StringBuilder padding = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      padding.append('x');
+    }
+    Map<String, Long> expected = new HashMap<>();
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < 400; i++) {
+        String surface = padding + "" + i;
+        counts.add(surface, 0, surface.length(), foo);
+        expected.merge(surface + " Foo", 1L, Long::sum);
+      }
+    }
+    assertTrue("Spilled " + counts.runs() + " runs", counts.runs() >= 2);
+    assertEquals(expected, write(counts));
+    assertEquals(0, dir.list().length);
+  }
+
+}
@@ -0,0 +1,58 @@
+package wikiapi;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+public class LinkNormalizerTest {
+
+  private static final int LOOP = -3;
+
+  @Test
+  public void titlesWithoutRedirectsResolveToThemselves() {
+    assertArrayEquals(new int[] { 0, 1, 2 },
+        LinkNormalizer.resolve(new int[] { -1, -1, -1 }));
+  }
+
+  @Test
+  public void followsChainsToTheEnd() {
+    // 0 -> 1 -> 2 -> 3, 4 -> 2, 5 -> 3
+    assertArrayEquals(new int[] { 3, 3, 3, 3, 3, 3 },
+        LinkNormalizer.resolve(new int[] { 1, 2, 3, -1, 2, 3 }));
+  }
+
+  @Test
+  public void chainsResolveInAnyOrder() {
+    // 3 -> 2 -> 1 -> 0, visited from the end of the chain first
+    assertArrayEquals(new int[] { 0, 0, 0, 0 },
+        LinkNormalizer.resolve(new int[] { -1, 0, 1, 2 }));
+  }
+
+  @Test
+  public void longChainGrowsThePath() {
+    int n = 100;
+    int[] redirectOf = new int[n];
+    int[] expected = new int[n];
+    for (int i = 0; i < n; i++) {
+      redirectOf[i] = i + 1 < n ? i + 1 : -1;
+      expected[i] = n - 1;
+    }
+    assertArrayEquals(expected, LinkNormalizer.resolve(redirectOf));
+  }
+
+  @Test
+  public void loopsAndChainsIntoThemAreMarked() {
+    // 0 -> 1 -> 2 -> 0 is a loop, 3 -> 1 leads into it, 4 -> 4 redirects
+    // to itself and 5 -> 6 is a plain chain
+    assertArrayEquals(new int[] { LOOP, LOOP, LOOP, LOOP, LOOP, 6, 6 },
+        LinkNormalizer.resolve(new int[] { 1, 2, 0, 1, 4, 6, -1 }));
+  }
+
+  @Test
+  public void chainIntoAnEarlierLoop() {
+    // 2 -> 3 -> 2 is visited from 0 -> 1 -> 2 first
+    assertArrayEquals(new int[] { LOOP, LOOP, LOOP, LOOP },
+        LinkNormalizer.resolve(new int[] { 1, 2, 3, 2 }));
+  }
+
+}
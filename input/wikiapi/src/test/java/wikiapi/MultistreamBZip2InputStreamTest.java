@@ -0,0 +1,141 @@
+package wikiapi;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.ByteStreams;
+
+public class MultistreamBZip2InputStreamTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Random words, so that a stream compresses to many blocks
+   */
+  private static byte[] text(int length, long seed) {
+    Random random = new Random(seed);
+    byte[] text = new byte[length];
+    for (int i = 0; i < length; i++) {
+      text[i] = random.nextInt(8) == 0 ? (byte) ' '
+          : (byte) ('a' + random.nextInt(26));
+    }
+    return text;
+  }
+
+  /**
+   * Writes each part as its own bzip2 stream
+   */
+  private File bzip2(byte[]... parts) throws IOException {
+    File file = folder.newFile();
+    try (OutputStream out = new FileOutputStream(file)) {
+      for (byte[] part : parts) {
+        BZip2CompressorOutputStream stream = new BZip2CompressorOutputStream(
+            out, 1);
+        stream.write(part);
+        stream.finish();
+      }
+    }
+    return file;
+  }
+
+  /**
+   * Writes an index pointing at the start of every stream but the first
+   */
+  private File index(byte[]... parts) throws IOException {
+    File index = folder.newFile();
+    try (OutputStream out = new BZip2CompressorOutputStream(
+        new FileOutputStream(index))) {
+      long offset = 0;
+      for (int i = 0; i < parts.length; i++) {
+        if (i > 0) {
+          out.write((offset + ":" + i + ":Page " + i + "\n")
+              .getBytes(StandardCharsets.UTF_8));
+        }
+        offset += bzip2(parts[i]).length();
+      }
+    }
+    return index;
+  }
+
+  private static byte[] read(File file, int maxSegment) throws IOException {
+    return read(file, null, maxSegment);
+  }
+
+  private static byte[] read(File file, File index, int maxSegment)
+      throws IOException {
+    try (InputStream in = new MultistreamBZip2InputStream(file.getPath(),
+        index == null ? null : index.getPath(), 4, maxSegment)) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+
+  private static byte[] concat(byte[]... parts) {
+    int length = 0;
+    for (byte[] part : parts) {
+      length += part.length;
+    }
+    byte[] all = new byte[length];
+    int at = 0;
+    for (byte[] part : parts) {
+      System.arraycopy(part, 0, all, at, part.length);
+      at += part.length;
+    }
+    return all;
+  }
+
+  @Test
+  public void singleStreamLargerThanSegmentIsStreamed() throws IOException {
+    byte[] text = text(1 << 20, 1);
+    File file = bzip2(text);
+    assertArrayEquals(text, read(file, 1 << 16));
+  }
+
+  @Test
+  public void singleStreamWithinSegment() throws IOException {
+    byte[] text = text(1 << 16, 2);
+    File file = bzip2(text);
+    assertArrayEquals(text, read(file, 1 << 24));
+  }
+
+  @Test
+  public void multistreamInOrder() throws IOException {
+    byte[][] parts = new byte[20][];
+    for (int i = 0; i < parts.length; i++) {
+      parts[i] = text(50000 + i, i);
+    }
+    File file = bzip2(parts);
+    assertArrayEquals(concat(parts), read(file, 1 << 24));
+  }
+
+  @Test
+  public void oversizedStreamAfterSmallOnes() throws IOException {
+    byte[] small = text(1000, 3);
+    byte[] large = text(1 << 20, 4);
+    byte[] tail = text(1000, 5);
+    File file = bzip2(small, small, large, tail);
+    assertArrayEquals(concat(small, small, large, tail), read(file, 1 << 16));
+  }
+
+  @Test
+  public void indexedWithOversizedStream() throws IOException {
+    byte[][] parts = { text(1000, 6), text(1 << 20, 7), text(1000, 8) };
+    File file = bzip2(parts);
+    File index = index(parts);
+    assertArrayEquals(concat(parts), read(file, index, 1 << 24));
+    assertArrayEquals(concat(parts), read(file, index, 1 << 16));
+  }
+
+}
@@ -0,0 +1,107 @@
+package wikiapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RenderBudgetTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Test
+  public void swallowedThrowStillCutsTheRender() throws IOException {
+    File log = new File(folder.getRoot(), "slow_pages.tsv");
+    try (RenderBudget budget = new RenderBudget(0, 10, log)) {
+      RenderBudget.Meter meter = budget.meter();
+      String output = meter.render("1", "Page", "wikitext {{x}}",
+          wikitext -> {
+            StringBuilder out = new StringBuilder();
+            meter.watch(out);
+            for (int i = 0; i < 100; i++) {
+              out.append(wikitext);
+              try {
+                meter.run();
+              } catch (RuntimeException e) {
+                // As the wiki parser does for a nested parse
+              }
+            }
+            return out.toString();
+          });
+      assertNull(output);
+    }
+    List<String> lines = Files.readAllLines(log.toPath(),
+        StandardCharsets.UTF_8);
+    assertEquals(1, lines.size());
+    assertTrue(lines.get(0), lines.get(0).startsWith("1\tPage\tsize\t"));
+    assertTrue(lines.get(0), lines.get(0).endsWith("\tdropped"));
+  }
+
+  @Test
+  public void degradesAPageOverTheTimeBudget() throws IOException {
+    try (RenderBudget budget = new RenderBudget(50, 0, null)) {
+      RenderBudget.Meter meter = budget.meter();
+      String output = meter.render("1", "Page", "text{{slow}}", wikitext -> {
+        while (wikitext.contains("{{")) {
+          meter.run();
+          sleep(1);
+        }
+        return wikitext;
+      });
+      assertEquals("text", output);
+    }
+  }
+
+  @Test
+  public void handsStuckRendersToTheListeners()
+      throws IOException, InterruptedException {
+    CountDownLatch stuck = new CountDownLatch(1);
+    Thread[] found = new Thread[1];
+    try (RenderBudget budget = new RenderBudget(20, 0, null)) {
+      budget.addStuckListener(thread -> {
+        found[0] = thread;
+        stuck.countDown();
+      });
+      RenderBudget.Meter meter = budget.meter();
+      String output = meter.render("1", "Page", "text{{x}}", wikitext -> {
+        if (wikitext.contains("{{")) {
+          // No checkpoint
+          try {
+            assertTrue(stuck.await(10, TimeUnit.SECONDS));
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          assertEquals(1, budget.stuck());
+        }
+        return wikitext;
+      });
+      // Cancelled, though it never reached a checkpoint
+      assertEquals("text", output);
+      assertEquals(Thread.currentThread(), found[0]);
+      assertEquals(0, budget.stuck());
+      assertFalse(Thread.currentThread().isInterrupted());
+    }
+  }
+
+}
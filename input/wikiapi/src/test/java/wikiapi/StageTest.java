@@ -0,0 +1,69 @@
+package wikiapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class StageTest {
+
+  @Test
+  public void runsQueuedTasksBeforeExiting() throws InterruptedException {
+    Stage stage = new Stage("test", 3, 2);
+    AtomicInteger ran = new AtomicInteger();
+    for (int i = 0; i < 100; i++) {
+      stage.execute(ran::incrementAndGet);
+    }
+    stage.execute(() -> {
+      throw new IllegalStateException("Does not stop its worker");
+    });
+    stage.shutdown();
+    assertTrue(stage.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(100, ran.get());
+    assertEquals(101, stage.getCompletedCount());
+  }
+
+  @Test
+  public void replacesAStuckWorker() throws InterruptedException {
+    Stage stage = new Stage("test", 1, 2);
+    CountDownLatch stuck = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicReference<Thread> worker = new AtomicReference<>();
+    stage.execute(() -> {
+      worker.set(Thread.currentThread());
+      stuck.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    stuck.await();
+    assertFalse(stage.replace(Thread.currentThread()));
+    assertTrue(stage.replace(worker.get()));
+    assertEquals(1, stage.getReplacedCount());
+
+    // The new worker runs the tasks queued behind the stuck one
+    CountDownLatch ran = new CountDownLatch(5);
+    for (int i = 0; i < 5; i++) {
+      stage.execute(ran::countDown);
+    }
+    assertTrue(ran.await(10, TimeUnit.SECONDS));
+    stage.shutdown();
+    assertTrue(stage.awaitTermination(10, TimeUnit.SECONDS));
+    assertTrue(worker.get().isAlive());
+
+    // Released, the stuck worker exits without taking another task
+    release.countDown();
+    worker.get().join(10000);
+    assertFalse(worker.get().isAlive());
+    assertEquals(6, stage.getCompletedCount());
+  }
+
+}
@@ -0,0 +1,126 @@
+package wikiapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TitleDictionaryTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static ChunkedWriter state(File dir, Manifest manifest) {
+    return ChunkedWriter.files(dir + "/" + TitleDictionary.STATE, ".bin", 1,
+        new byte[0], new byte[0]).record(manifest);
+  }
+
+  @Test
+  public void assignsDenseIds() {
+    TitleDictionary titles = new TitleDictionary(null, null,
+        RowEncoder.Format.CSV);
+    int foo = titles.id("Foo");
+    int bar = titles.id("Bar");
+    assertNotEquals(foo, bar);
+    assertEquals(foo, titles.id("foo"));
+    assertEquals(bar, titles.id("[[Bar]]", 2, 5));
+    assertEquals(2, titles.size());
+    assertEquals("Foo", titles.title(foo));
+    assertEquals("Bar", titles.title(bar));
+  }
+
+  @Test
+  public void growsAndResolvesEveryTitle() {
+    TitleDictionary titles = new TitleDictionary(null, null,
+        RowEncoder.Format.CSV);
+    for (int i = 0; i < 100000; i++) {
+      assertEquals(i, titles.id("Title " + i));
+    }
+    for (int i = 0; i < 100000; i += 7) {
+      assertEquals(i, titles.id("Title " + i));
+      assertEquals("Title " + i, titles.title(i));
+    }
+  }
+
+  @Test
+  public void concurrentThreadsShareIds() throws Exception {
+    TitleDictionary titles = new TitleDictionary(null, null,
+        RowEncoder.Format.CSV);
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    List<Future<int[]>> results = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      results.add(pool.submit(() -> {
+        int[] ids = new int[10000];
+        for (int i = 0; i < ids.length; i++) {
+          ids[i] = titles.id("Title " + i);
+        }
+        return ids;
+      }));
+    }
+    int[] first = results.get(0).get();
+    for (Future<int[]> result : results) {
+      assertEquals(Arrays.toString(first), Arrays.toString(result.get()));
+    }
+    pool.shutdown();
+    Set<Integer> distinct = new HashSet<>();
+    for (int id : first) {
+      distinct.add(id);
+    }
+    assertEquals(10000, distinct.size());
+    assertEquals(10000, titles.size());
+  }
+
+  @Test
+  public void laterRunKeepsIds() throws IOException {
+    File first = folder.newFolder();
+    Manifest manifest = new Manifest(new File(first, "manifest.tsv")
+        .getPath());
+    TitleDictionary titles = new TitleDictionary(state(first, manifest),
+        null, RowEncoder.Format.CSV);
+    int foo = titles.id("Foo");
+    int bar = titles.id("Bar");
+    titles.close();
+    manifest.close();
+
+    File second = folder.newFolder();
+    Manifest next = new Manifest(new File(second, "manifest.tsv").getPath());
+    TitleDictionary loaded = new TitleDictionary(state(second, next), null,
+        RowEncoder.Format.CSV);
+    loaded.load(Manifest.read(new File(first, "manifest.tsv")).files(
+        TitleDictionary.STATE), true);
+    assertEquals(bar, loaded.id("Bar"));
+    assertEquals(foo, loaded.id("Foo"));
+    assertEquals(2, loaded.id("Baz"));
+  }
+
+  @Test
+  public void writesTitlesSorted() throws IOException {
+    File dir = folder.newFolder();
+    TitleDictionary titles = new TitleDictionary(null, ChunkedWriter.files(
+        dir + "/title", ".csv", 1, new byte[0], new byte[0]),
+        RowEncoder.Format.CSV);
+    titles.id("Zürich");
+    titles.id("Apple");
+    titles.id("Foo, bar");
+    titles.close();
+    assertEquals(Arrays.asList("1,Apple", "2,\"Foo, bar\"", "0,Zürich"),
+        Files.readAllLines(new File(dir, "title0.csv").toPath(),
+            StandardCharsets.UTF_8));
+  }
+
+}
@@ -0,0 +1,144 @@
+package wikiapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+import info.bliki.wiki.dump.WikiArticle;
+import wikiapi.WikiDumpParser.Href;
+import wikiapi.processors.PageMeta;
+
+public class WikiDumpParserTest {
+
+  /**
+   * A dump of pages given as id, title and wikitext
+   */
+  static InputStream dump(String... pages) {
+    StringBuilder xml = new StringBuilder("<mediawiki><siteinfo>"
+        + "<sitename>Wikipedia</sitename><case>first-letter</case>"
+        + "<namespaces><namespace key=\"0\" case=\"first-letter\" />"
+        + "<namespace key=\"10\" case=\"first-letter\">Template</namespace>"
+        + "</namespaces></siteinfo>\n");
+    for (int i = 0; i < pages.length; i += 3) {
+      xml.append("<page><title>").append(pages[i + 1])
+          .append("</title><ns>0</ns><id>").append(pages[i])
+          .append("</id><revision><id>1</id><text xml:space=\"preserve\">")
+          .append(pages[i + 2].replace("&", "&amp;").replace("<", "&lt;"))
+          .append("</text></revision></page>\n");
+    }
+    xml.append("</mediawiki>\n");
+    return new ByteArrayInputStream(xml.toString().getBytes(
+        StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void passesLinksAsWrittenToTheListOverload()
+      throws IOException, SAXException {
+    Map<String, List<Href>> links = new TreeMap<>();
+    new WikiDumpParser(2) {
+      @Override
+      public void processAnnotation(WikiArticle page, PageMeta meta,
+          String text, List<Href> hrefs, int jobId) {
+        synchronized (links) {
+          links.put(page.getTitle(), hrefs);
+        }
+      }
+    }.silence().parseDump(dump(
+        "1", "Linking", "See [[foo_bar|the bar]] and [[Baz]].",
+        "2", "Redirect", "#REDIRECT [[Linking]]"));
+
+    List<Href> hrefs = links.get("Linking");
+    assertEquals(2, hrefs.size());
+    assertEquals("Foo_bar", hrefs.get(0).link);
+    assertEquals("Foo bar", hrefs.get(0).normalizedLink());
+    assertEquals("Baz", hrefs.get(1).link);
+    assertEquals(0, links.get("Redirect").size());
+  }
+
+  @Test
+  public void sharesTheEmptyBufferForPagesNotRendered()
+      throws IOException, SAXException {
+    Map<String, LinkBuffer> links = new TreeMap<>();
+    new WikiDumpParser(1) {
+      @Override
+      public void processAnnotation(WikiArticle page, PageMeta meta,
+          String text, List<Href> hrefs, int jobId) {
+        processAnnotation(page, meta, text, LinkBuffer.of(hrefs), jobId);
+      }
+
+      @Override
+      public void processAnnotation(WikiArticle page, PageMeta meta,
+          String text, LinkBuffer buffer, int jobId) {
+        links.put(page.getTitle(), buffer);
+      }
+    }.silence().parseDump(dump("1", "Redirect", "#REDIRECT [[Target]]",
+        "2", "Empty", ""));
+    assertSame(LinkBuffer.EMPTY, links.get("Redirect"));
+    assertSame(LinkBuffer.EMPTY, links.get("Empty"));
+  }
+
+  @Test(timeout = 20000)
+  public void abandonsPagesStuckPastTheBudgetAtCheckpoints()
+      throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    Thread[] stuck = new Thread[1];
+    Set<String> written = new TreeSet<>();
+    List<Integer> checkpoints = new ArrayList<>();
+    // Blocks the render on a link without reaching a checkpoint
+    WikiDumpParser parser = new WikiDumpParser(title -> {
+      if (title.equals("Forever")) {
+        stuck[0] = Thread.currentThread();
+        while (release.getCount() > 0) {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            // Keeps blocking
+          }
+        }
+      }
+      return true;
+    }, 2) {
+      @Override
+      public void processAnnotation(WikiArticle page, PageMeta meta,
+          String text, List<Href> hrefs, int jobId) {
+        synchronized (written) {
+          written.add(page.getTitle());
+        }
+      }
+    };
+    try (RenderBudget budget = new RenderBudget(50, 0, null)) {
+      parser.silence().setRenderBudget(budget)
+          .checkpointEvery(2, checkpoint -> checkpoints.add(checkpoint.jobs));
+      parser.parseDump(dump(
+          "1", "Stuck", "Waits for [[Forever]].",
+          "2", "Second", "See [[Other]].",
+          "3", "Third", "Plain.",
+          "4", "Fourth", "Plain."));
+    } finally {
+      release.countDown();
+    }
+    assertEquals(Arrays.asList(2, 4), checkpoints);
+    // The late output of the stuck page is dropped
+    stuck[0].join();
+    synchronized (written) {
+      assertEquals(new TreeSet<>(Arrays.asList("Second", "Third", "Fourth")),
+          written);
+    }
+  }
+
+}
@@ -0,0 +1,66 @@
+package wikiapi.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class LinkAnnotationConverterTest {
+
+  private static LinkAnnotationConverter converter() {
+    return new LinkAnnotationConverter() {
+      @Override
+      public void hasLink(int charStart, int charEnd, String link) {
+      }
+    };
+  }
+
+  private static String clean(String... tokens) throws IOException {
+    LinkAnnotationConverter converter = converter();
+    StringBuilder out = new StringBuilder();
+    for (String token : tokens) {
+      converter.cleanContent(token, out);
+    }
+    converter.flushBrace(out);
+    return out.toString();
+  }
+
+  private static String render(String wikitext) throws IOException {
+    PlainTextWikiModel model = new PlainTextWikiModel(null, null);
+    model.setUp();
+    StringBuilder out = new StringBuilder();
+    model.render(converter(), wikitext, out, false, true);
+    return out.toString();
+  }
+
+  @Test
+  public void dropsTemplates() throws IOException {
+    assertEquals("a  b", clean("a {{x|{{y}}}} b"));
+    assertEquals("&lt; é é", clean("&amp;lt; &eacute; &#233;"));
+    assertEquals("a { b } c", clean("a { b } c"));
+    // A stray end does not hide the text after it
+    assertEquals("a b", clean("a}} b"));
+  }
+
+  @Test
+  public void bracesSplitAcrossTokens() throws IOException {
+    assertEquals("a  c", clean("a {", "{b}", "} c"));
+    assertEquals("a {b", clean("a {", "b"));
+    assertEquals("a {", clean("a {"));
+    assertEquals("a  c", clean("a {{b", "}", "} c"));
+  }
+
+  /**
+   * A "{{" bliki leaves unparsed blanks the rest of its paragraph only
+   */
+  @Test
+  public void unclosedTemplateEndsWithTheParagraph() throws IOException {
+    String text = render("First {{unclosed paragraph.\n\nSecond paragraph.");
+    assertTrue(text, text.contains("Second paragraph."));
+    assertFalse(text, text.contains("unclosed"));
+  }
+
+}
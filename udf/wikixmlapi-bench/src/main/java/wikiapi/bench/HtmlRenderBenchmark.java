@@ -0,0 +1,90 @@
+package wikiapi.bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import info.bliki.wiki.model.WikiModel;
+import wikiapi.HTMLWikiModel;
+import wikiapi.RenderContext;
+import wikiapi.TemplateCache;
+import wikiapi.TemplateStore;
+
+/**
+ * Pages per second through HTMLWikiModel.render, with a new model per page
+ * and with the RenderContext DumpParser keeps per thread, and with the
+ * templates of the synthetic pages resolved through a TemplateCache
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HtmlRenderBenchmark {
+
+  @Benchmark
+  public String render(Corpus corpus) throws Exception {
+    WikiModel model = new HTMLWikiModel();
+    model.setUp();
+    return model.render(corpus.next().getText());
+  }
+
+  @State(Scope.Thread)
+  public static class Reused {
+    final RenderContext context = new RenderContext(null);
+  }
+
+  @Benchmark
+  public String renderReused(Corpus corpus, Reused reused) throws Exception {
+    return reused.context.render(corpus.next().getText());
+  }
+
+  @State(Scope.Benchmark)
+  public static class Templates {
+    TemplateCache cache;
+
+    @Setup(Level.Trial)
+    public void build() throws Exception {
+      TemplateStore.Builder templates = new TemplateStore.Builder();
+      templates.add("Infobox settlement", "{| class=\"infobox\"\n! "
+          + "{{{name}}}\n|-\n| Country || {{{country|}}}\n|}\n{{Stub}}");
+      templates.add("Reflist", "<div class=\"reflist\"><references/></div>");
+      templates.add("Cite web", "[{{{url}}} {{{title}}}]{{Citation needed}}");
+      templates.add("Citation needed", "<sup>[''citation needed'']</sup>");
+      templates.add("Stub", "''This article is a [[stub]].''");
+      templates.add("Geo-stub", "{{Stub}} [[Category:Geography stubs]]");
+      templates.add("Disambig", "'''{{PAGENAME}}''' may refer to:");
+      File file = File.createTempFile("templates", ".store");
+      file.deleteOnExit();
+      templates.write(file);
+      cache = new TemplateCache(TemplateStore.open(file), 1 << 20);
+    }
+
+    @TearDown(Level.Trial)
+    public void report() {
+      System.out.println(cache);
+    }
+  }
+
+  @Benchmark
+  public String renderWithTemplates(Corpus corpus, Templates templates)
+      throws Exception {
+    WikiModel model = new HTMLWikiModel(templates.cache);
+    model.setUp();
+    return model.render(corpus.next().getText());
+  }
+
+}
@@ -0,0 +1,93 @@
+package wikiapi.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import wikiapi.LinkStats;
+
+/**
+ * A full pass of LinkStats.Builder over a synthetic links table, as streamed
+ * by CollectStats.getLinks, and commonness lookups on the result. Surfaces
+ * and targets are skewed like anchor texts, a few of them very common.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LinkStatsBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Links {
+    @Param({ "1000000" })
+    int rows;
+    int titles = 100000;
+    int[] sources;
+    String[] surfaces;
+    int[] targets;
+    LinkStats stats;
+    int next = 0;
+
+    @Setup(Level.Trial)
+    public void generate() {
+      Random random = new Random(0);
+      String[] names = new String[titles / 2];
+      for (int i = 0; i < names.length; i++) {
+        names[i] = "Surface " + Integer.toString(i, 36);
+      }
+      sources = new int[rows];
+      surfaces = new String[rows];
+      targets = new int[rows];
+      for (int i = 0; i < rows; i++) {
+        sources[i] = random.nextInt(titles);
+        int surface = skewed(random, names.length);
+        surfaces[i] = names[surface];
+        // Mostly the main sense of the surface
+        targets[i] = random.nextInt(4) == 0 ? skewed(random, titles)
+            : surface * 2;
+      }
+      stats = pass();
+    }
+
+    private static int skewed(Random random, int n) {
+      double x = random.nextDouble();
+      return (int) (n * x * x * x);
+    }
+
+    LinkStats pass() {
+      LinkStats.Builder builder = new LinkStats.Builder(titles);
+      for (int i = 0; i < rows; i++) {
+        builder.add(sources[i], surfaces[i], targets[i]);
+      }
+      return builder.build();
+    }
+  }
+
+  @Benchmark
+  public LinkStats fullPass(Links links) {
+    return links.pass();
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public double commonness(Links links) {
+    int i = links.next;
+    links.next = i + 1 == links.rows ? 0 : i + 1;
+    return links.stats.commonness(links.surfaces[i], links.targets[i]);
+  }
+
+}
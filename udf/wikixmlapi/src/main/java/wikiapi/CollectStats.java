@@ -2,23 +2,26 @@ package wikiapi;
 
 import static wikiapi.HTMLWikiModel.normalizeTitle;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.function.Consumer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
-
 /**
  * Caches frequently accessed data in hashmap and computes the relevant
  * statistics of entity linking
@@ -29,104 +32,262 @@ import com.google.common.collect.Sets;
 public class CollectStats {
   
   private static final boolean debug = false;
+  // Rows per round trip of a cursor
+  private static final int FETCH_SIZE = 10000;
+  // Id ranges of a partitioned query per connection, to even out the load
+  private static final int RANGES_PER_CONNECTION = 4;
+
+  /**
+   * Called with each row of a query, failing the query by throwing
+   */
+  @FunctionalInterface
+  private interface RowHandler {
+    void accept(ResultSet rs) throws SQLException;
+  }
 
-  private static void query(Connection c, String sql, Consumer<ResultSet> rs) {
+  /**
+   * Streams the rows through a cursor, the connection is not in autocommit
+   * mode
+   */
+  private static void query(Connection c, String sql, RowHandler rs,
+      int... parameters) throws SQLException {
     if (debug) {
       sql += " limit 5";
     }
-    try (PreparedStatement stmt = c.prepareStatement(sql);
+    try (PreparedStatement stmt = c.prepareStatement(sql)) {
+      stmt.setFetchSize(FETCH_SIZE);
+      for (int i = 0; i < parameters.length; i++) {
+        stmt.setInt(i + 1, parameters[i]);
+      }
+      try (ResultSet results = stmt.executeQuery()) {
+        while (results.next()) {
+          rs.accept(results);
+        }
+      }
+    } finally {
+      // Ends the transaction of the cursor
+      c.commit();
+    }
+  }
+
+  /**
+   * Splits the query into ranges of wiki_pages ids, run in parallel on the
+   * connections of the pool. The query takes the start (inclusive) and the
+   * end (exclusive) of a range as its parameters, and the handler is called
+   * from several threads. Fails if any range fails, once the other ranges
+   * are cancelled.
+   */
+  private static void query(BlockingQueue<Connection> pool, String sql,
+      RowHandler rs) throws SQLException {
+    Connection first = pool.remove();
+    long min;
+    long max;
+    try (PreparedStatement stmt = first.prepareStatement(
+        "select min(id), max(id) from wiki_pages");
         ResultSet results = stmt.executeQuery()) {
-      while (results.next()) {
-        rs.accept(results);
+      results.next();
+      min = results.getLong(1);
+      max = results.getLong(2) + 1;
+      first.commit();
+    } finally {
+      pool.add(first);
+    }
+    int ranges = pool.size() * RANGES_PER_CONNECTION;
+    long step = Math.max(1, (max - min + ranges - 1) / ranges);
+    ExecutorService workers = Executors.newFixedThreadPool(pool.size());
+    try {
+      List<Future<?>> parts = new ArrayList<>();
+      for (long start = min; start < max; start += step) {
+        int from = (int) start;
+        int to = (int) Math.min(max, start + step);
+        parts.add(workers.submit(() -> {
+          Connection c = pool.take();
+          try {
+            query(c, sql, rs, from, to);
+          } finally {
+            pool.add(c);
+          }
+          return null;
+        }));
       }
-    } catch (SQLException e) {
-      e.printStackTrace();
+      workers.shutdown();
+      for (Future<?> part : parts) {
+        part.get();
+      }
+    } catch (ExecutionException e) {
+      throw new SQLException("Failed " + sql, e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted " + sql, e);
+    } finally {
+      workers.shutdownNow();
     }
   }
 
-  private static BiMap<String, Integer> getIds(Connection c) {
-    String sql = "select id, title from wiki_pages";
-    final BiMap<String, Integer> ids = HashBiMap.create();
-    query(c, sql, rs -> {
-      try {
-        int id = rs.getInt(1);
-        String title = normalizeTitle(rs.getString(2));
-        ids.put(title, id);
-      } catch (Exception e) {
-        e.printStackTrace();
+  /**
+   * @return row counts and sums of the ids of wiki_pages and
+   *         normalized_links, which change with any reload of the tables
+   */
+  private static long[] getSource(BlockingQueue<Connection> pool)
+      throws SQLException {
+    String sql = "select count(*), coalesce(sum(id), 0) from wiki_pages "
+        + "union all select count(*), coalesce(sum(page_id + link_id), 0) "
+        + "from normalized_links";
+    long[] source = new long[4];
+    Connection c = pool.remove();
+    try (PreparedStatement stmt = c.prepareStatement(sql);
+        ResultSet results = stmt.executeQuery()) {
+      for (int i = 0; results.next(); i += 2) {
+        source[i] = results.getLong(1);
+        source[i + 1] = results.getLong(2);
       }
+      c.commit();
+    } finally {
+      pool.add(c);
+    }
+    return source;
+  }
+
+  /**
+   * @return the title index of wiki_pages
+   */
+  private static TitleIndex getIds(BlockingQueue<Connection> pool)
+      throws SQLException, IOException {
+    String sql = "select id, title from wiki_pages where id >= ? and id < ?";
+    TitleIndex.Builder ids = new TitleIndex.Builder();
+    query(pool, sql, rs -> {
+      int id = rs.getInt(1);
+      String title = normalizeTitle(rs.getString(2));
+      ids.add(title, id);
     });
-    return ids;
+    return ids.build();
   }
 
-  private static Map<Integer, Integer> getRedirects(Connection c,
-      BiMap<String, Integer> ids) {
-    Map<Integer, String> titles = ids.inverse();
+  /**
+   * @return the final redirect target of each title by ordinal, see
+   *         {@link RedirectResolver#resolve}
+   */
+  private static IntBuffer getRedirects(BlockingQueue<Connection> pool,
+      TitleIndex ids) throws SQLException {
     String sql = "select id, "
         + "substring(mediawiki from '\\[\\[([^\\]]+)\\]\\]') "
         + "from wiki_pages where html is null and lower(mediawiki) "
-        + "like '#redirect%'";
+        + "like '#redirect%' and id >= ? and id < ?";
 
-    Map<Integer, Integer> redirects = Maps.newHashMap();
-    query(c, sql, rs -> {
-      try {
-        int id = rs.getInt(1);
-        String redirect = normalizeTitle(rs.getString(2));
-        int redirectId = ids.getOrDefault(redirect, -1);
-        if (redirectId >= 0) {
-          redirects.put(id, redirectId);
-        } else {
-          // Subsection links are actively ignored
+    int[] redirects = new int[ids.size()];
+    Arrays.fill(redirects, RedirectResolver.NONE);
+    // Rows of different titles, each is written by one thread
+    query(pool, sql, rs -> {
+      int id = rs.getInt(1);
+      String link = rs.getString(2);
+      if (link == null) {
+        // No [[link]] after #REDIRECT
+        return;
+      }
+      String redirect = normalizeTitle(link);
+      int source = ids.ordinalOf(id);
+      int target = ids.ordinal(redirect);
+      if (source >= 0 && target >= 0) {
+        redirects[source] = target;
+      } else if (target < 0) {
+        // Subsection links are actively ignored
         if (StringUtils.containsNone(redirect, '#', ':')) {
           System.err.println("[[" + redirect + "]] has no id");
         }
       }
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
-  } );
-    return redirects
-        .entrySet()
-        .parallelStream()
-        .filter(
-            e -> {
-              Integer v = e.getValue();
-              Integer end = null;
-              Set<Integer> loop = Sets.newHashSet(v);
-              while ((end = redirects.getOrDefault(v, null)) != null) {
-                if (loop.contains(end)) {
-                  System.err.println("Redirect loop detected:"
-                      + loop.stream().map(titles::get)
-                          .collect(Collectors.joining(",")));
-                  // Drop loops from redirects
-                  return false;
-                }
-                e.setValue(end);
-                v = end;
-                loop.add(v);
-              }
-              return true;
-            }).collect(Collectors.toMap(Entry::getKey, Entry::getValue));
+    });
+    return IntBuffer.wrap(RedirectResolver.resolve(redirects,
+        loop -> System.err.println("Redirect loop detected:"
+            + Arrays.stream(loop).mapToObj(ids::title)
+                .collect(Collectors.joining(",")))));
   }
 
-  private static void getLinks(){
-    
+  /**
+   * Streams normalized_links once into the link statistics
+   */
+  private static LinkStats getLinks(BlockingQueue<Connection> pool,
+      TitleIndex ids) throws SQLException {
+    String sql = "select page_id, surface, link_id from normalized_links "
+        + "where page_id >= ? and page_id < ?";
+    LinkStats.Builder links = new LinkStats.Builder(ids.size());
+    query(pool, sql, rs -> {
+      int source = ids.ordinalOf(rs.getInt(1));
+      int linkId = rs.getInt(3);
+      links.add(source, rs.getString(2),
+          linkId < 0 ? -1 : ids.ordinalOf(linkId));
+    });
+    return links.build();
   }
   
+  /**
+   * Maps the snapshot if it was computed from the tables as they are now,
+   * otherwise queries them and writes a new one. The fingerprint is taken
+   * before the queries, so tables changing meanwhile are seen by the next
+   * run. If any query fails no snapshot is written.
+   */
+  private static StatsSnapshot getStats(BlockingQueue<Connection> pool,
+      File file) throws SQLException, IOException {
+    long[] source = getSource(pool);
+    if (file.exists()) {
+      try {
+        StatsSnapshot stats = StatsSnapshot.open(file);
+        if (stats.isCurrent(source)) {
+          return stats;
+        }
+        System.out.println("Tables changed since " + file);
+      } catch (IOException e) {
+        System.err.println("Rebuilding " + file + ": " + e.getMessage());
+      }
+    }
+    TitleIndex ids = getIds(pool);
+    IntBuffer redirects = getRedirects(pool, ids);
+    LinkStats links = getLinks(pool, ids);
+    StatsSnapshot stats = new StatsSnapshot(source, ids, redirects, links);
+    stats.write(file);
+    return stats;
+  }
+
+  /**
+   * Usage: CollectStats [snapshot file] [connections]
+   * 
+   * The resolved statistics are kept in wiki_stats.snap by default and
+   * reused by later runs until wiki_pages or normalized_links change.
+   * Queries are split over 4 connections by default.
+   * 
+   * @param args
+   */
   public static void main(String[] args) {
-    try (Connection c = DB.getConnection()) {
+    File snapshot = new File(args.length > 0 ? args[0] : "wiki_stats.snap");
+    int connections = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    BlockingQueue<Connection> pool = new ArrayBlockingQueue<>(connections);
+    try {
+      for (int i = 0; i < connections; i++) {
+        Connection c = DB.getConnection();
+        c.setAutoCommit(false);
+        c.setReadOnly(true);
+        pool.add(c);
+      }
       long start = System.currentTimeMillis();
-      BiMap<String, Integer> ids = getIds(c);
-      Map<Integer, String> titles = ids.inverse();
-      Map<Integer, Integer> redirects = getRedirects(c, ids);
+      StatsSnapshot stats = getStats(pool, snapshot);
+      TitleIndex ids = stats.titles();
+      LinkStats links = stats.links();
       
       
       System.out.println("Article ids size "+ids.size());
+      System.out.println("Link surfaces " + links.surfaceCount());
       long elpased = (System.currentTimeMillis() - start);
       System.out.println(elpased / 1000 + " seconds");
-    } catch (SQLException e) {
+    } catch (SQLException | IOException e) {
       e.printStackTrace();
-      System.exit(0);
+      System.exit(1);
+    } finally {
+      for (Connection c : pool) {
+        try {
+          c.close();
+        } catch (SQLException e) {
+          e.printStackTrace();
+        }
+      }
     }
   }
 }
@@ -4,7 +4,6 @@ import info.bliki.wiki.dump.IArticleFilter;
 import info.bliki.wiki.dump.Siteinfo;
 import info.bliki.wiki.dump.WikiArticle;
 import info.bliki.wiki.dump.WikiXMLParser;
-import info.bliki.wiki.model.WikiModel;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -12,10 +11,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
@@ -42,11 +41,24 @@ public class DumpParser implements IArticleFilter {
   private int totalParsed = 0;
   private int prevCount = 0;
   private long prevTime;
-  private final ThreadPoolExecutor parsing;
+  // Render workers fed by the thread reading the dump, and the single
+  // thread printing the rows they render
+  private final Stage parsing;
+  private final Stage printing;
   private boolean printProgress = true;
+  private TemplateCache templates = null;
+  private RenderBudget budget = null;
+  // Replaces the render workers the budget finds stuck
+  private final Consumer<Thread> replaceStuck = this::replaceWorker;
+  // Model and buffer of the page being rendered, one per parsing thread
+  private final ThreadLocal<RenderContext> contexts = new ThreadLocal<>();
   
+  // Default bound of each template cache, in chars
+  private static final long TEMPLATE_CACHE_CHARS = 64 << 20;
   // More threads than this would not help
   private static final int MAX_THREADS = 80;
+  // Rendered rows waiting to be printed
+  private static final int PRINT_QUEUE = 256;
 
   /**
    * Multi-threaded parsing with single dump I/O
@@ -57,7 +69,8 @@ public class DumpParser implements IArticleFilter {
   }
 
   private DumpParser(int threadCount) {
-    parsing = getBoundedThreadPool(threadCount);
+    parsing = getRenderStage(threadCount);
+    printing = new Stage("print", 1, PRINT_QUEUE);
   }
 
   /**
@@ -70,59 +83,156 @@ public class DumpParser implements IArticleFilter {
     return this;
   }
 
+  /**
+   * Resolves templates through the cache, by default only the built-in
+   * magic words are
+   * 
+   * @param templates
+   * @return
+   */
+  public DumpParser setTemplates(TemplateCache templates) {
+    this.templates = templates;
+    return this;
+  }
+
+  /**
+   * Limits the time and output of rendering each page, see
+   * {@link RenderBudget}. A page still running long after its budget ran out
+   * is left behind on its thread, and a new render worker takes its place.
+   * 
+   * @param budget
+   * @return
+   */
+  public DumpParser setRenderBudget(RenderBudget budget) {
+    if (this.budget != null) {
+      this.budget.removeStuckListener(replaceStuck);
+    }
+    this.budget = budget;
+    if (budget != null) {
+      budget.addStuckListener(replaceStuck);
+    }
+    return this;
+  }
+
   /**
    * @override
    */
   public void process(final WikiArticle page, Siteinfo siteinfo) {
-    if (printProgress && totalParsed == 0) {
-      prevTime = System.currentTimeMillis();
+    if (isContentPage(page)) {
+      parsing.execute(createTask(page));
     }
-    boolean isContentPage = page.isMain() || page.isCategory(); 
-    if (isContentPage && !StringUtils.isEmpty(page.getText()))
-      parsing.execute(() -> {
-        WikiModel model = new HTMLWikiModel();
-        String id = page.getId();
-        String title = page.getTitle();
-        String mediawiki = page.getText();
-        try {
-          model.setUp();
-          String html = model.render(mediawiki);
-          // Prints 4 column rows
-          String output = Arrays.asList(id, title, html, mediawiki)
-              .stream()
-              .map(StringEscapeUtils::escapeCsv)
-              .collect(Collectors.joining(","));
-          synchronized (parsing) {
-            System.out.println(output);
-          }
-        } catch (Exception e) {
-          e.printStackTrace();
+    countProgress();
+  }
+
+  /**
+   * Decodes the raw page element on the worker thread before rendering it
+   */
+  private void process(final ByteBuffer rawPage, Siteinfo siteinfo) {
+    parsing.execute(() -> {
+      try {
+        WikiArticle page = PageSplitter.decode(rawPage, siteinfo);
+        if (page != null && isContentPage(page)) {
+          createTask(page).run();
         }
-      });
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    });
+    countProgress();
+  }
+
+  private static boolean isContentPage(WikiArticle page) {
+    return (page.isMain() || page.isCategory())
+        && !StringUtils.isEmpty(page.getText());
+  }
+
+  private Runnable createTask(final WikiArticle page) {
+    return () -> {
+      String id = page.getId();
+      String title = page.getTitle();
+      String mediawiki = page.getText();
+      try {
+        String html = context().render(page);
+        if (html == null) {
+          html = "";
+        }
+        // Prints 4 column rows
+        String output = Arrays.asList(id, title, html, mediawiki)
+            .stream()
+            .map(StringEscapeUtils::escapeCsv)
+            .collect(Collectors.joining(","));
+        printing.execute(() -> System.out.println(output));
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    };
+  }
+
+  /**
+   * @return the rendering context of the current thread
+   */
+  private RenderContext context() {
+    RenderContext context = contexts.get();
+    if (context == null || !context.isFor(templates, budget)) {
+      context = new RenderContext(templates, budget);
+      contexts.set(context);
+    }
+    return context;
+  }
 
+  private void countProgress() {
+    if (printProgress && totalParsed == 0) {
+      prevTime = System.currentTimeMillis();
+    }
     if (printProgress && ++totalParsed % 500 == 0) {
       double timeLapsed = (System.currentTimeMillis() - prevTime) / 1000.;
       prevTime = System.currentTimeMillis();
       double pagesPerSecond = (totalParsed - prevCount) / timeLapsed;
       prevCount = totalParsed;
       System.err.printf("%d pages at %.2f/sec\n", totalParsed, pagesPerSecond);
-      System.err.printf("Active threads %d/%d\n", parsing.getActiveCount(),
-          parsing.getPoolSize());
+      System.err.println(parsing);
+      System.err.println(printing);
     }
   }
 
   /**
-   * Terminates the thread pool wait for them to finish
+   * Waits for the rendering and then the printing of all pages to finish
    */
   private void finishUp() {
-    parsing.shutdown();
     try {
-      parsing.awaitTermination(1, TimeUnit.DAYS);
+      parsing.shutdown();
+      awaitRendering();
+      printing.shutdown();
+      printing.awaitTermination(1, TimeUnit.DAYS);
+      if (printProgress) {
+        System.err.println(parsing);
+        System.err.println(printing);
+      }
     } catch (InterruptedException e) {
       e.printStackTrace();
     }
   }
 
+  private void replaceWorker(Thread worker) {
+    parsing.replace(worker);
+  }
+
+  /**
+   * Waits for the render workers to finish. Those stuck in a page long past
+   * its time budget are replaced by then and left behind as daemon threads.
+   */
+  private void awaitRendering() throws InterruptedException {
+    parsing.awaitTermination(1, TimeUnit.DAYS);
+    if (budget != null) {
+      budget.removeStuckListener(replaceStuck);
+      int stuck = budget.stuck();
+      if (stuck > 0) {
+        System.err.printf("Left %d page(s) rendering past their budget\n",
+            stuck);
+      }
+    }
+  }
+
   /**
    * Parses the given Wikipedia XML dump file. User needs to instantiate the
    * parser for call backs
@@ -160,23 +270,39 @@ public class DumpParser implements IArticleFilter {
   }
 
   /**
-   * Bounds the number concurrent executing thread to 1/2 of the cores available
-   * to the JVM. If more jobs are submitted than the allowed upperbound, the
-   * caller thread will be executing the job.
+   * Parses the given uncompressed Wikipedia XML dump file by memory mapping
+   * it and cutting it into pages on the calling thread, the XML decoding of
+   * each page is done by the parsing threads.
+   * 
+   * @param file
+   * @param parser
+   * @throws IOException
+   * @throws SAXException
+   */
+  public static void parseSplitDumpWith(String file, DumpParser parser)
+      throws IOException, SAXException {
+    try (PageSplitter splitter = new PageSplitter(file)) {
+      Siteinfo siteinfo = splitter.getSiteinfo();
+      ByteBuffer page;
+      while ((page = splitter.next()) != null) {
+        parser.process(page, siteinfo);
+      }
+    }
+    parser.finishUp();
+  }
+
+  /**
+   * A render stage with one worker less than the given thread count, the
+   * remaining thread being the one reading the dump, and at most a worker
+   * per core available to the JVM. The reader waits while the queue is full
+   * instead of rendering.
    * 
-   * @return a fixed thread pool with bounded job numbers
+   * @return a stage with room for two pages per worker
    */
-  private static ThreadPoolExecutor getBoundedThreadPool(int poolSize) {
-    poolSize = Math.max(1, poolSize - 1);
+  private static Stage getRenderStage(int threadCount) {
+    int poolSize = Math.max(1, threadCount - 1);
     poolSize = Math.min(poolSize, Runtime.getRuntime().availableProcessors());
-    ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, // Core count
-        poolSize, // Pool Max
-        60, TimeUnit.SECONDS, // Thread keep alive time
-        new ArrayBlockingQueue<Runnable>(poolSize),// Queue
-        new ThreadPoolExecutor.CallerRunsPolicy()// Blocking mechanism
-    );
-    executor.allowCoreThreadTimeOut(true);
-    return executor;
+    return new Stage("render", poolSize, 2 * poolSize);
   }
   
   private static void turnOffLogback(){
@@ -194,8 +320,43 @@ public class DumpParser implements IArticleFilter {
    */
   public static void main(String[] args) throws IOException {
 
-    if (args.length > 0) {
+    String dump = null;
+    File store = null;
+    long cacheChars = TEMPLATE_CACHE_CHARS;
+    long pageBudget = 0;
+    int pageOutput = 0;
+    File slowPages = new File("slow_pages.tsv");
+    boolean usage = false;
+    for (int i = 0; i < args.length; i++) {
+      if ("--templates".equals(args[i]) && i + 1 < args.length) {
+        store = new File(args[++i]);
+      } else if ("--template-cache".equals(args[i]) && i + 1 < args.length) {
+        cacheChars = Long.parseLong(args[++i]) << 20;
+      } else if ("--page-budget".equals(args[i]) && i + 1 < args.length) {
+        pageBudget = Long.parseLong(args[++i]);
+      } else if ("--page-output".equals(args[i]) && i + 1 < args.length) {
+        pageOutput = Integer.parseInt(args[++i]);
+      } else if ("--slow-pages".equals(args[i]) && i + 1 < args.length) {
+        slowPages = new File(args[++i]);
+      } else if (dump == null && !args[i].startsWith("--")) {
+        dump = args[i];
+      } else {
+        usage = true;
+      }
+    }
+    // A missing store is built from the dump file
+    if (usage || store != null && !store.exists() && dump == null) {
       System.err.println("Usage: bzcat latest.xml.bz2 | java ... Parse");
+      System.err.println("       java ... Parse [--templates store] "
+          + "[--template-cache M] [--page-budget ms] [--page-output chars] "
+          + "[--slow-pages file] latest.xml");
+      System.err.println("The template store is built from the dump file "
+          + "by a first pass if it does not exist, each template cache "
+          + "holds M million chars, 64 by default");
+      System.err.println("A page over the time or html size budget is "
+          + "rendered again without tables and templates, and printed "
+          + "without html if that is over too. Such pages are listed in "
+          + "the slow pages file, slow_pages.tsv by default");
       System.exit(-1);
     }
 
@@ -204,17 +365,39 @@ public class DumpParser implements IArticleFilter {
     turnOffLogback();
 
     try {
-      System.err.println("Started dump parsing");
       DumpParser parser = new DumpParser();
+      if (store != null) {
+        if (!store.exists()) {
+          System.err.println("Collecting templates into " + store);
+          int count = TemplateStore.build(dump, store);
+          System.err.printf("%d templates\n", count);
+        }
+        parser.setTemplates(new TemplateCache(TemplateStore.open(store),
+            cacheChars));
+      }
+      RenderBudget budget = null;
+      if (pageBudget > 0 || pageOutput > 0) {
+        budget = new RenderBudget(pageBudget, pageOutput, slowPages);
+        parser.setRenderBudget(budget);
+      }
+      System.err.println("Started dump parsing");
       if (debug) {
         BZip2CompressorInputStream bi = new BZip2CompressorInputStream(
             new FileInputStream(new File(
                 "/Users/xiaocheng/Downloads/enwiki-sample-pages-articles.xml.bz2")));
         parseDumpWith(bi, parser);
+      } else if (dump != null) {
+        parseSplitDumpWith(dump, parser);
       } else {
         parseDumpWith(parser);
       }
       System.err.printf("\nParsing done! Totalling %d articles.\n", parser.totalParsed);
+      if (parser.templates != null) {
+        System.err.println(parser.templates);
+      }
+      if (budget != null) {
+        budget.close();
+      }
     } catch (Exception e) {
       e.printStackTrace();
     }
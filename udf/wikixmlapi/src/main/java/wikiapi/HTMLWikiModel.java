@@ -1,9 +1,15 @@
 package wikiapi;
 
+import info.bliki.htmlcleaner.BaseToken;
+import info.bliki.htmlcleaner.TagToken;
 import info.bliki.wiki.filter.ITextConverter;
+import info.bliki.wiki.filter.ParsedPageName;
 import info.bliki.wiki.model.WikiModel;
+import info.bliki.wiki.model.WikiModelContentException;
+import info.bliki.wiki.namespaces.INamespace.NamespaceCode;
 
 import java.io.IOException;
+import java.util.Map;
 
 import org.apache.commons.lang3.StringUtils;
 
@@ -17,8 +23,87 @@ public class HTMLWikiModel extends WikiModel {
   
   private static final boolean PARSE_TEMPLATES = true;
 
+  private final TemplateCache templates;
+  // Run as the page is parsed and rendered, may abandon the render by
+  // throwing
+  private Runnable checkpoint = null;
+
+  /**
+   * Resolves only the built-in magic words, with the default configuration
+   * of bliki
+   */
   public HTMLWikiModel() {
     super("${image}", "${title}");
+    this.templates = null;
+  }
+
+  /**
+   * @param templates resolves the Template namespace
+   */
+  public HTMLWikiModel(TemplateCache templates) {
+    super(templates.configuration(), "${image}", "${title}");
+    this.templates = templates;
+  }
+
+  /**
+   * Runs the checkpoint for every token parsed, template looked up and level
+   * of nesting rendered, which may abandon the render by throwing
+   * 
+   * @param checkpoint null for none
+   */
+  public void setCheckpoint(Runnable checkpoint) {
+    this.checkpoint = checkpoint;
+  }
+
+  private void checkpoint() {
+    if (checkpoint != null) {
+      checkpoint.run();
+    }
+  }
+
+  @Override
+  public void append(BaseToken contentNode) {
+    checkpoint();
+    super.append(contentNode);
+  }
+
+  @Override
+  public boolean pushNode(TagToken node) {
+    checkpoint();
+    return super.pushNode(node);
+  }
+
+  @Override
+  public int incrementRecursionLevel() {
+    // After the increment, which callers undo in a finally block
+    int level = super.incrementRecursionLevel();
+    try {
+      checkpoint();
+    } catch (RenderBudget.Exceeded e) {
+      // Past every recursion limit, so that the parser skips the nested
+      // parse instead of catching the throw and going on
+      return Integer.MAX_VALUE;
+    }
+    return level;
+  }
+
+  @Override
+  public String getRawWikiContent(ParsedPageName parsedPagename,
+      Map<String, String> templateParameters)
+      throws WikiModelContentException {
+    try {
+      checkpoint();
+    } catch (RenderBudget.Exceeded e) {
+      // Not expanded
+      return null;
+    }
+    String result = super.getRawWikiContent(parsedPagename,
+        templateParameters);
+    if (result == null && templates != null && parsedPagename.namespace
+        .isType(NamespaceCode.TEMPLATE_NAMESPACE_KEY)) {
+      result = templates.raw(parsedPagename.pagename);
+    }
+    return result;
   }
   
   @Override
@@ -35,6 +120,40 @@ public class HTMLWikiModel extends WikiModel {
 
     return buf.toString();
   }
+
+  /**
+   * Renders into the given buffer instead of a new one
+   * 
+   * @param converter
+   * @param rawWikiText
+   * @param buf
+   * @throws IOException
+   */
+  public void render(ITextConverter converter, String rawWikiText,
+      StringBuilder buf) throws IOException {
+    initialize();
+    if (rawWikiText != null) {
+      render(converter, rawWikiText, buf, false, PARSE_TEMPLATES);
+    }
+  }
+
+  /**
+   * Clears the state left by the previous page, for a model reused from page
+   * to page. setUp alone leaves the __NOTOC__ flag, the template frame and
+   * the attributes set, and the template cache the unfinished expansions of
+   * an abandoned page.
+   */
+  public void reset() {
+    setUp();
+    setNoToc(false);
+    setFrame(null);
+    if (attributes != null) {
+      attributes.clear();
+    }
+    if (templates != null) {
+      templates.reset();
+    }
+  }
   
   /**
    * Cleans up the Wikipedia title string
@@ -0,0 +1,405 @@
+package wikiapi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Link statistics of the entities, by {@link TitleIndex} ordinal: the number
+ * of links into and out of each page, and for each surface the pages it
+ * links to with their counts, most linked first. Everything is held in int
+ * arrays, the surfaces sorted for binary search. A {@link StatsSnapshot}
+ * stores them as they are and reads them back into arrays.
+ *
+ */
+public class LinkStats {
+
+  // Package-private for StatsSnapshot
+  final int[] inlinks;
+  final int[] outlinks;
+  final String[] surfaces;
+  // Targets of surface i are targets[starts[i], starts[i + 1])
+  final int[] starts;
+  final int[] targets;
+  final int[] counts;
+
+  LinkStats(int[] inlinks, int[] outlinks, String[] surfaces, int[] starts,
+      int[] targets, int[] counts) {
+    this.inlinks = inlinks;
+    this.outlinks = outlinks;
+    this.surfaces = surfaces;
+    this.starts = starts;
+    this.targets = targets;
+    this.counts = counts;
+  }
+
+  /**
+   * @param ordinal
+   * @return number of links resolved to the page
+   */
+  public int inlinks(int ordinal) {
+    return inlinks[ordinal];
+  }
+
+  /**
+   * @param ordinal
+   * @return number of links of the page
+   */
+  public int outlinks(int ordinal) {
+    return outlinks[ordinal];
+  }
+
+  public int surfaceCount() {
+    return surfaces.length;
+  }
+
+  /**
+   * @param surface
+   * @return index of the surface, -1 if it never links to a page
+   */
+  public int surface(String surface) {
+    int i = Arrays.binarySearch(surfaces, surface);
+    return i < 0 ? -1 : i;
+  }
+
+  /**
+   * @param surface index of the surface
+   * @return number of pages the surface links to
+   */
+  public int targetCount(int surface) {
+    return starts[surface + 1] - starts[surface];
+  }
+
+  /**
+   * @param surface index of the surface
+   * @return the surface
+   */
+  public String surface(int surface) {
+    return surfaces[surface];
+  }
+
+  /**
+   * @param surface index of the surface
+   * @param i rank of the target, the most linked first
+   * @return ordinal of the target
+   */
+  public int target(int surface, int i) {
+    return targets[starts[surface] + i];
+  }
+
+  /**
+   * @param surface index of the surface
+   * @param i rank of the target
+   * @return number of links of the surface to the target
+   */
+  public int count(int surface, int i) {
+    return counts[starts[surface] + i];
+  }
+
+  /**
+   * @param surface index of the surface
+   * @return number of links of the surface to any page
+   */
+  public long total(int surface) {
+    long total = 0;
+    for (int i = starts[surface]; i < starts[surface + 1]; i++) {
+      total += counts[i];
+    }
+    return total;
+  }
+
+  /**
+   * @param surface
+   * @param ordinal
+   * @return share of the links of the surface that go to the page, 0 if
+   *         none
+   */
+  public double commonness(String surface, int ordinal) {
+    int s = surface(surface);
+    if (s < 0) {
+      return 0;
+    }
+    long total = 0;
+    long count = 0;
+    for (int i = starts[s]; i < starts[s + 1]; i++) {
+      total += counts[i];
+      if (targets[i] == ordinal) {
+        count = counts[i];
+      }
+    }
+    return (double) count / total;
+  }
+
+  /**
+   * Collects links from several threads. Each thread counts surface and
+   * target pairs in a table of its own, merged by {@link #build()}.
+   */
+  public static class Builder {
+
+    // Longest surface counted, its UTF-8 bytes fit a TitleIndex
+    private static final int MAX_SURFACE = Character.MAX_VALUE / 3;
+
+    private final AtomicIntegerArray inlinks;
+    private final AtomicIntegerArray outlinks;
+    private final List<Partial> partials = new ArrayList<>();
+    private final ThreadLocal<Partial> partial = ThreadLocal.withInitial(
+        () -> {
+          Partial p = new Partial();
+          synchronized (partials) {
+            partials.add(p);
+          }
+          return p;
+        });
+
+    /**
+     * @param titles number of ordinals
+     */
+    public Builder(int titles) {
+      inlinks = new AtomicIntegerArray(titles);
+      outlinks = new AtomicIntegerArray(titles);
+    }
+
+    /**
+     * Adds a link, may be called from several threads
+     *
+     * @param source ordinal of the page of the link, -1 if not indexed
+     * @param surface counted with the target unless empty or longer than
+     *          {@link #MAX_SURFACE}
+     * @param target ordinal of the page linked to, -1 if none
+     */
+    public void add(int source, String surface, int target) {
+      if (source >= 0) {
+        outlinks.incrementAndGet(source);
+      }
+      if (target < 0) {
+        return;
+      }
+      inlinks.incrementAndGet(target);
+      if (surface != null && !surface.isEmpty()
+          && surface.length() <= MAX_SURFACE) {
+        Partial p = partial.get();
+        p.pairs.add((long) p.surfaces.id(surface) << 32 | target, 1);
+      }
+    }
+
+    /**
+     * @return the statistics, once all links are added
+     */
+    public LinkStats build() {
+      // Surfaces of all threads, sorted and distinct
+      List<String> all = new ArrayList<>();
+      for (Partial p : partials) {
+        all.addAll(p.surfaces.strings());
+      }
+      String[] surfaces = all.stream().sorted().distinct()
+          .toArray(String[]::new);
+
+      // Pairs by the index of the surface
+      LongIntMap pairs = partials.size() == 1 ? null : new LongIntMap();
+      for (Partial p : partials) {
+        List<String> strings = p.surfaces.strings();
+        int[] remap = new int[strings.size()];
+        for (int i = 0; i < remap.length; i++) {
+          remap[i] = Arrays.binarySearch(surfaces, strings.get(i));
+        }
+        p.pairs.remap(remap);
+        if (pairs == null) {
+          pairs = p.pairs;
+        } else {
+          pairs.addAll(p.pairs);
+        }
+      }
+      if (pairs == null) {
+        pairs = new LongIntMap();
+      }
+      partials.clear();
+
+      long[] keys = pairs.sortedKeys();
+      int[] starts = new int[surfaces.length + 1];
+      int[] targets = new int[keys.length];
+      int[] counts = new int[keys.length];
+      for (long key : keys) {
+        starts[(int) (key >>> 32) + 1]++;
+      }
+      for (int i = 0; i < surfaces.length; i++) {
+        starts[i + 1] += starts[i];
+      }
+      // Most linked first, then by ordinal
+      long[] order = new long[16];
+      for (int s = 0; s < surfaces.length; s++) {
+        int from = starts[s];
+        int n = starts[s + 1] - from;
+        if (order.length < n) {
+          order = new long[Math.max(n, order.length * 2)];
+        }
+        for (int i = 0; i < n; i++) {
+          long key = keys[from + i];
+          order[i] = (long) (Integer.MAX_VALUE - pairs.get(key)) << 32
+              | (int) key;
+        }
+        Arrays.sort(order, 0, n);
+        for (int i = 0; i < n; i++) {
+          targets[from + i] = (int) order[i];
+          counts[from + i] = Integer.MAX_VALUE - (int) (order[i] >>> 32);
+        }
+      }
+      return new LinkStats(toArray(inlinks), toArray(outlinks), surfaces,
+          starts, targets, counts);
+    }
+
+    private static int[] toArray(AtomicIntegerArray values) {
+      int[] array = new int[values.length()];
+      for (int i = 0; i < array.length; i++) {
+        array[i] = values.get(i);
+      }
+      return array;
+    }
+  }
+
+  /**
+   * Pairs counted by one thread
+   */
+  private static class Partial {
+    final Interner surfaces = new Interner();
+    final LongIntMap pairs = new LongIntMap();
+  }
+
+  /**
+   * Dense ids of strings, open addressing over the ids
+   */
+  private static class Interner {
+    private int[] slots = new int[1 << 10];
+    private final List<String> strings = new ArrayList<>();
+
+    int id(String s) {
+      int mask = slots.length - 1;
+      int slot = mix(s.hashCode()) & mask;
+      for (;; slot = (slot + 1) & mask) {
+        int id = slots[slot] - 1;
+        if (id < 0) {
+          break;
+        }
+        if (strings.get(id).equals(s)) {
+          return id;
+        }
+      }
+      int id = strings.size();
+      strings.add(s);
+      slots[slot] = id + 1;
+      if (strings.size() * 2 > slots.length) {
+        slots = new int[slots.length * 2];
+        mask = slots.length - 1;
+        for (int i = 0; i < strings.size(); i++) {
+          int at = mix(strings.get(i).hashCode()) & mask;
+          while (slots[at] != 0) {
+            at = (at + 1) & mask;
+          }
+          slots[at] = i + 1;
+        }
+      }
+      return id;
+    }
+
+    List<String> strings() {
+      return strings;
+    }
+
+    private static int mix(int h) {
+      h *= 0x9e3779b9;
+      return h ^ (h >>> 16);
+    }
+  }
+
+  /**
+   * Open addressing map of non-negative long keys to int counts
+   */
+  private static class LongIntMap {
+    private static final long FREE = -1;
+
+    private long[] keys = new long[1 << 10];
+    private int[] values = new int[1 << 10];
+    private int size = 0;
+
+    LongIntMap() {
+      Arrays.fill(keys, FREE);
+    }
+
+    void add(long key, int delta) {
+      int slot = find(keys, key);
+      if (keys[slot] == key) {
+        values[slot] += delta;
+        return;
+      }
+      keys[slot] = key;
+      values[slot] = delta;
+      if (++size * 2 > keys.length) {
+        rehash(keys.length * 2);
+      }
+    }
+
+    int get(long key) {
+      int slot = find(keys, key);
+      return keys[slot] == key ? values[slot] : 0;
+    }
+
+    void addAll(LongIntMap other) {
+      for (int i = 0; i < other.keys.length; i++) {
+        if (other.keys[i] != FREE) {
+          add(other.keys[i], other.values[i]);
+        }
+      }
+    }
+
+    /**
+     * Replaces the surface id in the high bits of every key
+     */
+    void remap(int[] surfaces) {
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] != FREE) {
+          keys[i] = (long) surfaces[(int) (keys[i] >>> 32)] << 32
+              | (keys[i] & 0xffffffffL);
+        }
+      }
+      rehash(keys.length);
+    }
+
+    long[] sortedKeys() {
+      long[] sorted = new long[size];
+      int n = 0;
+      for (long key : keys) {
+        if (key != FREE) {
+          sorted[n++] = key;
+        }
+      }
+      Arrays.parallelSort(sorted);
+      return sorted;
+    }
+
+    private void rehash(int capacity) {
+      long[] oldKeys = keys;
+      int[] oldValues = values;
+      keys = new long[capacity];
+      values = new int[capacity];
+      Arrays.fill(keys, FREE);
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != FREE) {
+          int slot = find(keys, oldKeys[i]);
+          keys[slot] = oldKeys[i];
+          values[slot] = oldValues[i];
+        }
+      }
+    }
+
+    private static int find(long[] keys, long key) {
+      int mask = keys.length - 1;
+      long h = key * 0x9e3779b97f4a7c15L;
+      int slot = (int) (h ^ (h >>> 32)) & mask;
+      while (keys[slot] != FREE && keys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+  }
+
+}
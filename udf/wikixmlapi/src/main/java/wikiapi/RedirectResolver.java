@@ -0,0 +1,80 @@
+package wikiapi;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Resolves redirect chains over dense int arrays. Every title is visited
+ * once: a chain is followed until a title that is not a redirect or that is
+ * already resolved, and the end is then written back to every title on the
+ * path. A chain that comes back to a title on its own path is a loop, its
+ * titles and the ones leading into it are marked as such.
+ *
+ * The arrays are owned by the call, so resolvers may run on several threads.
+ *
+ */
+public class RedirectResolver {
+
+  /**
+   * Not a redirect
+   */
+  public static final int NONE = -1;
+  /**
+   * In a redirect loop, or leading into one
+   */
+  public static final int LOOP = -2;
+
+  // Title on the path being followed
+  private static final int VISITING = -3;
+
+  /**
+   * @param next target of each title, {@link #NONE} if not a redirect
+   * @param loops receives the titles of each loop found, once per loop
+   * @return for each title the end of its chain, {@link #NONE} if not a
+   *         redirect or {@link #LOOP}
+   */
+  public static int[] resolve(int[] next, Consumer<int[]> loops) {
+    int[] resolved = new int[next.length];
+    // Integer.MIN_VALUE until the title is resolved
+    Arrays.fill(resolved, Integer.MIN_VALUE);
+    int[] path = new int[16];
+    for (int title = 0; title < next.length; title++) {
+      if (resolved[title] != Integer.MIN_VALUE) {
+        continue;
+      }
+      if (next[title] == NONE) {
+        resolved[title] = NONE;
+        continue;
+      }
+      int length = 0;
+      int current = title;
+      while (next[current] != NONE && resolved[current] == Integer.MIN_VALUE) {
+        resolved[current] = VISITING;
+        if (length == path.length) {
+          path = Arrays.copyOf(path, length * 2);
+        }
+        path[length++] = current;
+        current = next[current];
+      }
+      int end;
+      if (resolved[current] == VISITING) {
+        // The loop is the part of the path from current on
+        int start = length - 1;
+        while (path[start] != current) {
+          start--;
+        }
+        loops.accept(Arrays.copyOfRange(path, start, length));
+        end = LOOP;
+      } else if (next[current] == NONE) {
+        end = current;
+      } else {
+        end = resolved[current];
+      }
+      for (int i = 0; i < length; i++) {
+        resolved[path[i]] = end;
+      }
+    }
+    return resolved;
+  }
+
+}
@@ -0,0 +1,99 @@
+package wikiapi;
+
+import info.bliki.wiki.dump.WikiArticle;
+import info.bliki.wiki.filter.HTMLConverter;
+import info.bliki.wiki.filter.ITextConverter;
+
+import java.io.IOException;
+
+/**
+ * Rendering state a parsing thread keeps from page to page: the wiki model,
+ * the converter and the html buffer. The model is reset between pages
+ * instead of created for each, and a buffer a large page grew past
+ * {@link #MAX_RETAINED} chars is dropped before the next page. A context
+ * lives as long as its parsing thread, which is the whole run, so each
+ * keeps at most that much.
+ *
+ */
+public class RenderContext {
+
+  private static final int INITIAL = 1 << 14;
+  private static final int MAX_RETAINED = 1 << 20;
+
+  private final TemplateCache templates;
+  private final RenderBudget budget;
+  // Checkpoint of the model, null without a budget
+  private final RenderBudget.Meter meter;
+  private final HTMLWikiModel model;
+  private final ITextConverter converter = new HTMLConverter();
+  private StringBuilder html = new StringBuilder(INITIAL);
+
+  /**
+   * @param templates see {@link HTMLWikiModel#HTMLWikiModel(TemplateCache)},
+   *          null for the built-in magic words only
+   */
+  public RenderContext(TemplateCache templates) {
+    this(templates, null);
+  }
+
+  /**
+   * @param templates see {@link HTMLWikiModel#HTMLWikiModel(TemplateCache)},
+   *          null for the built-in magic words only
+   * @param budget of {@link #render(WikiArticle)}, null for none
+   */
+  public RenderContext(TemplateCache templates, RenderBudget budget) {
+    this.templates = templates;
+    this.budget = budget;
+    this.model = templates == null ? new HTMLWikiModel()
+        : new HTMLWikiModel(templates);
+    this.meter = budget == null ? null : budget.meter();
+    model.setCheckpoint(meter);
+  }
+
+  /**
+   * @param templates
+   * @param budget
+   * @return whether the context renders with these templates and budget
+   */
+  public boolean isFor(TemplateCache templates, RenderBudget budget) {
+    return this.templates == templates && this.budget == budget;
+  }
+
+  /**
+   * Renders the page within the budget, if any. A page over budget is
+   * rendered again without its tables and templates, and gets no html if
+   * that is over budget too.
+   *
+   * @param page
+   * @return the html, null if the page is dropped
+   * @throws IOException
+   */
+  public String render(WikiArticle page) throws IOException {
+    if (meter == null) {
+      return render(page.getText());
+    }
+    return meter.render(page.getId(), page.getTitle(), page.getText(),
+        this::render);
+  }
+
+  /**
+   * Renders a page as HTMLWikiModel.render would
+   *
+   * @param wikitext
+   * @return the html
+   * @throws IOException
+   */
+  public String render(String wikitext) throws IOException {
+    model.reset();
+    if (html.capacity() > MAX_RETAINED) {
+      html = new StringBuilder(INITIAL);
+    }
+    html.setLength(0);
+    if (meter != null) {
+      meter.watch(html);
+    }
+    model.render(converter, wikitext, html);
+    return html.toString();
+  }
+
+}
@@ -0,0 +1,215 @@
+package wikiapi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Versioned binary snapshot of the structures resolved by CollectStats: the
+ * title index, the redirect targets and the link statistics, with the
+ * fingerprint of the tables they were computed from. The title index and
+ * the redirects are memory-mapped by {@link #open(File)}; the link
+ * statistics are copied into arrays, which keeps their lookups as fast as
+ * when they are built. A run over unchanged tables skips the database.
+ *
+ * Layout, big-endian: magic, version, the number of longs of the fingerprint
+ * and the longs, the number of sections and the offset and length of each,
+ * then the sections aligned on 8 bytes. The sections are the title index,
+ * the redirects, the surfaces as a title index with the index of each
+ * surface as its id, and the inlinks, outlinks, starts, targets and counts
+ * of the link statistics.
+ *
+ */
+public class StatsSnapshot {
+
+  private static final int MAGIC = 0x534e4150;
+  // Bump with any change of the layout or of how the structures are built
+  private static final int VERSION = 2;
+  private static final int SECTIONS = 8;
+
+  private final long[] source;
+  private final TitleIndex titles;
+  private final IntBuffer redirects;
+  private final LinkStats links;
+
+  /**
+   * @param source fingerprint of the tables
+   * @param titles
+   * @param redirects see {@link RedirectResolver#resolve}
+   * @param links
+   */
+  public StatsSnapshot(long[] source, TitleIndex titles, IntBuffer redirects,
+      LinkStats links) {
+    this.source = source;
+    this.titles = titles;
+    this.redirects = redirects;
+    this.links = links;
+  }
+
+  /**
+   * Maps a snapshot written by {@link #write(File)}
+   *
+   * @param file
+   * @return
+   * @throws IOException if the file is not a snapshot of this version
+   */
+  public static StatsSnapshot open(File file) throws IOException {
+    try (RandomAccessFile in = new RandomAccessFile(file, "r");
+        FileChannel channel = in.getChannel()) {
+      if (in.length() < 8 || in.readInt() != MAGIC
+          || in.readInt() != VERSION) {
+        throw new IOException("Not a stats snapshot of version " + VERSION
+            + ": " + file);
+      }
+      long[] source = new long[in.readInt()];
+      for (int i = 0; i < source.length; i++) {
+        source[i] = in.readLong();
+      }
+      if (in.readInt() != SECTIONS) {
+        throw new IOException("Corrupt stats snapshot: " + file);
+      }
+      ByteBuffer[] sections = new ByteBuffer[SECTIONS];
+      for (int i = 0; i < SECTIONS; i++) {
+        long offset = in.readLong();
+        long length = in.readLong();
+        if (offset < 0 || length < 0 || offset + length > channel.size()) {
+          throw new IOException("Truncated stats snapshot: " + file);
+        }
+        sections[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+            length);
+      }
+      TitleIndex titles = TitleIndex.wrap(sections[0]);
+      TitleIndex index = TitleIndex.wrap(sections[2]);
+      String[] surfaces = new String[index.size()];
+      for (int i = 0; i < surfaces.length; i++) {
+        surfaces[index.id(i)] = index.title(i);
+      }
+      LinkStats links = new LinkStats(toArray(sections[3]),
+          toArray(sections[4]), surfaces, toArray(sections[5]),
+          toArray(sections[6]), toArray(sections[7]));
+      return new StatsSnapshot(source, titles, sections[1].asIntBuffer(),
+          links);
+    }
+  }
+
+  /**
+   * Writes the snapshot through a temporary file renamed over the target, so
+   * that readers never see a partial one
+   *
+   * @param file
+   * @throws IOException
+   */
+  public void write(File file) throws IOException {
+    TitleIndex.Builder surfaces = new TitleIndex.Builder();
+    for (int i = 0; i < links.surfaces.length; i++) {
+      surfaces.add(links.surfaces[i], i);
+    }
+    Section[] sections = { titles::write, c -> write(c, redirects),
+        surfaces.build()::write, c -> write(c, IntBuffer.wrap(links.inlinks)),
+        c -> write(c, IntBuffer.wrap(links.outlinks)),
+        c -> write(c, IntBuffer.wrap(links.starts)),
+        c -> write(c, IntBuffer.wrap(links.targets)),
+        c -> write(c, IntBuffer.wrap(links.counts)) };
+    File tmp = new File(file.getPath() + ".tmp");
+    try (RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        FileChannel channel = out.getChannel()) {
+      out.setLength(0);
+      long[] offsets = new long[SECTIONS];
+      long[] lengths = new long[SECTIONS];
+      channel.position(16 + 8 * source.length + 16 * SECTIONS);
+      for (int i = 0; i < SECTIONS; i++) {
+        offsets[i] = align(channel);
+        sections[i].write(channel);
+        lengths[i] = channel.position() - offsets[i];
+      }
+      out.seek(0);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(source.length);
+      for (long value : source) {
+        out.writeLong(value);
+      }
+      out.writeInt(SECTIONS);
+      for (int i = 0; i < SECTIONS; i++) {
+        out.writeLong(offsets[i]);
+        out.writeLong(lengths[i]);
+      }
+    }
+    if (!tmp.renameTo(file)) {
+      throw new IOException("Failed to move " + tmp + " to " + file);
+    }
+  }
+
+  /**
+   * @param source fingerprint of the tables now
+   * @return whether the snapshot was computed from the same tables
+   */
+  public boolean isCurrent(long[] source) {
+    return Arrays.equals(this.source, source);
+  }
+
+  public TitleIndex titles() {
+    return titles;
+  }
+
+  /**
+   * @return the final redirect target of each title by ordinal
+   */
+  public IntBuffer redirects() {
+    return redirects;
+  }
+
+  public LinkStats links() {
+    return links;
+  }
+
+  private interface Section {
+    void write(FileChannel channel) throws IOException;
+  }
+
+  /**
+   * Pads the channel to a multiple of 8 bytes
+   *
+   * @return the position
+   */
+  private static long align(FileChannel channel) throws IOException {
+    ByteBuffer padding = ByteBuffer.allocate((int) (-channel.position() & 7));
+    while (padding.hasRemaining()) {
+      channel.write(padding);
+    }
+    return channel.position();
+  }
+
+  private static int[] toArray(ByteBuffer section) {
+    IntBuffer values = section.asIntBuffer();
+    int[] array = new int[values.remaining()];
+    values.get(array);
+    return array;
+  }
+
+  private static void write(FileChannel channel, IntBuffer values)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+    IntBuffer view = buffer.asIntBuffer();
+    IntBuffer rest = values.duplicate();
+    rest.clear();
+    while (rest.hasRemaining()) {
+      int n = Math.min(view.capacity(), rest.remaining());
+      IntBuffer chunk = rest.slice();
+      chunk.limit(n);
+      view.clear();
+      view.put(chunk);
+      rest.position(rest.position() + n);
+      buffer.clear();
+      buffer.limit(4 * n);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
+
+}
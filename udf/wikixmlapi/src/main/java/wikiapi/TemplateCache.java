@@ -0,0 +1,203 @@
+package wikiapi;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+
+import info.bliki.wiki.model.Configuration;
+
+/**
+ * Bounded concurrent LRU caches in front of a {@link TemplateStore}, shared
+ * by all rendering threads: raw templates by name, and the expansions of
+ * templates called without parameters, which bliki looks up through the
+ * template calls cache of the {@link #configuration()}. Both are weighed in
+ * chars and count their hits and misses.
+ *
+ * Templates using magic words that differ between pages, such as
+ * {{PAGENAME}}, never have their expansions cached, nor do the templates
+ * whose expansion looks any of them up, however deeply nested.
+ *
+ */
+public class TemplateCache {
+
+  private static final Pattern PAGE_DEPENDENT = Pattern.compile(
+      "PAGENAME|NAMESPACE|CURRENT|LOCAL|REVISION|#time|#invoke");
+
+  private final LoadingCache<String, Template> raw;
+  private final Cache<String, String> expanded;
+  private final Configuration configuration = new Configuration();
+  private final ThreadLocal<Expanding> expanding = ThreadLocal.withInitial(
+      Expanding::new);
+
+  /**
+   * @param store
+   * @param maxChars bound of each of the caches, in chars of names and texts
+   */
+  public TemplateCache(TemplateStore store, long maxChars) {
+    raw = CacheBuilder.newBuilder()
+        .maximumWeight(maxChars)
+        .<String, Template> weigher((name, template) -> name.length()
+            + (template.text == null ? 0 : template.text.length()))
+        .recordStats()
+        .build(new CacheLoader<String, Template>() {
+          @Override
+          public Template load(String name) {
+            return new Template(store.get(name));
+          }
+        });
+    expanded = CacheBuilder.newBuilder()
+        .maximumWeight(maxChars)
+        .<String, String> weigher((call, text) -> call.length()
+            + text.length())
+        .recordStats()
+        .build();
+    configuration.setTemplateCallsCache(new Expansions());
+  }
+
+  /**
+   * @param name of the template, without the namespace
+   * @return the raw wikitext of the template, null if there is none
+   */
+  public String raw(String name) {
+    Template template = raw.getUnchecked(name);
+    if (template.pageDependent) {
+      expanding.get().dependent++;
+    }
+    return template.text;
+  }
+
+  /**
+   * Forgets the expansions the thread left unfinished, such as those of an
+   * abandoned page, before the thread renders the next page
+   */
+  public void reset() {
+    expanding.get().calls.clear();
+  }
+
+  /**
+   * @return a configuration for the wiki models, with the expansions as its
+   *         template calls cache
+   */
+  public Configuration configuration() {
+    return configuration;
+  }
+
+  public CacheStats rawStats() {
+    return raw.stats();
+  }
+
+  public CacheStats expansionStats() {
+    return expanded.stats();
+  }
+
+  @Override
+  public String toString() {
+    return "Templates " + describe(raw.stats()) + ", expansions "
+        + describe(expanded.stats());
+  }
+
+  private static String describe(CacheStats stats) {
+    return String.format("%d hits %d misses (%.1f%%) %d evictions",
+        stats.hitCount(), stats.missCount(), 100 * stats.hitRate(),
+        stats.evictionCount());
+  }
+
+  /**
+   * A template as read from the store
+   */
+  private static class Template {
+    final String text;
+    final boolean pageDependent;
+
+    Template(String text) {
+      this.text = text;
+      this.pageDependent = text != null
+          && PAGE_DEPENDENT.matcher(text).find();
+    }
+  }
+
+  /**
+   * Expansions in progress on a thread, innermost first, each with the
+   * number of page-dependent templates the thread had looked up when it
+   * started. An expansion is cached only if that number did not change.
+   */
+  private static class Expanding {
+    final Deque<Call> calls = new ArrayDeque<>();
+    int dependent = 0;
+  }
+
+  private static class Call {
+    final String call;
+    final int dependent;
+
+    Call(String call, int dependent) {
+      this.call = call;
+      this.dependent = dependent;
+    }
+  }
+
+  /**
+   * The template calls cache as seen by bliki, its keys are the full name
+   * of the template followed by "|" and each "name=value|" parameter. Only
+   * calls without parameters are looked up and kept. A miss is followed by
+   * the expansion, and then by the put of its text on the same thread.
+   */
+  private class Expansions extends AbstractMap<String, String> {
+
+    @Override
+    public String get(Object key) {
+      String call = (String) key;
+      if (!isParameterless(call)) {
+        return null;
+      }
+      String text = expanded.getIfPresent(call);
+      if (text == null) {
+        Expanding state = expanding.get();
+        state.calls.push(new Call(call, state.dependent));
+      }
+      return text;
+    }
+
+    @Override
+    public String put(String call, String text) {
+      if (!isParameterless(call)) {
+        return null;
+      }
+      // Expansions above it were abandoned
+      Expanding state = expanding.get();
+      Call started;
+      do {
+        started = state.calls.poll();
+      } while (started != null && !started.call.equals(call));
+      if (started == null || started.dependent != state.dependent) {
+        return null;
+      }
+      // Magic words are not templates of the store. Read without counting, a
+      // template evicted since is not cached.
+      String name = call.substring(call.indexOf(':') + 1, call.length() - 1);
+      if (raw.asMap().get(name) != null) {
+        expanded.put(call, text);
+      }
+      return null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+      return expanded.asMap().entrySet();
+    }
+
+    private boolean isParameterless(String call) {
+      return call.indexOf('|') == call.length() - 1;
+    }
+  }
+
+}
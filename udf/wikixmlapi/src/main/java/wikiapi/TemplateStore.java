@@ -0,0 +1,269 @@
+package wikiapi;
+
+import static wikiapi.HTMLWikiModel.normalizeTitle;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.xml.sax.SAXException;
+
+import info.bliki.wiki.dump.Siteinfo;
+import info.bliki.wiki.dump.WikiArticle;
+
+/**
+ * Read-only store of the Template namespace pages of a dump in a
+ * memory-mapped file, built by a first pass over the dump. Templates are
+ * found by their name without the namespace, through a {@link TitleIndex}
+ * whose ids are the entries of the texts, each deflated on its own.
+ *
+ * Layout, big-endian: magic, version, number of templates, length of the
+ * name index, the name index, the offsets of the texts from the start of
+ * the texts, one more than the templates, and the texts.
+ *
+ */
+public class TemplateStore {
+
+  private static final int MAGIC = 0x544d504c;
+  private static final int VERSION = 1;
+  private static final int HEADER = 16;
+  // Redirects followed from a template name to its text
+  private static final int MAX_REDIRECTS = 4;
+  private static final Pattern REDIRECT = Pattern.compile(
+      "^\\s*#redirect\\s*:?\\s*\\[\\[([^\\]|#]+)", Pattern.CASE_INSENSITIVE);
+  private static final byte[] NS = "<ns>".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] TEMPLATE_NS = "<ns>10</ns>"
+      .getBytes(StandardCharsets.UTF_8);
+
+  private static final ThreadLocal<Inflater> inflaters = ThreadLocal
+      .withInitial(Inflater::new);
+
+  private final ByteBuffer data;
+  private final TitleIndex names;
+  private final int offsets;
+  private final int texts;
+
+  private TemplateStore(ByteBuffer data) throws IOException {
+    this.data = data;
+    if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+      throw new IOException("Not a template store");
+    }
+    int size = data.getInt(8);
+    int indexLength = data.getInt(12);
+    ByteBuffer index = data.duplicate();
+    index.position(HEADER);
+    index.limit(HEADER + indexLength);
+    names = TitleIndex.wrap(index.slice());
+    offsets = HEADER + indexLength;
+    texts = offsets + 4 * (size + 1);
+  }
+
+  /**
+   * Maps a store written by {@link Builder#write(File)}
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static TemplateStore open(File file) throws IOException {
+    try (RandomAccessFile in = new RandomAccessFile(file, "r");
+        FileChannel channel = in.getChannel()) {
+      MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          channel.size());
+      return new TemplateStore(data);
+    }
+  }
+
+  public int size() {
+    return names.size();
+  }
+
+  /**
+   * @param name of the template, without the namespace
+   * @return the raw wikitext of the template, following redirects to other
+   *         templates, null if there is no such template
+   */
+  public String get(String name) {
+    String text = text(name);
+    for (int i = 0; i < MAX_REDIRECTS && text != null; i++) {
+      Matcher redirect = REDIRECT.matcher(text);
+      if (!redirect.find()) {
+        return text;
+      }
+      String target = redirect.group(1);
+      text = text(target.substring(target.indexOf(':') + 1));
+    }
+    return text;
+  }
+
+  private String text(String name) {
+    int ordinal = names.ordinal(normalizeTitle(name));
+    if (ordinal < 0) {
+      return null;
+    }
+    int entry = names.id(ordinal);
+    int start = data.getInt(offsets + 4 * entry);
+    int end = data.getInt(offsets + 4 * entry + 4);
+    ByteBuffer compressed = data.duplicate();
+    compressed.position(texts + start);
+    compressed.limit(texts + end);
+    byte[] input = new byte[end - start];
+    compressed.get(input);
+    Inflater inflater = inflaters.get();
+    inflater.reset();
+    inflater.setInput(input);
+    byte[] output = new byte[Math.max(64, 4 * input.length)];
+    int length = 0;
+    try {
+      while (!inflater.finished()) {
+        if (length == output.length) {
+          output = Arrays.copyOf(output, output.length * 2);
+        }
+        int n = inflater.inflate(output, length, output.length - length);
+        if (n == 0 && inflater.needsInput()) {
+          throw new DataFormatException("Truncated");
+        }
+        length += n;
+      }
+    } catch (DataFormatException e) {
+      throw new IllegalStateException("Corrupt template " + name, e);
+    }
+    return new String(output, 0, length, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Collects the templates of an uncompressed dump, only the pages in the
+   * Template namespace are decoded
+   *
+   * @param dump
+   * @param file
+   * @return the number of templates
+   * @throws IOException
+   * @throws SAXException
+   */
+  public static int build(String dump, File file) throws IOException,
+      SAXException {
+    Builder templates = new Builder();
+    try (PageSplitter splitter = new PageSplitter(dump)) {
+      Siteinfo siteinfo = splitter.getSiteinfo();
+      ByteBuffer page;
+      while ((page = splitter.next()) != null) {
+        // Dumps without <ns> elements are decoded page by page
+        if (contains(page, NS) && !contains(page, TEMPLATE_NS)) {
+          continue;
+        }
+        WikiArticle article = PageSplitter.decode(page, siteinfo);
+        if (article != null && article.isTemplate()) {
+          String title = article.getTitle();
+          templates.add(title.substring(title.indexOf(':') + 1),
+              article.getText());
+        }
+      }
+    }
+    templates.write(file);
+    return templates.size();
+  }
+
+  private static boolean contains(ByteBuffer page, byte[] pattern) {
+    int limit = page.limit() - pattern.length;
+    for (int i = page.position(); i <= limit; i++) {
+      int j = 0;
+      while (j < pattern.length && page.get(i + j) == pattern[j]) {
+        j++;
+      }
+      if (j == pattern.length) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Collects templates and writes the store
+   */
+  public static class Builder {
+
+    private final TitleIndex.Builder names = new TitleIndex.Builder();
+    private final List<byte[]> texts = new ArrayList<>();
+    private final Deflater deflater = new Deflater();
+    private final byte[] buffer = new byte[1 << 16];
+    private long length = 0;
+
+    /**
+     * Adds a template, a name added twice keeps the first text
+     *
+     * @param name without the namespace
+     * @param text
+     */
+    public synchronized void add(String name, String text) {
+      deflater.reset();
+      deflater.setInput(text.getBytes(StandardCharsets.UTF_8));
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+      names.add(normalizeTitle(name), texts.size());
+      texts.add(out.toByteArray());
+      length += out.size();
+    }
+
+    public synchronized int size() {
+      return texts.size();
+    }
+
+    /**
+     * Writes the store through a temporary file renamed over the target, so
+     * that readers never see a partial one
+     *
+     * @param file
+     * @throws IOException
+     */
+    public synchronized void write(File file) throws IOException {
+      TitleIndex index = names.build();
+      if (HEADER + index.length() + 4L * (texts.size() + 1)
+          + length > Integer.MAX_VALUE) {
+        throw new IOException("Template store over 2GB");
+      }
+      File tmp = new File(file.getPath() + ".tmp");
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(texts.size());
+        out.writeInt(index.length());
+        index.write(Channels.newChannel(out));
+        int offset = 0;
+        for (byte[] text : texts) {
+          out.writeInt(offset);
+          offset += text.length;
+        }
+        out.writeInt(offset);
+        for (byte[] text : texts) {
+          out.write(text);
+        }
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Failed to move " + tmp + " to " + file);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,420 @@
+package wikiapi;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.google.common.primitives.UnsignedBytes;
+
+/**
+ * Read-only title to id index in a memory-mapped file, shared by all
+ * processes that open it. Titles are sorted by their UTF-8 bytes and
+ * front-coded in blocks: the first title of a block is stored whole, the
+ * others as the length of the prefix shared with the title before and the
+ * rest. Title to id is a binary search over the first titles of the blocks
+ * and a scan of one block, id to title a binary search over the ids.
+ *
+ * A title is known by its ordinal, its position in the sorted order, so
+ * that tables over all titles can be int arrays indexed by ordinal.
+ *
+ * Layout, big-endian: magic, version, size, block size, longest title in
+ * bytes, then the block offsets into the strings, the ids by ordinal, the
+ * ids sorted with their ordinals, and the strings. Lengths in the strings
+ * are unsigned shorts, shared prefixes a byte.
+ *
+ */
+public class TitleIndex {
+
+  private static final int MAGIC = 0x54494458;
+  private static final int VERSION = 1;
+  private static final int HEADER = 20;
+  private static final int BLOCK_SIZE = 16;
+
+  private final ByteBuffer data;
+  private final int size;
+  private final int blockSize;
+  private final int maxLength;
+  private final int blocks;
+  // Positions of the sections
+  private final int offsets;
+  private final int ids;
+  private final int sortedIds;
+  private final int ordinals;
+  private final int strings;
+
+  private TitleIndex(ByteBuffer data) throws IOException {
+    this.data = data;
+    if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+      throw new IOException("Not a title index");
+    }
+    size = data.getInt(8);
+    blockSize = data.getInt(12);
+    maxLength = data.getInt(16);
+    blocks = (size + blockSize - 1) / blockSize;
+    offsets = HEADER;
+    ids = offsets + 4 * blocks;
+    sortedIds = ids + 4 * size;
+    ordinals = sortedIds + 4 * size;
+    strings = ordinals + 4 * size;
+  }
+
+  /**
+   * Maps an index written by {@link Builder#write(File)}
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static TitleIndex open(File file) throws IOException {
+    try (RandomAccessFile in = new RandomAccessFile(file, "r");
+        FileChannel channel = in.getChannel()) {
+      MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          channel.size());
+      return new TitleIndex(data);
+    }
+  }
+
+  /**
+   * @param data an index as written by {@link Builder#write(File)}, from
+   *          position 0
+   * @return
+   * @throws IOException
+   */
+  static TitleIndex wrap(ByteBuffer data) throws IOException {
+    return new TitleIndex(data);
+  }
+
+  /**
+   * Writes the whole index to the channel, in the layout of the file
+   *
+   * @param channel
+   * @throws IOException
+   */
+  void write(WritableByteChannel channel) throws IOException {
+    ByteBuffer all = data.duplicate();
+    all.clear();
+    while (all.hasRemaining()) {
+      channel.write(all);
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return length of the index in bytes
+   */
+  int length() {
+    return data.capacity();
+  }
+
+  /**
+   * @param title
+   * @return ordinal of the title, -1 if not indexed
+   */
+  public int ordinal(String title) {
+    byte[] key = title.getBytes(StandardCharsets.UTF_8);
+    // Last block starting at or before the key
+    int low = 0;
+    int high = blocks - 1;
+    int block = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int at = strings + data.getInt(offsets + 4 * mid);
+      int length = data.getChar(at);
+      int c = compare(at + 2, length, key);
+      if (c == 0) {
+        return mid * blockSize;
+      } else if (c < 0) {
+        block = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    if (block < 0) {
+      return -1;
+    }
+    byte[] current = new byte[maxLength];
+    int at = strings + data.getInt(offsets + 4 * block);
+    int length = data.getChar(at);
+    at += 2;
+    copy(at, current, 0, length);
+    at += length;
+    int end = Math.min(size, (block + 1) * blockSize);
+    for (int ordinal = block * blockSize + 1; ordinal < end; ordinal++) {
+      int shared = data.get(at++) & 0xff;
+      int rest = data.getChar(at);
+      at += 2;
+      copy(at, current, shared, rest);
+      at += rest;
+      length = shared + rest;
+      int c = compare(current, length, key);
+      if (c == 0) {
+        return ordinal;
+      } else if (c > 0) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @param title
+   * @return id of the title, -1 if not indexed
+   */
+  public int id(String title) {
+    int ordinal = ordinal(title);
+    return ordinal < 0 ? -1 : id(ordinal);
+  }
+
+  /**
+   * @param ordinal
+   * @return id of the title with the ordinal
+   */
+  public int id(int ordinal) {
+    return data.getInt(ids + 4 * ordinal);
+  }
+
+  /**
+   * @param id
+   * @return ordinal of the title with the id, -1 if not indexed
+   */
+  public int ordinalOf(int id) {
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int value = data.getInt(sortedIds + 4 * mid);
+      if (value < id) {
+        low = mid + 1;
+      } else if (value > id) {
+        high = mid - 1;
+      } else {
+        return data.getInt(ordinals + 4 * mid);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @param ordinal
+   * @return the title with the ordinal
+   */
+  public String title(int ordinal) {
+    int block = ordinal / blockSize;
+    byte[] current = new byte[maxLength];
+    int at = strings + data.getInt(offsets + 4 * block);
+    int length = data.getChar(at);
+    at += 2;
+    copy(at, current, 0, length);
+    at += length;
+    for (int i = block * blockSize; i < ordinal; i++) {
+      int shared = data.get(at++) & 0xff;
+      int rest = data.getChar(at);
+      at += 2;
+      copy(at, current, shared, rest);
+      at += rest;
+      length = shared + rest;
+    }
+    return new String(current, 0, length, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @param id
+   * @return title of the id, null if not indexed
+   */
+  public String titleOf(int id) {
+    int ordinal = ordinalOf(id);
+    return ordinal < 0 ? null : title(ordinal);
+  }
+
+  private void copy(int at, byte[] to, int offset, int length) {
+    for (int i = 0; i < length; i++) {
+      to[offset + i] = data.get(at + i);
+    }
+  }
+
+  private int compare(int at, int length, byte[] key) {
+    int n = Math.min(length, key.length);
+    for (int i = 0; i < n; i++) {
+      int c = (data.get(at + i) & 0xff) - (key[i] & 0xff);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return length - key.length;
+  }
+
+  private static int compare(byte[] a, int length, byte[] key) {
+    int n = Math.min(length, key.length);
+    for (int i = 0; i < n; i++) {
+      int c = (a[i] & 0xff) - (key[i] & 0xff);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return length - key.length;
+  }
+
+  /**
+   * Collects the titles with their ids and writes the index
+   */
+  public static class Builder {
+
+    private final List<byte[]> titles = new ArrayList<>();
+    private int[] ids = new int[1 << 10];
+
+    /**
+     * Adds a title, titles added twice keep the smallest id. May be called
+     * from several threads.
+     *
+     * @param title
+     * @param id
+     */
+    public synchronized void add(String title, int id) {
+      byte[] bytes = title.getBytes(StandardCharsets.UTF_8);
+      if (bytes.length > Character.MAX_VALUE) {
+        throw new IllegalArgumentException("Title too long: " + title);
+      }
+      if (titles.size() == ids.length) {
+        ids = Arrays.copyOf(ids, ids.length * 2);
+      }
+      ids[titles.size()] = id;
+      titles.add(bytes);
+    }
+
+    /**
+     * Writes the index through a temporary file renamed over the target, so
+     * that readers never see a partial one
+     *
+     * @param file
+     * @throws IOException
+     */
+    public synchronized void write(File file) throws IOException {
+      File tmp = new File(file.getPath() + ".tmp");
+      try (OutputStream out = new BufferedOutputStream(
+          new FileOutputStream(tmp), 1 << 16)) {
+        write(out);
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Failed to move " + tmp + " to " + file);
+      }
+    }
+
+    /**
+     * @return the index held on the heap
+     * @throws IOException
+     */
+    public synchronized TitleIndex build() throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+      write(out);
+      return new TitleIndex(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    private void write(OutputStream stream) throws IOException {
+      Comparator<byte[]> bytes = UnsignedBytes.lexicographicalComparator();
+      Integer[] order = new Integer[titles.size()];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+      // Equal titles by id, the first of them is kept
+      Arrays.sort(order, (a, b) -> {
+        int c = bytes.compare(titles.get(a), titles.get(b));
+        return c != 0 ? c : Integer.compare(ids[a], ids[b]);
+      });
+      int n = 0;
+      for (int i = 0; i < order.length; i++) {
+        if (i > 0 && bytes.compare(titles.get(order[i - 1]),
+            titles.get(order[i])) == 0) {
+          continue;
+        }
+        order[n++] = order[i];
+      }
+
+      int blocks = (n + BLOCK_SIZE - 1) / BLOCK_SIZE;
+      int[] offsets = new int[blocks];
+      int[] shared = new int[n];
+      long length = 0;
+      int maxLength = 0;
+      for (int i = 0; i < n; i++) {
+        byte[] title = titles.get(order[i]);
+        maxLength = Math.max(maxLength, title.length);
+        if (i % BLOCK_SIZE == 0) {
+          offsets[i / BLOCK_SIZE] = (int) length;
+          length += 2 + title.length;
+        } else {
+          shared[i] = sharedPrefix(titles.get(order[i - 1]), title);
+          length += 3 + title.length - shared[i];
+        }
+      }
+      if (HEADER + 4L * blocks + 12L * n + length > Integer.MAX_VALUE) {
+        throw new IOException("Title index over 2GB");
+      }
+      long[] byId = new long[n];
+      for (int i = 0; i < n; i++) {
+        byId[i] = (long) ids[order[i]] << 32 | i;
+      }
+      Arrays.sort(byId);
+
+      DataOutputStream out = new DataOutputStream(stream);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(n);
+      out.writeInt(BLOCK_SIZE);
+      out.writeInt(maxLength);
+      for (int offset : offsets) {
+        out.writeInt(offset);
+      }
+      for (int i = 0; i < n; i++) {
+        out.writeInt(ids[order[i]]);
+      }
+      for (long entry : byId) {
+        out.writeInt((int) (entry >> 32));
+      }
+      for (long entry : byId) {
+        out.writeInt((int) entry);
+      }
+      for (int i = 0; i < n; i++) {
+        byte[] title = titles.get(order[i]);
+        if (i % BLOCK_SIZE == 0) {
+          out.writeShort(title.length);
+          out.write(title);
+        } else {
+          out.writeByte(shared[i]);
+          out.writeShort(title.length - shared[i]);
+          out.write(title, shared[i], title.length - shared[i]);
+        }
+      }
+      out.flush();
+    }
+
+    /**
+     * @return length of the shared prefix, at most 255
+     */
+    private static int sharedPrefix(byte[] a, byte[] b) {
+      int n = Math.min(255, Math.min(a.length, b.length));
+      int i = 0;
+      while (i < n && a[i] == b[i]) {
+        i++;
+      }
+      return i;
+    }
+  }
+
+}
@@ -0,0 +1,116 @@
+package wikiapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class LinkStatsTest {
+
+  @Test
+  public void ranksTargetsBySurface() {
+    LinkStats.Builder builder = new LinkStats.Builder(4);
+    builder.add(0, "foo", 1);
+    builder.add(0, "foo", 2);
+    builder.add(1, "foo", 2);
+    builder.add(2, "foo", 3);
+    builder.add(3, "foo", 2);
+    builder.add(3, "foo", 3);
+    builder.add(1, "bar", 0);
+    // Counted in the page totals only
+    builder.add(2, "", 0);
+    builder.add(-1, "bar", 0);
+    builder.add(3, "baz", -1);
+    LinkStats stats = builder.build();
+
+    assertEquals(2, stats.surfaceCount());
+    int foo = stats.surface("foo");
+    int bar = stats.surface("bar");
+    assertEquals("foo", stats.surface(foo));
+    assertEquals(-1, stats.surface("baz"));
+    assertEquals(-1, stats.surface(""));
+
+    // Most linked first, ties by ordinal
+    assertEquals(3, stats.targetCount(foo));
+    assertEquals(2, stats.target(foo, 0));
+    assertEquals(3, stats.count(foo, 0));
+    assertEquals(3, stats.target(foo, 1));
+    assertEquals(2, stats.count(foo, 1));
+    assertEquals(1, stats.target(foo, 2));
+    assertEquals(1, stats.count(foo, 2));
+    assertEquals(6, stats.total(foo));
+    assertEquals(2, stats.total(bar));
+
+    assertEquals(0.5, stats.commonness("foo", 2), 0);
+    assertEquals(0, stats.commonness("foo", 0), 0);
+    assertEquals(1, stats.commonness("bar", 0), 0);
+    assertEquals(0, stats.commonness("baz", 0), 0);
+
+    assertEquals(3, stats.inlinks(0));
+    assertEquals(1, stats.inlinks(1));
+    assertEquals(3, stats.inlinks(2));
+    assertEquals(2, stats.inlinks(3));
+    assertEquals(2, stats.outlinks(0));
+    assertEquals(2, stats.outlinks(1));
+    assertEquals(2, stats.outlinks(2));
+    assertEquals(3, stats.outlinks(3));
+  }
+
+  @Test
+  public void mergesThreads() throws Exception {
+    int titles = 100;
+    LinkStats.Builder builder = new LinkStats.Builder(titles);
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    List<Future<Map<String, Integer>>> results = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      long seed = t;
+      results.add(pool.submit(() -> {
+        Map<String, Integer> pairs = new HashMap<>();
+        Random random = new Random(seed);
+        for (int i = 0; i < 20000; i++) {
+          String surface = "s" + random.nextInt(200);
+          int target = random.nextInt(titles);
+          builder.add(random.nextInt(titles), surface, target);
+          pairs.merge(surface + " " + target, 1, Integer::sum);
+        }
+        return pairs;
+      }));
+    }
+    Map<String, Integer> expected = new HashMap<>();
+    for (Future<Map<String, Integer>> result : results) {
+      result.get().forEach((k, v) -> expected.merge(k, v, Integer::sum));
+    }
+    pool.shutdown();
+
+    LinkStats stats = builder.build();
+    Map<String, Integer> built = new HashMap<>();
+    long links = 0;
+    for (int s = 0; s < stats.surfaceCount(); s++) {
+      for (int i = 0; i < stats.targetCount(s); i++) {
+        built.put(stats.surface(s) + " " + stats.target(s, i),
+            stats.count(s, i));
+        if (i > 0) {
+          assertTrue(stats.count(s, i - 1) >= stats.count(s, i));
+        }
+      }
+      links += stats.total(s);
+    }
+    assertEquals(expected, built);
+    assertEquals(80000, links);
+    long inlinks = 0;
+    for (int i = 0; i < titles; i++) {
+      inlinks += stats.inlinks(i);
+    }
+    assertEquals(80000, inlinks);
+  }
+
+}
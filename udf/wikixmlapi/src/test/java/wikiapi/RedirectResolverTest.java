@@ -0,0 +1,78 @@
+package wikiapi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RedirectResolverTest {
+
+  private static final int NONE = RedirectResolver.NONE;
+  private static final int LOOP = RedirectResolver.LOOP;
+
+  private final List<int[]> loops = new ArrayList<>();
+
+  private int[] resolve(int... next) {
+    return RedirectResolver.resolve(next, loops::add);
+  }
+
+  @Test
+  public void titlesWithoutRedirects() {
+    assertArrayEquals(new int[] { NONE, NONE }, resolve(NONE, NONE));
+    assertTrue(loops.isEmpty());
+  }
+
+  @Test
+  public void followsChainsToTheEnd() {
+    // 0 -> 1 -> 2 -> 3, 4 -> 2, 5 -> 3
+    assertArrayEquals(new int[] { 3, 3, 3, NONE, 3, 3 },
+        resolve(1, 2, 3, NONE, 2, 3));
+    assertTrue(loops.isEmpty());
+  }
+
+  @Test
+  public void chainsResolveInAnyOrder() {
+    // 3 -> 2 -> 1 -> 0, visited from the end of the chain first
+    assertArrayEquals(new int[] { NONE, 0, 0, 0 }, resolve(NONE, 0, 1, 2));
+  }
+
+  @Test
+  public void longChainGrowsThePath() {
+    int n = 100;
+    int[] next = new int[n];
+    int[] expected = new int[n];
+    for (int i = 0; i < n; i++) {
+      next[i] = i + 1 < n ? i + 1 : NONE;
+      expected[i] = i + 1 < n ? n - 1 : NONE;
+    }
+    assertArrayEquals(expected, resolve(next));
+  }
+
+  @Test
+  public void loopsAreReportedOnce() {
+    // 0 -> 1 -> 2 -> 0 is a loop, 3 -> 1 leads into it, 4 -> 4 redirects
+    // to itself and 5 -> 6 is a plain chain
+    assertArrayEquals(new int[] { LOOP, LOOP, LOOP, LOOP, LOOP, 6, NONE },
+        resolve(1, 2, 0, 1, 4, 6, NONE));
+    assertEquals(2, loops.size());
+    assertArrayEquals(new int[] { 0, 1, 2 }, loops.get(0));
+    assertArrayEquals(new int[] { 4 }, loops.get(1));
+  }
+
+  @Test
+  public void loopEnteredPartWay() {
+    // 0 -> 1 -> 2 -> 3 -> 2, only 2 and 3 are the loop
+    assertArrayEquals(new int[] { LOOP, LOOP, LOOP, LOOP },
+        resolve(1, 2, 3, 2));
+    assertEquals(1, loops.size());
+    int[] loop = loops.get(0);
+    Arrays.sort(loop);
+    assertArrayEquals(new int[] { 2, 3 }, loop);
+  }
+
+}
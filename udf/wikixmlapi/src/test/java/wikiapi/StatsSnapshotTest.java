@@ -0,0 +1,137 @@
+package wikiapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StatsSnapshotTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final long[] SOURCE = { 3, 42, 1000, 7 };
+
+  /**
+   * Surfaces whose UTF-16 order differs from their UTF-8 order, and many
+   * common ones
+   */
+  private static StatsSnapshot snapshot() throws IOException {
+    TitleIndex.Builder titles = new TitleIndex.Builder();
+    for (int i = 0; i < 50; i++) {
+      titles.add("Title " + i, 100 + i);
+    }
+    TitleIndex ids = titles.build();
+    int[] redirects = new int[ids.size()];
+    for (int i = 0; i < redirects.length; i++) {
+      redirects[i] = i % 5 == 0 ? (i + 1) % redirects.length : i;
+    }
+    String[] surfaces = { "foo", "Foo", "\uff21", "\ud83d\ude00",
+        "\u00e9t\u00e9", "" };
+    LinkStats.Builder links = new LinkStats.Builder(ids.size());
+    Random random = new Random(1);
+    for (int i = 0; i < 5000; i++) {
+      String surface = random.nextBoolean()
+          ? surfaces[random.nextInt(surfaces.length)]
+          : "s" + random.nextInt(300);
+      links.add(random.nextInt(ids.size() + 1) - 1, surface,
+          random.nextInt(ids.size() + 1) - 1);
+    }
+    return new StatsSnapshot(SOURCE, ids, IntBuffer.wrap(redirects),
+        links.build());
+  }
+
+  private static void assertSame(StatsSnapshot expected,
+      StatsSnapshot actual) {
+    TitleIndex titles = expected.titles();
+    assertEquals(titles.size(), actual.titles().size());
+    for (int i = 0; i < titles.size(); i++) {
+      assertEquals(titles.title(i), actual.titles().title(i));
+      assertEquals(titles.id(i), actual.titles().id(i));
+      assertEquals(expected.redirects().get(i), actual.redirects().get(i));
+    }
+    LinkStats links = expected.links();
+    LinkStats read = actual.links();
+    for (int i = 0; i < titles.size(); i++) {
+      assertEquals(links.inlinks(i), read.inlinks(i));
+      assertEquals(links.outlinks(i), read.outlinks(i));
+    }
+    assertEquals(links.surfaceCount(), read.surfaceCount());
+    for (int s = 0; s < links.surfaceCount(); s++) {
+      String surface = links.surface(s);
+      assertEquals(surface, read.surface(s));
+      assertEquals(s, read.surface(surface));
+      assertEquals(links.targetCount(s), read.targetCount(s));
+      assertEquals(links.total(s), read.total(s));
+      for (int i = 0; i < links.targetCount(s); i++) {
+        assertEquals(links.target(s, i), read.target(s, i));
+        assertEquals(links.count(s, i), read.count(s, i));
+        assertEquals(links.commonness(surface, links.target(s, i)),
+            read.commonness(surface, read.target(s, i)), 0);
+      }
+    }
+  }
+
+  @Test
+  public void roundTrip() throws IOException {
+    StatsSnapshot stats = snapshot();
+    assertTrue(stats.links().surfaceCount() > 300);
+    File file = new File(folder.getRoot(), "stats.snap");
+    stats.write(file);
+    assertFalse(new File(file.getPath() + ".tmp").exists());
+    StatsSnapshot read = StatsSnapshot.open(file);
+    assertTrue(read.isCurrent(SOURCE.clone()));
+    assertFalse(read.isCurrent(new long[] { 3, 42, 1000, 8 }));
+    assertSame(stats, read);
+    assertEquals(-1, read.links().surface("missing"));
+    assertEquals(-1, read.links().surface(""));
+  }
+
+  @Test
+  public void rewritesOverAnOlderSnapshot() throws IOException {
+    File file = new File(folder.getRoot(), "stats.snap");
+    new StatsSnapshot(new long[] { 1 }, new TitleIndex.Builder().build(),
+        IntBuffer.allocate(0), new LinkStats.Builder(0).build()).write(file);
+    StatsSnapshot stats = snapshot();
+    stats.write(file);
+    assertSame(stats, StatsSnapshot.open(file));
+  }
+
+  @Test
+  public void rejectsOtherFiles() throws IOException {
+    File file = new File(folder.getRoot(), "stats.snap");
+    snapshot().write(file);
+    try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+      out.seek(4);
+      out.writeInt(0);
+    }
+    try {
+      StatsSnapshot.open(file);
+      fail("Opened a snapshot of another version");
+    } catch (IOException e) {
+      // Rebuilt by CollectStats
+    }
+
+    snapshot().write(file);
+    try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+      out.setLength(out.length() - 8);
+    }
+    try {
+      StatsSnapshot.open(file);
+      fail("Opened a truncated snapshot");
+    } catch (IOException e) {
+      // Rebuilt by CollectStats
+    }
+  }
+
+}
@@ -0,0 +1,64 @@
+package wikiapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import info.bliki.wiki.filter.HTMLConverter;
+
+public class TemplateCacheTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private TemplateCache templates;
+
+  @Before
+  public void store() throws IOException {
+    TemplateStore.Builder builder = new TemplateStore.Builder();
+    builder.add("Static", "static text");
+    builder.add("Outer static", "outer {{Static}}");
+    builder.add("Name", "name {{PAGENAME}}");
+    builder.add("Outer", "outer {{Name}}");
+    builder.add("Outermost", "outermost {{Static}} {{Outer}}");
+    File file = new File(folder.getRoot(), "templates.store");
+    builder.write(file);
+    templates = new TemplateCache(TemplateStore.open(file), 1 << 20);
+  }
+
+  private String render(String page, String wikitext) throws IOException {
+    HTMLWikiModel model = new HTMLWikiModel(templates);
+    model.reset();
+    model.setPageName(page);
+    StringBuilder html = new StringBuilder();
+    model.render(new HTMLConverter(), wikitext, html);
+    return html.toString();
+  }
+
+  @Test
+  public void cachesStaticExpansions() throws IOException {
+    assertTrue(render("A", "{{Outer static}}").contains("outer static text"));
+    long hits = templates.expansionStats().hitCount();
+    assertTrue(render("B", "{{Outer static}}").contains("outer static text"));
+    assertEquals(hits + 1, templates.expansionStats().hitCount());
+  }
+
+  @Test
+  public void nestedPageNameIsNotCached() throws IOException {
+    for (String template : new String[] { "Name", "Outer", "Outermost" }) {
+      String call = "{{" + template + "}}";
+      assertTrue(render("Page A", call).contains("name Page A"));
+      assertTrue(render("Page B", call).contains("name Page B"));
+    }
+    assertTrue(render("Page C", "{{Outermost}}").contains(
+        "outermost static text outer name Page C"));
+  }
+
+}
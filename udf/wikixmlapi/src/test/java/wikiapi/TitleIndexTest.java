@@ -0,0 +1,137 @@
+package wikiapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TitleIndexTest {
+
+  // Titles per front-coded block
+  private static final int BLOCK = 16;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Sorted titles sharing long prefixes
+   */
+  private static List<String> titles(int n) {
+    List<String> titles = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      titles.add(String.format("Title %04d", i));
+    }
+    return titles;
+  }
+
+  /**
+   * Adds the sorted titles out of order, each with id 1000 + ordinal
+   */
+  private static TitleIndex build(List<String> titles) throws IOException {
+    TitleIndex.Builder builder = new TitleIndex.Builder();
+    List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < titles.size(); i++) {
+      order.add(i);
+    }
+    Collections.shuffle(order, new Random(1));
+    for (int i : order) {
+      builder.add(titles.get(i), 1000 + i);
+    }
+    return builder.build();
+  }
+
+  private static void assertIndexed(List<String> sorted, TitleIndex index) {
+    assertEquals(sorted.size(), index.size());
+    for (int ordinal = 0; ordinal < sorted.size(); ordinal++) {
+      String title = sorted.get(ordinal);
+      assertEquals(title, ordinal, index.ordinal(title));
+      assertEquals(title, 1000 + ordinal, index.id(title));
+      assertEquals(title, index.title(ordinal));
+      assertEquals(title, index.titleOf(1000 + ordinal));
+      assertEquals(ordinal, index.ordinalOf(1000 + ordinal));
+    }
+  }
+
+  @Test
+  public void lookupsAroundBlockBoundaries() throws IOException {
+    for (int n : new int[] { 1, BLOCK - 1, BLOCK, BLOCK + 1, 2 * BLOCK,
+        2 * BLOCK + 1, 10 * BLOCK - 1 }) {
+      List<String> titles = titles(n);
+      TitleIndex index = build(titles);
+      assertIndexed(titles, index);
+      // Missing titles before, between and after the indexed ones, next
+      // to the first and last titles of blocks
+      assertEquals(-1, index.ordinal("Title"));
+      assertEquals(-1, index.ordinal("A"));
+      assertEquals(-1, index.ordinal("Z"));
+      for (int i = 0; i < n; i += BLOCK) {
+        assertEquals(-1, index.ordinal(titles.get(i) + " "));
+        assertEquals(-1, index.ordinal(titles.get(i).substring(0, 9)));
+        int last = Math.min(n, i + BLOCK) - 1;
+        assertEquals(-1, index.ordinal(titles.get(last) + "a"));
+      }
+      assertEquals(-1, index.ordinalOf(999));
+      assertEquals(-1, index.ordinalOf(1000 + n));
+      assertNull(index.titleOf(1000 + n));
+    }
+  }
+
+  @Test
+  public void prefixesLongerThanAByte() throws IOException {
+    StringBuilder prefix = new StringBuilder();
+    for (int i = 0; i < 300; i++) {
+      prefix.append('x');
+    }
+    List<String> titles = new ArrayList<>();
+    for (int i = 0; i < 2 * BLOCK + 3; i++) {
+      titles.add(prefix + String.format("%03d", i));
+    }
+    assertIndexed(titles, build(titles));
+  }
+
+  @Test
+  public void sortsByUtf8Bytes() throws IOException {
+    // UTF-8 byte order: ASCII, then Ü (C3 9C), then é (C3 A9), then 東
+    List<String> titles = new ArrayList<>();
+    titles.add("Zebra");
+    titles.add("Zürich");
+    titles.add("Ümlaut");
+    titles.add("é");
+    titles.add("東京");
+    assertIndexed(titles, build(titles));
+  }
+
+  @Test
+  public void duplicatesKeepTheSmallestId() throws IOException {
+    TitleIndex.Builder builder = new TitleIndex.Builder();
+    builder.add("Foo", 7);
+    builder.add("Bar", 3);
+    builder.add("Foo", 5);
+    TitleIndex index = builder.build();
+    assertEquals(2, index.size());
+    assertEquals(5, index.id("Foo"));
+    assertEquals(-1, index.ordinalOf(7));
+  }
+
+  @Test
+  public void mappedFileMatchesBuiltIndex() throws IOException {
+    List<String> titles = titles(5 * BLOCK + 7);
+    TitleIndex.Builder builder = new TitleIndex.Builder();
+    for (int i = 0; i < titles.size(); i++) {
+      builder.add(titles.get(i), 1000 + i);
+    }
+    File file = new File(folder.getRoot(), "titles.idx");
+    builder.write(file);
+    assertIndexed(titles, TitleIndex.open(file));
+  }
+
+}